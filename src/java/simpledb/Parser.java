@@ -567,7 +567,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "lockstats" };
 
     public static void main(String[] argv) throws IOException {
 
@@ -583,6 +583,8 @@ public class Parser {
 
     static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
+    /** Number of most contended locks printed by the lockstats command. */
+    static final int LOCK_STATS_TOP = 10;
 
     protected void shutdown() {
         System.out.println("Bye");
@@ -667,6 +669,16 @@ public class Parser {
                         quit = true;
                         break;
                     }
+                    if (cmd.equalsIgnoreCase("lockstats;")
+                            || cmd.equalsIgnoreCase("lockstats reset;")) {
+                        System.out.print(Database.getBufferPool().getLockStats().report(LOCK_STATS_TOP));
+                        if (cmd.equalsIgnoreCase("lockstats reset;")) {
+                            Database.getBufferPool().getLockStats().reset();
+                        }
+                        line = line.substring(split + 1);
+                        buffer = new StringBuilder();
+                        continue;
+                    }
 
                     long startTime = System.currentTimeMillis();
                     processNextStatement(new ByteArrayInputStream(
@@ -1,6 +1,7 @@
 package simpledb.common;
 
 import simpledb.common.Type;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
@@ -11,6 +12,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Catalog: Stores information that is common to all the records of a given record type.
@@ -32,6 +34,9 @@ public class Catalog {
 
     public ConcurrentHashMap<Integer, Table> catalog;
 
+    /** Secondary indexes, by the id of the table they index. */
+    private final ConcurrentHashMap<Integer, List<SecondaryIndex>> indexes = new ConcurrentHashMap<>();
+
 
     public class Table{
         TupleDesc td;
@@ -122,6 +127,33 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Add a secondary index on a table already in the catalog. The B+ tree of
+     * the index is added as a table under the name of the index, and from now
+     * on BufferPool.insertTuple and deleteTuple keep it up to date.
+     * @param index the index to add
+     * @throws NoSuchElementException if the indexed table is not in the catalog
+     * @see SecondaryIndex#build
+     */
+    public void addIndex(SecondaryIndex index) throws NoSuchElementException {
+        if (!this.catalog.containsKey(index.getTableId())){
+            throw new NoSuchElementException("Couldn't find the indexed table | Catalog.java | addIndex(index)");
+        }
+        addTable(index.getFile(), index.getName());
+        this.indexes.computeIfAbsent(index.getTableId(), k -> new CopyOnWriteArrayList<>()).add(index);
+    }
+
+    /**
+     * Returns the secondary indexes of the specified table
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     * @return the indexes of the table, empty if it has none
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> l = this.indexes.get(tableid);
+        return l == null ? Collections.emptyList() : Collections.unmodifiableList(l);
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -129,8 +161,7 @@ public class Catalog {
     public int getTableId(String name) throws NoSuchElementException {
         // Lab-1 Exercise 2
         for (Integer key: this.catalog.keySet()){
-            System.out.println("Name is:"+this.catalog.get(key).name);
-            if (this.catalog.get(key).name == name) {
+            if (this.catalog.get(key).name.equals(name)) {
                 return key;
             }
         }
@@ -205,6 +236,7 @@ public class Catalog {
         for (Integer key: this.catalog.keySet()){
             this.catalog.remove(key);
         }
+        this.indexes.clear();
     }
     
     /**
@@ -1,111 +1,126 @@
 package simpledb.common;
 
-import java.util.ArrayList;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.logging.Logger;
-import java.util.logging.FileHandler;
 
 import simpledb.transaction.TransactionId;
-import simpledb.storage.PageId;
-import simpledb.common.LogStuff;
 
-
-
-
-
-
-public class DependencyGraph{
-    private ConcurrentHashMap<TransactionId, ArrayList<TransactionId>> adjacencyList;
-    private LogStuff logger;
-
-    public DependencyGraph(){
-        this.adjacencyList = new ConcurrentHashMap<TransactionId, ArrayList<TransactionId>>();
-        try{
-            this.logger = new LogStuff("DependencyGraph");
-        }catch(Exception e){}
+/**
+ * The waits-for graph of blocked transactions. There is an edge from t to u
+ * if t waits for a lock that u holds or is queued for ahead of t. The
+ * LockManager replaces a transaction's edges whenever the queue it waits in
+ * changes, so the graph is maintained incrementally and never rebuilt.
+ * <p>
+ * Cycles are found with Tarjan's strongly connected components algorithm:
+ * every component with more than one transaction (or a transaction waiting
+ * for itself) contains a cycle, and nothing else does.
+ */
+public class DependencyGraph {
+
+    private final ConcurrentHashMap<TransactionId, Set<TransactionId>> adjacencyList = new ConcurrentHashMap<>();
+
+    /** Replace the edges out of tid. */
+    public void setEdges(TransactionId tid, Set<TransactionId> waitsFor) {
+        adjacencyList.put(tid, waitsFor);
     }
 
-    private void insert(TransactionId source, TransactionId destination){
-        if (!this.adjacencyList.containsKey(source)){
-            this.adjacencyList.put(source, new ArrayList<TransactionId>());
-        }
-        if (!this.adjacencyList.containsKey(destination)){
-            this.adjacencyList.put(destination, new ArrayList<TransactionId>());
-        }
-        this.adjacencyList.get(source).add(destination);
+    /** Remove the edges out of tid, e.g. once it stops waiting. */
+    public void remove(TransactionId tid) {
+        adjacencyList.remove(tid);
     }
 
-    private void remove(TransactionId node){
-        if (!this.adjacencyList.containsKey(node)){
-            System.out.println("Trying to remove node that is not in graph! | DependencyGraph, LockManager | remove(node)");
-        }
-        this.adjacencyList.remove(node);
-        for (TransactionId tid: this.adjacencyList.keySet()){
-            if (this.adjacencyList.get(tid).contains(node)){
-                this.adjacencyList.get(tid).remove(node);
-            }
-        }
+    public boolean isEmpty() {
+        return adjacencyList.isEmpty();
     }
 
-    public boolean containsCycles(ConcurrentHashMap<PageId, List<LockState>> lockStateMap, ConcurrentHashMap<TransactionId, PageId> waitList){// using DFS to implement this
-
-        int flag = 0; // flag, cuz need to clear adjacency list before returning true or false.
-
-        //get list of pages with only one transaction accessing it, and it has READ_WRITE permission.
-        ConcurrentHashMap<PageId, TransactionId> singles = new ConcurrentHashMap<PageId, TransactionId>();
-        for (PageId pid: lockStateMap.keySet()){
+    /**
+     * @return the strongly connected components of the graph that contain a
+     *   cycle; every transaction in one of them is deadlocked
+     */
+    public List<List<TransactionId>> deadlocks() {
+        Map<TransactionId, Set<TransactionId>> graph = new HashMap<>(adjacencyList);
+        return new Tarjan(graph).run();
+    }
 
-            if (lockStateMap.get(pid).size() == 1 && lockStateMap.get(pid).get(0).getPerm() == Permissions.READ_WRITE){
-                singles.put(pid, lockStateMap.get(pid).get(0).getTid());
-//                singles
-            }
+    /** Iterative Tarjan, so long wait chains cannot overflow the stack. */
+    private static final class Tarjan {
+        private final Map<TransactionId, Set<TransactionId>> graph;
+        private final Map<TransactionId, Integer> index = new HashMap<>();
+        private final Map<TransactionId, Integer> lowLink = new HashMap<>();
+        private final Deque<TransactionId> stack = new ArrayDeque<>();
+        private final Set<TransactionId> onStack = new HashSet<>();
+        private final List<List<TransactionId>> components = new ArrayList<>();
+        private int next = 0;
+
+        Tarjan(Map<TransactionId, Set<TransactionId>> graph) {
+            this.graph = graph;
         }
 
-        //create adjacency list with the singles list just created and the waitlist received from above.
-        for (TransactionId tid: waitList.keySet()){
-            TransactionId source = tid;
-            PageId destinationPid = waitList.get(tid);
-            if (singles.containsKey(destinationPid)) {
-                TransactionId destination = singles.get(waitList.get(tid));
-                this.insert(tid, singles.get(waitList.get(tid)));
+        List<List<TransactionId>> run() {
+            for (TransactionId tid : graph.keySet()) {
+                if (!index.containsKey(tid)) {
+                    visit(tid);
+                }
             }
+            return components;
         }
 
-        HashSet<TransactionId> explored = new HashSet<TransactionId>();
-
-        // Main cycle detection code.
-        for (TransactionId tid: this.adjacencyList.keySet()){
-            explored.add(tid);
-            boolean result = this.DFS(tid, explored);
-            if (result == true){
-                flag = 1;
-                break;
-            }
+        private Iterator<TransactionId> successors(TransactionId tid) {
+            return graph.getOrDefault(tid, Collections.emptySet()).iterator();
         }
-        // once the detection is done, clear the adjacency list
-        for (TransactionId tid: waitList.keySet()){
-            if (this.adjacencyList.contains(tid)){
-                this.remove(tid);
+
+        private void visit(TransactionId root) {
+            Deque<TransactionId> path = new ArrayDeque<>();
+            Deque<Iterator<TransactionId>> edges = new ArrayDeque<>();
+            open(root);
+            path.push(root);
+            edges.push(successors(root));
+            while (!path.isEmpty()) {
+                TransactionId v = path.peek();
+                Iterator<TransactionId> it = edges.peek();
+                if (it.hasNext()) {
+                    TransactionId w = it.next();
+                    if (!index.containsKey(w)) {
+                        open(w);
+                        path.push(w);
+                        edges.push(successors(w));
+                    } else if (onStack.contains(w)) {
+                        lowLink.put(v, Math.min(lowLink.get(v), index.get(w)));
+                    }
+                    continue;
+                }
+                path.pop();
+                edges.pop();
+                if (!path.isEmpty()) {
+                    TransactionId u = path.peek();
+                    lowLink.put(u, Math.min(lowLink.get(u), lowLink.get(v)));
+                }
+                if (lowLink.get(v).equals(index.get(v))) {
+                    close(v);
+                }
             }
         }
 
-        return (flag == 0? false:true);
-    }
+        private void open(TransactionId v) {
+            index.put(v, next);
+            lowLink.put(v, next);
+            next++;
+            stack.push(v);
+            onStack.add(v);
+        }
 
-    // helper function for above.
-    public boolean DFS(TransactionId node, HashSet<TransactionId> explored){
-        for (TransactionId tid: this.adjacencyList.get(node)){
-            if (explored.contains(tid)){
-                return true;
-            }
-            explored.add(tid);
-            if (this.DFS(tid, explored)){
-                return true;
+        /** Pop the component rooted at v and keep it if it has a cycle. */
+        private void close(TransactionId v) {
+            List<TransactionId> component = new ArrayList<>();
+            TransactionId w;
+            do {
+                w = stack.pop();
+                onStack.remove(w);
+                component.add(w);
+            } while (!w.equals(v));
+            if (component.size() > 1 || graph.getOrDefault(v, Collections.emptySet()).contains(v)) {
+                components.add(component);
             }
         }
-        return false;
     }
-
-}
\ No newline at end of file
+}
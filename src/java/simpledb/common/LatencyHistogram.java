@@ -0,0 +1,71 @@
+package simpledb.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations with power-of-two buckets in
+ * microseconds: bucket 0 counts durations under 1us, bucket i durations in
+ * [2^(i-1), 2^i) us. Percentiles are reported as the upper bound of their
+ * bucket, so they are accurate to a factor of two.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos) / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        totalNanos.add(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /** @return the mean duration in microseconds, or 0 if nothing was recorded */
+    public double getMeanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / 1000.0 / n;
+    }
+
+    /**
+     * @param p a fraction between 0 and 1, e.g. 0.99
+     * @return an upper bound in microseconds on the p-th percentile
+     */
+    public long getPercentileMicros(double p) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(p * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        totalNanos.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1fus p50<=%dus p99<=%dus",
+                getCount(), getMeanMicros(), getPercentileMicros(0.5), getPercentileMicros(0.99));
+    }
+}
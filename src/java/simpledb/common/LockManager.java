@@ -1,227 +1,881 @@
 package simpledb.common;
 
-import simpledb.storage.BufferPool;
-import simpledb.storage.Page;
+import simpledb.storage.Field;
 import simpledb.storage.PageId;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-
-/*
-Allowed situations:
- 1. TrA is reading
- 2. TrA, TrB are reading
- 3. TrA is reading and writing
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager implements strict two-phase locking with hierarchical
+ * {@link LockMode}s at two levels of granularity, tables and pages. Before
+ * a transaction locks a page S (READ_ONLY) or X (READ_WRITE), it locks the
+ * page's table IS or IX. A table lock of S, SIX or X covers the pages
+ * under it, so no page locks are taken for them. Once a transaction holds
+ * more than {@link #ESCALATION_THRESHOLD_PROPERTY} page locks in one table,
+ * it tries to escalate to a table S (or X, when writing) lock and drops
+ * the page locks that the table lock covers. Escalation never waits; if the
+ * table lock is not free it is tried again on the next page.
+ * <p>
+ * Indexes may also lock key ranges instead of whole pages, for next-key
+ * locking: the range of a key holds the key itself and the gap below it,
+ * down to the next smaller key in the index, and the range of a null key
+ * is the gap at the end of the index. Key-range locks sit under their
+ * table's intention lock like page locks and are covered by a table lock
+ * in the same way. They are counted apart from page locks, against their
+ * own {@link #KEY_RANGE_ESCALATION_THRESHOLD_PROPERTY}: a scan of a few
+ * index leaves locks many ranges, and should not escalate as early as a
+ * scan that locks as many pages.
+ * <p>
+ * The lock table is split into {@link #STRIPES} stripes by key hash, and
+ * each stripe has its own latch, so transactions locking different pages
+ * rarely contend. Each lock keeps its holders and an explicit FIFO queue of
+ * waiting requests. A new request waits if it conflicts with a holder or if
+ * anyone is queued before it; a request that strengthens a lock its
+ * transaction already holds goes to the front of the queue. Every waiting
+ * request parks on its own Condition, and a release grants and wakes only
+ * the requests at the head of the queue that have become compatible.
+ * <p>
+ * Blocked transactions publish their waits-for edges (the holders they
+ * conflict with and the requests queued ahead of them) to a
+ * {@link DependencyGraph}. Waiters do no deadlock detection themselves:
+ * while anyone is waiting, a detector thread looks for cycles in the graph
+ * every {@link #DETECT_INTERVAL_PROPERTY} milliseconds and aborts the
+ * youngest transaction of each cycle, which has done the least work. A
+ * cycle must be seen with the same victim request on two consecutive runs,
+ * so edges that changed while the graph was read never abort anyone.
+ * <p>
+ * A transaction may also bound each of its lock waits, by default with
+ * {@link #LOCK_TIMEOUT_PROPERTY} or per transaction with
+ * {@link #setLockTimeout}; a wait that times out aborts the transaction.
+ * Waits, aborts and their latencies are recorded in {@link #getStats}.
  */
 public class LockManager {
 
-    /** Mapping of each page to its locks **/
-    private HashMap<PageId, PageLocks> pageLock;
-    /** Mapping of transaction to all pages it holds locks on **/
-    private HashMap<TransactionId, HashSet<PageId>> transactions;
-    private HashMap<PageId, HashSet<TransactionId>> waitList;
+    /** Number of lock table stripes; a power of two. */
+    static final int STRIPES = 64;
+
+    /**
+     * System property for how often, in milliseconds, the deadlock detector
+     * runs while transactions are waiting.
+     */
+    public static final String DETECT_INTERVAL_PROPERTY = "simpledb.common.LockManager.detectInterval";
+
+    /**
+     * System property for how many page locks one transaction may hold in a
+     * table before they are escalated to a table lock.
+     */
+    public static final String ESCALATION_THRESHOLD_PROPERTY = "simpledb.common.LockManager.escalationThreshold";
+
+    /**
+     * System property for how many key-range locks one transaction may hold
+     * in an index before they are escalated to a table lock.
+     */
+    public static final String KEY_RANGE_ESCALATION_THRESHOLD_PROPERTY =
+            "simpledb.common.LockManager.keyRangeEscalationThreshold";
+
+    /**
+     * System property for how long, in milliseconds, a transaction waits for
+     * a lock before it aborts; 0 waits until the lock is granted or the
+     * deadlock detector picks the transaction.
+     */
+    public static final String LOCK_TIMEOUT_PROPERTY = "simpledb.common.LockManager.lockTimeout";
+
+    private static final long DEFAULT_DETECT_INTERVAL_MILLIS = 50;
+
+    private static final int DEFAULT_ESCALATION_THRESHOLD = 512;
+
+    private static final int DEFAULT_KEY_RANGE_ESCALATION_THRESHOLD = 4096;
+
+    private final long detectIntervalMillis;
+
+    private final int escalationThreshold;
+
+    private final int keyRangeEscalationThreshold;
+
+    private final long defaultLockTimeoutMillis;
+
+    /** Lock wait timeouts set for single transactions, in milliseconds. */
+    private final ConcurrentHashMap<TransactionId, Long> lockTimeouts = new ConcurrentHashMap<>();
 
-    private static final long TIMEOUT_MILLIS = 100;
+    private final LockStats stats = new LockStats();
 
-    class PageLocks{
-        private TransactionId exclusiveLock;
-        private HashSet<TransactionId> sharedLock;
+    private final Stripe[] stripes = new Stripe[STRIPES];
 
-        PageLocks(){
-            exclusiveLock = null;
-            sharedLock = new HashSet<>();
+    /** Mapping of transaction to all tables, pages and key ranges it holds locks on **/
+    private final ConcurrentHashMap<TransactionId, HeldLocks> transactions = new ConcurrentHashMap<>();
+
+    /** Mapping of each blocked transaction to the transactions it waits for **/
+    private final DependencyGraph waitsFor = new DependencyGraph();
+
+    /** Mapping of each blocked transaction to the request it waits on **/
+    private final ConcurrentHashMap<TransactionId, Request> waiting = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean detectorRunning = new AtomicBoolean(false);
+
+    /** Victim requests chosen by the last detector run, aborted if chosen again. */
+    private Set<Request> suspects = Collections.emptySet();
+
+    /** Lock table key of a whole table; pages are keyed by their PageId. */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
         }
 
-        void setExclusiveLock(TransactionId tid){
-            exclusiveLock = tid;
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
         }
 
-        void setSharedLock(TransactionId tid){
-            sharedLock.add(tid);
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(tableId) * 0x9E3779B1;
         }
 
-        HashSet<TransactionId> getSharedLock(TransactionId tid){
-            return (HashSet<TransactionId>) sharedLock.clone();
+        @Override
+        public String toString() {
+            return "table " + tableId;
+        }
+    }
+
+    /** Lock table key of the range of an index key; a null key is the end of the index. */
+    private static final class KeyRange {
+        final int tableId;
+        final Field key;
+
+        KeyRange(int tableId, Field key) {
+            this.tableId = tableId;
+            this.key = key;
         }
 
-        void releaseExclusiveLock(TransactionId tid){
-            if(holdsExclusiveLock(tid)) {
-                exclusiveLock = null;
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof KeyRange)) {
+                return false;
             }
+            KeyRange other = (KeyRange) o;
+            return other.tableId == tableId && Objects.equals(other.key, key);
         }
 
-        void releaseReadLock(TransactionId tid){
-            sharedLock.remove(tid);
+        @Override
+        public int hashCode() {
+            return (31 * tableId + Objects.hashCode(key)) * 0x9E3779B1;
         }
 
-        boolean holdsExclusiveLock(TransactionId tid){
-            if (exclusiveLock ==null)
-                return false;
-            return exclusiveLock.equals(tid);
+        @Override
+        public String toString() {
+            return "table " + tableId + (key == null ? " end of index" : " key " + key);
         }
+    }
+
+    /**
+     * The modes one transaction holds, by table and by page or key range
+     * within each table.
+     */
+    private static final class HeldLocks {
+        final ConcurrentHashMap<Integer, LockMode> tables = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<Integer, ConcurrentHashMap<Object, LockMode>> pages = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<Integer, ConcurrentHashMap<Object, LockMode>> ranges = new ConcurrentHashMap<>();
+
+        Map<Object, LockMode> pagesOf(int tableId) {
+            Map<Object, LockMode> held = pages.get(tableId);
+            return held == null ? Collections.emptyMap() : held;
+        }
+
+        Map<Object, LockMode> rangesOf(int tableId) {
+            Map<Object, LockMode> held = ranges.get(tableId);
+            return held == null ? Collections.emptyMap() : held;
+        }
+    }
+
+    private static final class Stripe {
+        final ReentrantLock latch = new ReentrantLock();
+        final HashMap<Object, Lock> locks = new HashMap<>();
+    }
+
+    /** A request waiting in the queue of a lock. */
+    private static final class Request {
+        final TransactionId tid;
+        final Object key;
+        final LockMode mode;
+        final Condition granted;
+        boolean isGranted = false;
+        boolean aborted = false;
+        boolean timedOut = false;
+
+        Request(TransactionId tid, Object key, LockMode mode, Condition granted) {
+            this.tid = tid;
+            this.key = key;
+            this.mode = mode;
+            this.granted = granted;
+        }
+    }
+
+    /** Holders and waiters of the lock on one table or page; guarded by its stripe latch. */
+    private static final class Lock {
+        final Map<TransactionId, LockMode> holders = new HashMap<>(4);
+        final ArrayDeque<Request> queue = new ArrayDeque<>();
 
-        boolean holdsSharedLock(TransactionId tid){
-            return sharedLock.contains(tid);
+        /** @return true if the holders other than tid allow granting mode */
+        boolean compatible(TransactionId tid, LockMode mode) {
+            for (Map.Entry<TransactionId, LockMode> e : holders.entrySet()) {
+                if (!e.getKey().equals(tid) && !e.getValue().compatible(mode)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** @return the mode tid holds after the grant */
+        LockMode grant(TransactionId tid, LockMode mode) {
+            return holders.merge(tid, mode, LockMode::supremum);
+        }
+
+        boolean isFree() {
+            return holders.isEmpty() && queue.isEmpty();
         }
     }
 
     public LockManager(){
-        pageLock = new HashMap<>();
-        transactions = new HashMap<>();
-        waitList = new HashMap<>();
+        this(Long.getLong(DETECT_INTERVAL_PROPERTY, DEFAULT_DETECT_INTERVAL_MILLIS),
+                Integer.getInteger(ESCALATION_THRESHOLD_PROPERTY, DEFAULT_ESCALATION_THRESHOLD),
+                Integer.getInteger(KEY_RANGE_ESCALATION_THRESHOLD_PROPERTY, DEFAULT_KEY_RANGE_ESCALATION_THRESHOLD),
+                Long.getLong(LOCK_TIMEOUT_PROPERTY, 0));
+    }
+
+    /**
+     * @param detectIntervalMillis how often the deadlock detector runs while
+     *                             transactions are waiting
+     * @param escalationThreshold  how many page locks a transaction may hold
+     *                             in one table before escalating
+     */
+    public LockManager(long detectIntervalMillis, int escalationThreshold) {
+        this(detectIntervalMillis, escalationThreshold, 0);
+    }
+
+    /**
+     * @param detectIntervalMillis how often the deadlock detector runs while
+     *                             transactions are waiting
+     * @param escalationThreshold  how many page locks a transaction may hold
+     *                             in one table before escalating
+     * @param lockTimeoutMillis    how long a lock wait may take before the
+     *                             transaction aborts, or 0 for no limit
+     */
+    public LockManager(long detectIntervalMillis, int escalationThreshold, long lockTimeoutMillis) {
+        this(detectIntervalMillis, escalationThreshold, DEFAULT_KEY_RANGE_ESCALATION_THRESHOLD, lockTimeoutMillis);
+    }
+
+    /**
+     * @param detectIntervalMillis        how often the deadlock detector runs
+     *                                    while transactions are waiting
+     * @param escalationThreshold         how many page locks a transaction may
+     *                                    hold in one table before escalating
+     * @param keyRangeEscalationThreshold how many key-range locks a
+     *                                    transaction may hold in one index
+     *                                    before escalating
+     * @param lockTimeoutMillis           how long a lock wait may take before
+     *                                    the transaction aborts, or 0 for no limit
+     */
+    public LockManager(long detectIntervalMillis, int escalationThreshold, int keyRangeEscalationThreshold,
+                       long lockTimeoutMillis) {
+        if (detectIntervalMillis <= 0) {
+            throw new IllegalArgumentException("detect interval must be positive");
+        }
+        if (escalationThreshold <= 0 || keyRangeEscalationThreshold <= 0) {
+            throw new IllegalArgumentException("escalation threshold must be positive");
+        }
+        this.detectIntervalMillis = detectIntervalMillis;
+        this.escalationThreshold = escalationThreshold;
+        this.keyRangeEscalationThreshold = keyRangeEscalationThreshold;
+        this.defaultLockTimeoutMillis = Math.max(0, lockTimeoutMillis);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe stripe(Object key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static LockMode pageMode(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? LockMode.X : LockMode.S;
+    }
+
+    private static boolean covers(LockMode held, LockMode mode) {
+        return held != null && held.covers(mode);
+    }
+
+    /**
+     * @return true if holding tableMode on a table grants mode on every page
+     *   and key range in it; an intention mode grants nothing below it
+     */
+    private static boolean tableCovers(LockMode tableMode, LockMode mode) {
+        return tableMode == LockMode.X
+                || (mode == LockMode.S && (tableMode == LockMode.S || tableMode == LockMode.SIX));
+    }
+
+    /** @return the lock statistics of this manager */
+    public LockStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Bound each lock wait of tid to timeoutMillis, instead of the default,
+     * until tid releases all its locks.
+     *
+     * @param timeoutMillis the longest wait, or 0 for no limit
+     */
+    public void setLockTimeout(TransactionId tid, long timeoutMillis) {
+        lockTimeouts.put(tid, Math.max(0, timeoutMillis));
     }
 
     /** Returns true if transaction has any kind of lock (read/write/both) on page **/
-    public synchronized boolean holdsLock(TransactionId tid, PageId pid){
-        PageLocks currLocks = pageLock.get(pid);
-        if (currLocks==null)
+    public boolean holdsLock(TransactionId tid, PageId pid){
+        HeldLocks held = transactions.get(tid);
+        if (held == null) {
             return false;
-        return currLocks.holdsSharedLock(tid) || currLocks.holdsExclusiveLock(tid);
+        }
+        return covers(held.tables.get(pid.getTableId()), LockMode.S)
+                || held.pagesOf(pid.getTableId()).containsKey(pid);
     }
 
-    public synchronized void acquire(TransactionId tid, PageId pid, Permissions perm) throws InterruptedException, TransactionAbortedException {
-        pageLock.putIfAbsent(pid, new PageLocks());
-        transactions.putIfAbsent(tid, new HashSet<>());
-        waitList.putIfAbsent(pid, new HashSet<TransactionId>());
-
-        HashSet<PageId> currPages = transactions.get(tid);
-        PageLocks currLocks = pageLock.get(pid);
-        HashSet<TransactionId> currWait = waitList.get(pid);
+    /**
+     * @return the mode tid holds on the table with the given id, or null if
+     *   it holds none
+     */
+    public LockMode tableLockMode(TransactionId tid, int tableId) {
+        HeldLocks held = transactions.get(tid);
+        return held == null ? null : held.tables.get(tableId);
+    }
 
+    /**
+     * Acquire a lock on pid for tid, blocking until it is granted. Takes the
+     * intention lock on the page's table first, and nothing if a table lock
+     * of tid already covers the page.
+     *
+     * @throws TransactionAbortedException if tid is chosen as the victim of
+     *   a deadlock while it waits, or a wait times out
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm) throws InterruptedException, TransactionAbortedException {
+        long start = System.nanoTime();
+        try {
+            acquireLocks(tid, pid, perm);
+        } finally {
+            stats.acquired(System.nanoTime() - start);
+        }
+    }
 
-        if(perm==Permissions.READ_ONLY){
-            if(((currLocks.exclusiveLock !=null) || (currWait.size()!=0)) && !(currLocks.holdsExclusiveLock(tid) || currLocks.holdsSharedLock(tid))){
-                while(currLocks.exclusiveLock !=null || (currWait.size()!=0)){
-                    if(deadlock(pid,tid)){
-                        notify();
-                        throw new TransactionAbortedException("TA");
-                    }
-                    wait(TIMEOUT_MILLIS);
-                }
-            }
-            currLocks.setSharedLock(tid);
-            currPages.add(pid);
+    private void acquireLocks(TransactionId tid, PageId pid, Permissions perm) throws InterruptedException, TransactionAbortedException {
+        LockMode mode = pageMode(perm);
+        int tableId = pid.getTableId();
+        HeldLocks held = transactions.computeIfAbsent(tid, k -> new HeldLocks());
+        LockMode tableMode = held.tables.get(tableId);
+        if (covers(tableMode, mode)) {
             return;
         }
-        else if(perm==Permissions.READ_WRITE){
+        LockMode intention = mode == LockMode.X ? LockMode.IX : LockMode.IS;
+        if (!covers(tableMode, intention)) {
+            lock(tid, new TableKey(tableId), intention);
+        }
+        lock(tid, pid, mode);
+        if (held.pagesOf(tableId).size() > escalationThreshold) {
+            escalate(tid, held, tableId, mode);
+        }
+    }
 
-            if(currLocks.holdsExclusiveLock(tid)){
-                currWait.remove(tid);
-                currLocks.setSharedLock(tid);
-                currPages.add(pid);
-                return;
-            }
-            currWait.add(tid);
-            if((currLocks.exclusiveLock !=null)  && (!currLocks.holdsExclusiveLock(tid))){
-                while(currLocks.exclusiveLock !=null){
-                    if(deadlock(pid,tid)){
-                        notify();
-                        throw new TransactionAbortedException("TA");
-                    }
-                    wait(TIMEOUT_MILLIS);
-                }
-            }
-            currLocks.setExclusiveLock(tid);
-            currLocks.sharedLock.remove(tid);
-            HashSet<TransactionId> p_lock = currLocks.getSharedLock(tid); // Returns a clone, therefore removing tid does not affect locks
-            p_lock.remove(tid);
-            while(!p_lock.isEmpty()){
-                if(deadlock(pid,tid)){
-
-                    currWait.remove(tid);
-                    currLocks.releaseExclusiveLock(tid);
-                    notify();
-                    throw new TransactionAbortedException("TA");
-                }
-                wait(TIMEOUT_MILLIS);
-                p_lock = currLocks.getSharedLock(tid);
-                p_lock.remove(tid);
+    /**
+     * Lock the range of key in the index with the given table id for tid,
+     * blocking until it is granted, and hold it until tid releases all its
+     * locks. Takes the intention lock on the table first, and nothing if a
+     * table lock of tid already covers the range.
+     *
+     * @param key  the key whose range to lock, or null for the end of the index
+     * @param mode S to read the range, X to change the key, or IX for an
+     *             insert into the gap below key
+     * @throws TransactionAbortedException if tid is chosen as the victim of
+     *   a deadlock while it waits, or a wait times out
+     */
+    public void acquireKeyRange(TransactionId tid, int tableId, Field key, LockMode mode)
+            throws InterruptedException, TransactionAbortedException {
+        long start = System.nanoTime();
+        try {
+            lockKeyRange(tid, tableId, new KeyRange(tableId, key), mode);
+        } finally {
+            stats.acquired(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Wait until tid could lock the range of key in mode, without keeping
+     * the lock: an instant-duration lock, as an insert takes on the range
+     * it inserts into so that it waits for readers of the range but not
+     * for other inserts. A lock tid already held on the range is kept,
+     * strengthened to mode.
+     *
+     * @see #acquireKeyRange
+     */
+    public void awaitKeyRange(TransactionId tid, int tableId, Field key, LockMode mode)
+            throws InterruptedException, TransactionAbortedException {
+        long start = System.nanoTime();
+        try {
+            KeyRange range = new KeyRange(tableId, key);
+            HeldLocks held = transactions.computeIfAbsent(tid, k -> new HeldLocks());
+            boolean wasHeld = held.rangesOf(tableId).containsKey(range);
+            if (lockKeyRange(tid, tableId, range, mode) && !wasHeld) {
+                releaseRange(tid, held, tableId, range);
             }
-            currWait.remove(pid);
-            currLocks.setSharedLock(tid);
-            currPages.add(pid);
-            return;
+        } finally {
+            stats.acquired(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Check like awaitKeyRange whether tid could lock the range of key in
+     * mode, but without waiting. Never blocks.
+     *
+     * @return true if no other transaction holds or waits for a conflicting
+     *   lock on the range
+     */
+    public boolean tryAwaitKeyRange(TransactionId tid, int tableId, Field key, LockMode mode) {
+        KeyRange range = new KeyRange(tableId, key);
+        HeldLocks held = transactions.computeIfAbsent(tid, k -> new HeldLocks());
+        boolean wasHeld = held.rangesOf(tableId).containsKey(range);
+        if (!tryAcquireKeyRange(tid, tableId, key, mode)) {
+            return false;
+        }
+        if (!wasHeld) {
+            releaseRange(tid, held, tableId, range);
         }
+        return true;
     }
 
-    public synchronized boolean upgrade(TransactionId tid, PageId pid){
-        PageLocks currLocks = pageLock.get(pid);
+    /** Give up an instant-duration lock on range, and the intention lock it alone needed. */
+    private void releaseRange(TransactionId tid, HeldLocks held, int tableId, KeyRange range) {
+        ConcurrentHashMap<Object, LockMode> ranges = held.ranges.get(tableId);
+        if (ranges != null && ranges.remove(range) != null) {
+            releaseLock(tid, range);
+        }
+        dropUnusedIntention(tid, held, tableId);
+    }
 
-        if (currLocks==null || currLocks.holdsExclusiveLock(tid) || !currLocks.holdsSharedLock(tid))
+    /**
+     * Lock the range of key for tid like acquireKeyRange, but only if the
+     * lock can be granted right away. Never blocks.
+     *
+     * @return true if tid now holds a lock covering the range
+     */
+    public boolean tryAcquireKeyRange(TransactionId tid, int tableId, Field key, LockMode mode) {
+        HeldLocks held = transactions.computeIfAbsent(tid, k -> new HeldLocks());
+        LockMode tableMode = held.tables.get(tableId);
+        if (tableCovers(tableMode, mode)) {
+            return true;
+        }
+        LockMode intention = mode == LockMode.S ? LockMode.IS : LockMode.IX;
+        if (!covers(tableMode, intention) && !tryLock(tid, new TableKey(tableId), intention)) {
+            return false;
+        }
+        if (!tryLock(tid, new KeyRange(tableId, key), mode)) {
+            dropUnusedIntention(tid, held, tableId);
             return false;
+        }
+        if (held.rangesOf(tableId).size() > keyRangeEscalationThreshold) {
+            escalate(tid, held, tableId, mode == LockMode.S ? LockMode.S : LockMode.X);
+        }
+        return true;
+    }
+
+    /** @return false if a table lock of tid covers the range, so nothing was locked */
+    private boolean lockKeyRange(TransactionId tid, int tableId, KeyRange range, LockMode mode)
+            throws InterruptedException, TransactionAbortedException {
+        HeldLocks held = transactions.computeIfAbsent(tid, k -> new HeldLocks());
+        LockMode tableMode = held.tables.get(tableId);
+        if (tableCovers(tableMode, mode)) {
+            return false;
+        }
+        LockMode intention = mode == LockMode.S ? LockMode.IS : LockMode.IX;
+        if (!covers(tableMode, intention)) {
+            lock(tid, new TableKey(tableId), intention);
+        }
+        lock(tid, range, mode);
+        if (held.rangesOf(tableId).size() > keyRangeEscalationThreshold) {
+            escalate(tid, held, tableId, mode == LockMode.S ? LockMode.S : LockMode.X);
+        }
+        return true;
+    }
 
-        // transaction has read lock and no one else has a read lock
-        if (currLocks.sharedLock.size()==1) {
-            currLocks.setExclusiveLock(tid);
+    /**
+     * Take a shared lock on pid for tid if it can be granted right away,
+     * i.e. no other transaction holds or is waiting for an exclusive lock on
+     * the page or its table. Never blocks.
+     *
+     * @return true if the lock was granted
+     */
+    public boolean tryAcquireShared(TransactionId tid, PageId pid) {
+        int tableId = pid.getTableId();
+        HeldLocks held = transactions.computeIfAbsent(tid, k -> new HeldLocks());
+        LockMode tableMode = held.tables.get(tableId);
+        if (covers(tableMode, LockMode.S)) {
             return true;
         }
-        return false;
+        if (!covers(tableMode, LockMode.IS) && !tryLock(tid, new TableKey(tableId), LockMode.IS)) {
+            return false;
+        }
+        if (!tryLock(tid, pid, LockMode.S)) {
+            dropUnusedIntention(tid, held, tableId);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Upgrade tid's shared lock on pid to an exclusive lock if no other
+     * transaction holds or waits for the page or its table. Never blocks.
+     *
+     * @return true if tid now holds the exclusive lock it did not hold before
+     */
+    public boolean upgrade(TransactionId tid, PageId pid){
+        HeldLocks held = transactions.get(tid);
+        int tableId = pid.getTableId();
+        if (held == null || held.pagesOf(tableId).get(pid) != LockMode.S) {
+            return false;
+        }
+        if (!covers(held.tables.get(tableId), LockMode.IX) && !tryLock(tid, new TableKey(tableId), LockMode.IX)) {
+            return false;
+        }
+        return tryLock(tid, pid, LockMode.X);
     }
 
     /** To release ALL LOCKS held on SPECIFIED PAGE by SPECIFIED TRANSACTION **/
-    public synchronized void release(TransactionId tid, PageId pid){
-        //if transaction holds read and write locks, releases both
-        PageLocks currLocks = pageLock.get(pid);
-        currLocks.releaseReadLock(tid);
-        currLocks.releaseExclusiveLock(tid);
+    public void release(TransactionId tid, PageId pid){
+        HeldLocks held = transactions.get(tid);
+        if (held == null) {
+            return;
+        }
+        ConcurrentHashMap<Object, LockMode> pages = held.pages.get(pid.getTableId());
+        if (pages != null && pages.remove(pid) != null) {
+            releaseLock(tid, pid);
+        }
+        dropUnusedIntention(tid, held, pid.getTableId());
+    }
 
-        HashSet<PageId> currPages = transactions.get(tid);
-        HashSet<TransactionId> currWait = waitList.get(pid);
-        currWait.remove(tid);
-        currPages.remove(pid);
-        notifyAll();
+    /**
+     * Release tid's lock on pid if it is a shared lock, and leave an
+     * exclusive one or a covering table lock alone. Like {@link #release}
+     * this gives up two-phase locking for the page, so it is only safe for
+     * pages whose contents are protected by other locks, such as index
+     * leaves read under key-range locks.
+     */
+    public void releaseShared(TransactionId tid, PageId pid) {
+        HeldLocks held = transactions.get(tid);
+        if (held == null) {
+            return;
+        }
+        ConcurrentHashMap<Object, LockMode> pages = held.pages.get(pid.getTableId());
+        if (pages != null && pages.remove(pid, LockMode.S)) {
+            releaseLock(tid, pid);
+            dropUnusedIntention(tid, held, pid.getTableId());
+        }
     }
 
     /** To release ALL LOCKS held on ALL PAGES by SPECIFIED TRANSACTION **/
-    public synchronized void releaseAll(TransactionId tid) {
-        HashSet<PageId> currPages = transactions.get(tid);
-        if(currPages == null){
+    public void releaseAll(TransactionId tid) {
+        lockTimeouts.remove(tid);
+        HeldLocks held = transactions.remove(tid);
+        if (held == null) {
+            return;
+        }
+        for (Map<Object, LockMode> pages : held.pages.values()) {
+            for (Object key : pages.keySet()) {
+                releaseLock(tid, key);
+            }
+        }
+        for (Map<Object, LockMode> ranges : held.ranges.values()) {
+            for (Object key : ranges.keySet()) {
+                releaseLock(tid, key);
+            }
+        }
+        for (int tableId : held.tables.keySet()) {
+            releaseLock(tid, new TableKey(tableId));
+        }
+    }
+
+    /** An intention lock with no page or key-range locks under it protects nothing; drop it. */
+    private void dropUnusedIntention(TransactionId tid, HeldLocks held, int tableId) {
+        LockMode tableMode = held.tables.get(tableId);
+        if ((tableMode == LockMode.IS || tableMode == LockMode.IX)
+                && held.pagesOf(tableId).isEmpty() && held.rangesOf(tableId).isEmpty()) {
+            held.tables.remove(tableId);
+            releaseLock(tid, new TableKey(tableId));
+        }
+    }
+
+    /**
+     * Replace tid's page and key-range locks in a table by one table lock,
+     * if the table lock can be granted right away.
+     */
+    private void escalate(TransactionId tid, HeldLocks held, int tableId, LockMode mode) {
+        if (!tryLock(tid, new TableKey(tableId), mode)) {
             return;
         }
+        LockMode tableMode = held.tables.get(tableId);
+        for (Map<Object, LockMode> locks : Arrays.asList(held.pagesOf(tableId), held.rangesOf(tableId))) {
+            for (Map.Entry<Object, LockMode> e : locks.entrySet()) {
+                if (tableMode.covers(e.getValue())) {
+                    locks.remove(e.getKey());
+                    releaseLock(tid, e.getKey());
+                }
+            }
+        }
+        stats.escalated();
+        Debug.log(1, "LockManager: escalated %s to %s on table %d", tid, tableMode, tableId);
+    }
+
+    /** Grant mode on key to tid, blocking until it is compatible. */
+    private void lock(TransactionId tid, Object key, LockMode mode) throws InterruptedException, TransactionAbortedException {
+        Stripe s = stripe(key);
+        s.latch.lock();
+        try {
+            Lock lock = s.locks.computeIfAbsent(key, k -> new Lock());
+            LockMode current = lock.holders.get(tid);
+            if (covers(current, mode)) {
+                return;
+            }
+            if (lock.compatible(tid, mode) && (current != null || lock.queue.isEmpty())) {
+                noteHeld(tid, key, lock.grant(tid, mode));
+                if (current != null) {
+                    stats.upgraded(0);
+                }
+                return;
+            }
 
-        Iterator<PageId> page_iter = currPages.iterator();
-        while (page_iter.hasNext()) {
-            // try disconnecting vertices
-            PageId pid = page_iter.next();
-            PageLocks currLocks = pageLock.get(pid);
-            currLocks.releaseReadLock(tid);
-            currLocks.releaseExclusiveLock(tid);
-            HashSet<TransactionId> currWait = waitList.get(pid);
-            currWait.remove(tid);
+            long start = System.nanoTime();
+            long timeout = TimeUnit.MILLISECONDS.toNanos(lockTimeouts.getOrDefault(tid, defaultLockTimeoutMillis));
+            Request r = new Request(tid, key, mode, s.latch.newCondition());
+            if (current != null) {
+                lock.queue.addFirst(r);
+            } else {
+                lock.queue.addLast(r);
+            }
+            try {
+                updateWaitsFor(lock);
+                waiting.put(tid, r);
+                startDetector();
+                while (!r.isGranted) {
+                    if (r.aborted) {
+                        throw new TransactionAbortedException("deadlock on " + key);
+                    }
+                    if (timeout == 0) {
+                        r.granted.await();
+                        continue;
+                    }
+                    long remaining = timeout - (System.nanoTime() - start);
+                    if (remaining <= 0) {
+                        r.timedOut = true;
+                        throw new TransactionAbortedException("lock wait timeout on " + key);
+                    }
+                    r.granted.awaitNanos(remaining);
+                }
+            } finally {
+                waiting.remove(tid, r);
+                long waited = System.nanoTime() - start;
+                if (r.isGranted) {
+                    stats.waited(key, waited);
+                    if (current != null) {
+                        stats.upgraded(waited);
+                    }
+                } else if (r.aborted || r.timedOut) {
+                    stats.aborted(key, waited, r.timedOut);
+                }
+                if (!r.isGranted) {
+                    // aborted or interrupted: leave the queue and let others move up
+                    lock.queue.remove(r);
+                    waitsFor.remove(tid);
+                    grantWaiters(lock);
+                    if (lock.isFree()) {
+                        s.locks.remove(key);
+                    }
+                }
+            }
+        } finally {
+            s.latch.unlock();
         }
-        transactions.remove(tid);
-        transactions.put(tid, new HashSet<>());
-        notifyAll();
     }
 
-    public synchronized boolean deadlock(PageId pid, TransactionId tid){
-        HashSet<PageId> page_iter =  transactions.get(tid);
-        if(page_iter == null){ // if transaction has no resources, no deadlock
+    /** Grant mode on key to tid if that needs no waiting. */
+    private boolean tryLock(TransactionId tid, Object key, LockMode mode) {
+        Stripe s = stripe(key);
+        s.latch.lock();
+        try {
+            Lock lock = s.locks.computeIfAbsent(key, k -> new Lock());
+            LockMode current = lock.holders.get(tid);
+            if (covers(current, mode)) {
+                return true;
+            }
+            if (lock.compatible(tid, mode) && (current != null || lock.queue.isEmpty())) {
+                noteHeld(tid, key, lock.grant(tid, mode));
+                return true;
+            }
+            if (lock.isFree()) {
+                s.locks.remove(key);
+            }
             return false;
+        } finally {
+            s.latch.unlock();
+        }
+    }
+
+    private void releaseLock(TransactionId tid, Object key) {
+        Stripe s = stripe(key);
+        s.latch.lock();
+        try {
+            Lock lock = s.locks.get(key);
+            if (lock == null) {
+                return;
+            }
+            lock.holders.remove(tid);
+            grantWaiters(lock);
+            if (lock.isFree()) {
+                s.locks.remove(key);
+            }
+        } finally {
+            s.latch.unlock();
+        }
+    }
+
+    /** Record that tid now holds mode on key. The caller holds the latch of key. */
+    private void noteHeld(TransactionId tid, Object key, LockMode mode) {
+        HeldLocks held = transactions.computeIfAbsent(tid, k -> new HeldLocks());
+        if (key instanceof TableKey) {
+            held.tables.put(((TableKey) key).tableId, mode);
+        } else if (key instanceof KeyRange) {
+            held.ranges.computeIfAbsent(((KeyRange) key).tableId, k -> new ConcurrentHashMap<>()).put(key, mode);
+        } else {
+            held.pages.computeIfAbsent(((PageId) key).getTableId(), k -> new ConcurrentHashMap<>()).put(key, mode);
         }
+    }
 
-        for(PageId p: page_iter){
+    /**
+     * Grant the requests at the head of the queue that no longer conflict,
+     * in FIFO order, and wake exactly those. The caller holds the latch.
+     */
+    private void grantWaiters(Lock lock) {
+        boolean granted = false;
+        while (!lock.queue.isEmpty()) {
+            Request r = lock.queue.peekFirst();
+            if (!lock.compatible(r.tid, r.mode)) {
+                break;
+            }
+            lock.queue.pollFirst();
+            noteHeld(r.tid, r.key, lock.grant(r.tid, r.mode));
+            r.isGranted = true;
+            waitsFor.remove(r.tid);
+            r.granted.signal();
+            granted = true;
+        }
+        if (granted || !lock.queue.isEmpty()) {
+            updateWaitsFor(lock);
+        }
+    }
 
-            for(TransactionId t :  waitList.get(p)) {
-                if (t == null) { // if no one wants this resource, move to next
-                    continue;
+    /**
+     * Recompute the waits-for edges of every request queued on lock: the
+     * holders it conflicts with and the request right ahead of it. Requests
+     * further ahead are reachable through that one, so the graph has the
+     * same cycles with edges linear, not quadratic, in the queue length.
+     * The caller holds the latch.
+     */
+    private void updateWaitsFor(Lock lock) {
+        TransactionId ahead = null;
+        for (Request r : lock.queue) {
+            Set<TransactionId> edges = new HashSet<>();
+            if (ahead != null) {
+                edges.add(ahead);
+            }
+            for (Map.Entry<TransactionId, LockMode> e : lock.holders.entrySet()) {
+                if (!e.getValue().compatible(r.mode)) {
+                    edges.add(e.getKey());
                 }
-                if (t == tid){
-                    continue;
+            }
+            edges.remove(r.tid);
+            waitsFor.setEdges(r.tid, edges);
+            ahead = r.tid;
+        }
+    }
+
+    private void startDetector() {
+        if (detectorRunning.compareAndSet(false, true)) {
+            Thread t = new Thread(this::detectLoop, "simpledb-deadlock-detector");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /** Run the detector until no transaction is waiting. */
+    private void detectLoop() {
+        while (true) {
+            try {
+                Thread.sleep(detectIntervalMillis);
+            } catch (InterruptedException e) {
+                detectorRunning.set(false);
+                return;
+            }
+            detectDeadlocks();
+            if (waiting.isEmpty()) {
+                detectorRunning.set(false);
+                // a waiter that arrived after the check restarts us, or we carry on
+                if (waiting.isEmpty() || !detectorRunning.compareAndSet(false, true)) {
+                    return;
                 }
-                if (transactions.get(t).contains(pid)) { // if someone wants a resource and has our page, cycle exists
-                    return true;
+            }
+        }
+    }
+
+    /**
+     * Find the deadlocks in the waits-for graph and abort the youngest
+     * waiting transaction of each one.
+     */
+    void detectDeadlocks() {
+        Set<Request> victims = new HashSet<>();
+        for (List<TransactionId> cycle : waitsFor.deadlocks()) {
+            Request victim = null;
+            for (TransactionId tid : cycle) {
+                Request r = waiting.get(tid);
+                if (r != null && (victim == null || tid.getId() > victim.tid.getId())) {
+                    victim = r;
                 }
-                if (deadlock(pid, t))  // recursive call
-                    return true;
             }
+            if (victim != null) {
+                victims.add(victim);
+            }
+        }
+        for (Request r : victims) {
+            if (suspects.contains(r)) {
+                abort(r);
+            }
+        }
+        suspects = victims;
+    }
+
+    /** Wake a waiting request with an abort, unless it was granted meanwhile. */
+    private void abort(Request r) {
+        Stripe s = stripe(r.key);
+        s.latch.lock();
+        try {
+            if (!r.isGranted) {
+                r.aborted = true;
+                r.granted.signal();
+            }
+        } finally {
+            s.latch.unlock();
         }
-        return false;
     }
-}
\ No newline at end of file
+}
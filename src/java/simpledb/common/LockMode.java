@@ -0,0 +1,52 @@
+package simpledb.common;
+
+/**
+ * The modes of hierarchical locking. Pages are locked S or X; the table
+ * that contains them is locked first in the matching intention mode (IS or
+ * IX), or in S, SIX or X to cover all of its pages with one lock.
+ */
+public enum LockMode {
+    /** Intention shared: some pages of the table are locked S. */
+    IS,
+    /** Intention exclusive: some pages of the table are locked X. */
+    IX,
+    /** Shared. */
+    S,
+    /** Shared on the whole table plus intention exclusive on some pages. */
+    SIX,
+    /** Exclusive. */
+    X;
+
+    private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+    };
+
+    private static final LockMode[][] SUPREMUM = {
+            //          IS   IX   S    SIX  X
+            /* IS  */ { IS,  IX,  S,   SIX, X },
+            /* IX  */ { IX,  IX,  SIX, SIX, X },
+            /* S   */ { S,   SIX, S,   SIX, X },
+            /* SIX */ { SIX, SIX, SIX, SIX, X },
+            /* X   */ { X,   X,   X,   X,   X },
+    };
+
+    /** @return true if one transaction may hold this mode while another holds other */
+    public boolean compatible(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /** @return the weakest mode that grants both this mode and other */
+    public LockMode supremum(LockMode other) {
+        return SUPREMUM[ordinal()][other.ordinal()];
+    }
+
+    /** @return true if holding this mode grants everything other does */
+    public boolean covers(LockMode other) {
+        return supremum(other) == this;
+    }
+}
@@ -0,0 +1,211 @@
+package simpledb.common;
+
+import simpledb.storage.PageId;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a {@link LockManager}, and the locks
+ * transactions waited for the longest. Everything is recorded without
+ * locking, so reading the statistics while transactions run gives a
+ * slightly fuzzy but never blocking view.
+ * <p>
+ * Waits are kept for at most {@link #MAX_CONTENDED_PROPERTY} locks, so
+ * that the key-range locks of a long-running server do not pile up: a lock
+ * waited for for the first time displaces the least contended one.
+ */
+public class LockStats {
+
+    /**
+     * System property with the number of locks whose waits are kept for
+     * the most contended report.
+     */
+    public static final String MAX_CONTENDED_PROPERTY = "simpledb.common.LockStats.maxContended";
+
+    private static final int DEFAULT_MAX_CONTENDED = 1024;
+
+    /** Latency of every acquire call, including ones granted at once. */
+    public final LatencyHistogram acquire = new LatencyHistogram();
+    /** Time spent queued by requests that were granted. */
+    public final LatencyHistogram wait = new LatencyHistogram();
+    /** Time to strengthen a lock the transaction already held. */
+    public final LatencyHistogram upgrade = new LatencyHistogram();
+    /** Time spent queued by requests that were aborted. */
+    public final LatencyHistogram abort = new LatencyHistogram();
+
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder deadlocks = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder escalations = new LongAdder();
+
+    /** Waits and total wait time per lock, keyed by PageId or table. */
+    private final ConcurrentHashMap<Object, Contention> contention = new ConcurrentHashMap<>();
+
+    private final int maxContended;
+
+    public LockStats() {
+        this(Integer.getInteger(MAX_CONTENDED_PROPERTY, DEFAULT_MAX_CONTENDED));
+    }
+
+    /**
+     * @param maxContended how many locks to keep waits for
+     */
+    public LockStats(int maxContended) {
+        if (maxContended <= 0) {
+            throw new IllegalArgumentException("must keep waits for at least one lock");
+        }
+        this.maxContended = maxContended;
+    }
+
+    /** How often and how long transactions waited for one lock. */
+    public static final class Contention {
+        private final Object key;
+        private final LongAdder waits = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+
+        Contention(Object key) {
+            this.key = key;
+        }
+
+        /** @return the PageId, or a description of the table, that was waited for */
+        public Object getKey() {
+            return key;
+        }
+
+        public long getWaits() {
+            return waits.sum();
+        }
+
+        public long getWaitMicros() {
+            return waitNanos.sum() / 1000;
+        }
+    }
+
+    void acquired(long nanos) {
+        acquire.record(nanos);
+    }
+
+    void waited(Object key, long nanos) {
+        waits.increment();
+        wait.record(nanos);
+        contended(key, nanos);
+    }
+
+    void upgraded(long nanos) {
+        upgrade.record(nanos);
+    }
+
+    void aborted(Object key, long nanos, boolean timedOut) {
+        (timedOut ? timeouts : deadlocks).increment();
+        abort.record(nanos);
+        contended(key, nanos);
+    }
+
+    void escalated() {
+        escalations.increment();
+    }
+
+    private void contended(Object key, long nanos) {
+        Contention c = contention.get(key);
+        if (c == null) {
+            c = contention.computeIfAbsent(key, Contention::new);
+            if (contention.size() > maxContended) {
+                evictLeastContended(key);
+            }
+        }
+        c.waits.increment();
+        c.waitNanos.add(nanos);
+    }
+
+    /**
+     * Drop the lock with the least total wait time other than the one just
+     * added, which has had no chance to collect waits yet.
+     */
+    private void evictLeastContended(Object added) {
+        Contention least = null;
+        for (Contention c : contention.values()) {
+            if (!c.key.equals(added) && (least == null || c.waitNanos.sum() < least.waitNanos.sum())) {
+                least = c;
+            }
+        }
+        if (least != null) {
+            contention.remove(least.key, least);
+        }
+    }
+
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    public long getDeadlocks() {
+        return deadlocks.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long getEscalations() {
+        return escalations.sum();
+    }
+
+    /** @return the n locks with the most total wait time, most contended first */
+    public List<Contention> topContended(int n) {
+        List<Contention> all = new ArrayList<>(contention.values());
+        all.sort((a, b) -> Long.compare(b.waitNanos.sum(), a.waitNanos.sum()));
+        return all.subList(0, Math.min(n, all.size()));
+    }
+
+    public void reset() {
+        acquire.reset();
+        wait.reset();
+        upgrade.reset();
+        abort.reset();
+        waits.reset();
+        deadlocks.reset();
+        timeouts.reset();
+        escalations.reset();
+        contention.clear();
+    }
+
+    /** @return a printable report with the n most contended locks */
+    public String report(int n) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("waits=%d deadlocks=%d timeouts=%d escalations=%d%n",
+                getWaits(), getDeadlocks(), getTimeouts(), getEscalations()));
+        for (Map.Entry<String, LatencyHistogram> e : histograms().entrySet()) {
+            sb.append(String.format("%-8s %s%n", e.getKey(), e.getValue()));
+        }
+        List<Contention> top = topContended(n);
+        if (!top.isEmpty()) {
+            sb.append(String.format("%-40s %8s %12s%n", "most contended", "waits", "wait us"));
+            for (Contention c : top) {
+                sb.append(String.format("%-40s %8d %12d%n", describe(c.getKey()), c.getWaits(), c.getWaitMicros()));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String describe(Object key) {
+        if (key instanceof PageId) {
+            PageId pid = (PageId) key;
+            return String.format("%s table %d page %d", pid.getClass().getSimpleName(),
+                    pid.getTableId(), pid.getPageNumber());
+        }
+        return key.toString();
+    }
+
+    private Map<String, LatencyHistogram> histograms() {
+        Map<String, LatencyHistogram> h = new LinkedHashMap<>();
+        h.put("acquire", acquire);
+        h.put("wait", wait);
+        h.put("upgrade", upgrade);
+        h.put("abort", abort);
+        return h;
+    }
+}
@@ -4,6 +4,7 @@ import java.io.*;
 import java.util.*;
 
 import simpledb.common.Database;
+import simpledb.common.LockMode;
 import simpledb.common.Permissions;
 import simpledb.execution.IndexPredicate;
 import simpledb.execution.Predicate.Op;
@@ -169,10 +170,12 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Function which finds and locks the leaf page in the B+ tree corresponding to
+	 * the left-most page possibly containing the key field f. It locks the leaf node
+	 * with permission perm, and each internal node along the path with READ_ONLY
+	 * permission only until the next node down is locked (lock coupling), unless the
+	 * transaction held a lock on it already. So a descent leaves no locks on the upper
+	 * levels of the tree behind, and writers never convoy at the root.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
@@ -188,24 +191,160 @@ public class BTreeFile implements DbFile {
                                        Field f)
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-        return null;
+		return findLeafPage(tid, dirtypages, null, pid, perm, f, null);
+	}
+
+	/**
+	 * Descend from pid to the leaf page for the key field f with lock coupling.
+	 * 
+	 * @param latched - a page locked only for this descent, released once pid is locked, or null
+	 * @param taken - if not null, only return the leaf when it has an empty slot, or when the
+	 * transaction held it before, and add it to taken if this descent locked it. A full leaf
+	 * locked by this descent is not read for writing, and is unlocked again. A full leaf the
+	 * transaction already holds cannot be unlocked, and
+	 * is returned to be split along its parent pointers: locking the path from the root again
+	 * while holding the leaf would wait for splitters coming down that path, which may wait
+	 * for the leaf. The split still locks the parent after the leaf, so it can deadlock with a
+	 * splitter that holds the parent and needs the leaf; the lock manager's deadlock detector
+	 * aborts one of the two.
+	 * @return the leaf page, or null if taken is set and a leaf locked by this descent is full
+	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
+	 */
+	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId latched,
+			BTreePageId pid, Permissions perm, Field f, List<BTreePageId> taken)
+					throws DbException, TransactionAbortedException {
+		while(pid.pgcateg() != BTreePageId.LEAF) {
+			BTreePageId next = latchable(tid, dirtypages, pid);
+			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			unlatch(tid, latched);
+			latched = next;
+			pid = childFor(page, f);
+		}
+		if(taken == null) {
+			BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+			unlatch(tid, latched);
+			return leaf;
+		}
+
+		// lock the leaf before reading it, so it is only read for writing if it has room
+		BTreePageId leafLatch = latchable(tid, dirtypages, pid);
+		Database.getBufferPool().lockPage(tid, pid, perm);
+		unlatch(tid, latched);
+		BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		if(leafLatch != null) {
+			if(leaf.getNumEmptySlots() == 0) {
+				Database.getBufferPool().unsafeReleasePage(tid, leafLatch);
+				return null;
+			}
+			taken.add(leafLatch);
+		}
+		return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+	}
+
+	/**
+	 * Find the leaf page for the key field f when it may have to split. Every page on the
+	 * path, starting with the root pointer page, is locked with READ_WRITE permission,
+	 * top-down, and the locks on the pages above a page with an empty slot are released
+	 * again, since a split stops there. What is left locked is exactly the part of the path
+	 * a split of the leaf can change.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param f - the field to search for
+	 * @param taken - the pages this descent locked and left locked are added to it
+	 * @return the leaf page, which may or may not be full
+	 */
+	private BTreeLeafPage findLeafPageForSplit(TransactionId tid, Map<PageId, Page> dirtypages, Field f,
+			List<BTreePageId> taken)
+			throws DbException, TransactionAbortedException {
+		// pages locked by this descent, which it gives up once a split cannot reach them
+		List<BTreePageId> locked = new ArrayList<>();
+
+		// the root pointer stays locked until the root is known not to split. The lock is
+		// exclusive from the start: two splitters sharing it would both wait to upgrade it
+		// for a new root, each holding what the other waits for
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		BTreePageId latch = latchable(tid, dirtypages, rootPtrId);
+		Database.getBufferPool().lockPage(tid, rootPtrId, Permissions.READ_WRITE);
+		BTreePageId pid = ((BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY)).getRootId();
+		if(latch != null) {
+			locked.add(latch);
+		}
+
+		while(true) {
+			latch = latchable(tid, dirtypages, pid);
+			Database.getBufferPool().lockPage(tid, pid, Permissions.READ_WRITE);
+			BTreePage page = (BTreePage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			if(page.getNumEmptySlots() > 0) {
+				for(BTreePageId above : locked) {
+					Database.getBufferPool().unsafeReleasePage(tid, above);
+				}
+				locked.clear();
+			}
+			if(latch != null) {
+				locked.add(latch);
+			}
+			if(pid.pgcateg() == BTreePageId.LEAF) {
+				taken.addAll(locked);
+				return (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+			}
+			pid = childFor((BTreeInternalPage) page, f);
+		}
+	}
+
+	/**
+	 * @return the child of an internal page to descend to for the key field f: the left
+	 * child of the first entry whose key is >= f, or the right child of the last entry
+	 * if there is none. If f is null, the left-most child.
+	 * @see BTreeInternalPage#findChild(Field)
+	 */
+	private BTreePageId childFor(BTreeInternalPage page, Field f) throws DbException {
+		BTreePageId child = page.findChild(f);
+		if(child == null) {
+			throw new DbException("empty internal page " + page.getId().getPageNumber());
+		}
+		return child;
+	}
+
+	/**
+	 * @return pid if the transaction holds no lock on it, so that a lock taken on it now
+	 * may be released again when it is no longer needed; null otherwise
+	 */
+	private BTreePageId latchable(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid) {
+		if(dirtypages.containsKey(pid) || Database.getBufferPool().holdsLock(tid, pid)) {
+			return null;
+		}
+		return pid;
+	}
+
+	/**
+	 * Release a READ_ONLY lock taken on a page returned by latchable. Does nothing if
+	 * latched is null.
+	 */
+	private void unlatch(TransactionId tid, BTreePageId latched) {
+		if(latched != null) {
+			Database.getBufferPool().releaseSharedPage(tid, latched);
+		}
 	}
 	
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
+	 * Used by the BTreeFile iterators. Descends from the root, which the root pointer
+	 * page points to.
 	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
-                               Field f)
+	BTreeLeafPage findLeafPage(TransactionId tid, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		BTreePageId latched = latchable(tid, dirtypages, rootPtrId);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, latched, rootPtr.getRootId(), Permissions.READ_ONLY, f, null);
 	}
 
 	/**
@@ -239,8 +378,37 @@ public class BTreeFile implements DbFile {
 		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
 		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
 		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page
+		Tuple[] moved = new Tuple[page.getNumTuples() / 2];
+		Iterator<Tuple> it = page.reverseIterator();
+		for(int i = moved.length - 1; i >= 0; i--) {
+			moved[i] = it.next();
+		}
+		for(Tuple t : moved) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		// link the new page in to the right of the old one
+		BTreePageId rightId = page.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(rightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		// copy the first key of the new page up into the parent
+		Field splitKey = moved[0].getField(keyField);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), splitKey);
+		parent.insertEntry(new BTreeEntry(splitKey, page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN, splitKey) ? newPage : page;
 	}
 	
 	/**
@@ -277,7 +445,31 @@ public class BTreeFile implements DbFile {
 		// the parent pointers of all the children moving to the new page.  updateParentPointers()
 		// will be useful here.  Return the page into which an entry with the given key field
 		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// move the upper half of the entries to the new page, and take out the middle one
+		BTreeEntry[] moved = new BTreeEntry[page.getNumEntries() / 2];
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for(int i = moved.length - 1; i >= 0; i--) {
+			moved[i] = it.next();
+		}
+		BTreeEntry middle = it.next();
+		for(BTreeEntry e : moved) {
+			page.deleteKeyAndRightChild(e);
+			newPage.insertEntry(e);
+		}
+		page.deleteKeyAndRightChild(middle);
+		updateParentPointers(tid, dirtypages, newPage);
+
+		// push the middle key up into the parent
+		middle.setLeftChild(page.getId());
+		middle.setRightChild(newPage.getId());
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle.getKey());
+		parent.insertEntry(middle);
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		return field.compare(Op.GREATER_THAN, middle.getKey()) ? newPage : page;
 	}
 	
 	/**
@@ -416,7 +608,14 @@ public class BTreeFile implements DbFile {
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
-	 * 
+	 * <p>
+	 * The insert locks the range of its key, and checks on the leaf that no reader
+	 * holds the range of the next key, the gap it goes into. Key-range locks protect
+	 * range scans that have let go of their leaves; they do not let inserts share a
+	 * leaf. The leaf is locked exclusively until commit, since a page is undone as a
+	 * whole from its before image, so concurrent inserts into the same leaf still run
+	 * one after the other.
+	 *
 	 * @param tid - the transaction id
 	 * @param t - the tuple to insert
 	 * @return a list of all pages that were dirtied by this operation. Could include
@@ -426,28 +625,84 @@ public class BTreeFile implements DbFile {
 	public List<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
+		try {
+			insertTuple(tid, dirtypages, t);
+		} catch(TransactionAbortedException e) {
+			markDirty(tid, dirtypages);
+			throw e;
+		}
+        return new ArrayList<>(dirtypages.values());
+	}
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+	private void insertTuple(TransactionId tid, Map<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Field key = t.getField(keyField);
+		Database.getBufferPool().lockKeyRange(tid, tableid, key, LockMode.X);
+
+		BTreeLeafPage leafPage;
+		while(true) {
+			// pages locked only for this insert, which it may let go of while it has not
+			// changed anything
+			List<BTreePageId> taken = new ArrayList<>();
+			boolean changed = false;
+
+			// get a read lock on the root pointer page and use it to locate the root page
+			BTreePageId latched = latchable(tid, dirtypages, BTreeRootPtrPage.getId(tableid));
+			BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+			BTreePageId rootId = rootPtr.getRootId();
+
+			if(rootId == null) { // the root has just been created, so set the root pointer to point to it
+				rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+				rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setRootId(rootId);
+				latched = null;
+				changed = true;
+			}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+			// find and lock the left-most leaf page corresponding to the key field. Most
+			// inserts fit into the leaf and lock nothing else; if it is full and was not locked
+			// before, descend again and lock the pages the split may reach
+			leafPage = findLeafPage(tid, dirtypages, latched, rootId, Permissions.READ_WRITE, key, taken);
+			if(leafPage == null) {
+				leafPage = findLeafPageForSplit(tid, dirtypages, key, taken);
+			}
+
+			// wait for readers of the gap. A reader keeps no lock on the leaves it has read,
+			// and would deadlock reading this leaf again while the insert waits holding it,
+			// so let go of the pages locked for this insert and start over after the wait
+			Field next = nextKey(tid, dirtypages, leafPage, key);
+			if(Database.getBufferPool().tryAwaitKeyRange(tid, tableid, next, LockMode.IX)) {
+				break;
+			}
+			if(changed) {
+				Database.getBufferPool().awaitKeyRange(tid, tableid, next, LockMode.IX);
+				break;
+			}
+			for(BTreePageId pid : taken) {
+				dirtypages.remove(pid);
+				Database.getBufferPool().unsafeReleasePage(tid, pid);
+			}
+			Database.getBufferPool().awaitKeyRange(tid, tableid, next, LockMode.IX);
 		}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		// split the leaf page if there are no more slots available
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
 		}
 
 		// insert the tuple into the leaf page
 		leafPage.insertTuple(t);
+	}
 
-        return new ArrayList<>(dirtypages.values());
+	/**
+	 * An insert or delete aborted while waiting for a lock may already have changed
+	 * pages halfway through a split or merge. Mark them dirty so that aborting the
+	 * transaction restores their before images.
+	 */
+	private void markDirty(TransactionId tid, Map<PageId, Page> dirtypages) {
+		for(Page p : dirtypages.values()) {
+			p.markDirty(true, tid);
+		}
 	}
 	
 	/**
@@ -569,6 +824,20 @@ public class BTreeFile implements DbFile {
         // Move some of the tuples from the sibling to the page so
 		// that the tuples are evenly distributed. Be sure to update
 		// the corresponding parent entry.
+		Tuple[] moved = new Tuple[(sibling.getNumTuples() - page.getNumTuples()) / 2];
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		for(int i = 0; i < moved.length; i++) {
+			moved[i] = it.next();
+		}
+		for(Tuple t : moved) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		// the parent key is the first key of the right-hand page
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(right.iterator().next().getField(keyField));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -648,6 +917,17 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
+		int toMove = (leftSibling.getNumEntries() - page.getNumEntries()) / 2;
+		for(int i = 0; i < toMove; i++) {
+			// rotate the last key of the left sibling through the parent
+			BTreeEntry last = leftSibling.reverseIterator().next();
+			BTreeEntry first = page.iterator().next();
+			leftSibling.deleteKeyAndRightChild(last);
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), first.getLeftChild()));
+			parentEntry.setKey(last.getKey());
+		}
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -675,6 +955,17 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
+		int toMove = (rightSibling.getNumEntries() - page.getNumEntries()) / 2;
+		for(int i = 0; i < toMove; i++) {
+			// rotate the first key of the right sibling through the parent
+			BTreeEntry first = rightSibling.iterator().next();
+			BTreeEntry last = page.reverseIterator().next();
+			rightSibling.deleteKeyAndLeftChild(first);
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), first.getLeftChild()));
+			parentEntry.setKey(first.getKey());
+		}
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -705,6 +996,23 @@ public class BTreeFile implements DbFile {
 		// the sibling pointers, and make the right page available for reuse.
 		// Delete the entry in the parent corresponding to the two pages that are merging -
 		// deleteParentEntry() will be useful here
+		List<Tuple> moved = new ArrayList<>();
+		rightPage.iterator().forEachRemaining(moved::add);
+		for(Tuple t : moved) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		// unlink the right page
+		BTreePageId rightId = rightPage.getRightSiblingId();
+		leftPage.setRightSiblingId(rightId);
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(leftPage.getId());
+		}
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -738,6 +1046,20 @@ public class BTreeFile implements DbFile {
 		// and make the right page available for reuse
 		// Delete the entry in the parent corresponding to the two pages that are merging -
 		// deleteParentEntry() will be useful here
+		List<BTreeEntry> moved = new ArrayList<>();
+		rightPage.iterator().forEachRemaining(moved::add);
+
+		// pull the parent key down between the two halves
+		BTreeEntry last = leftPage.reverseIterator().next();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), moved.get(0).getLeftChild()));
+		for(BTreeEntry e : moved) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -801,10 +1123,44 @@ public class BTreeFile implements DbFile {
 	public List<Page> deleteTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
+		try {
+			deleteTuple(tid, dirtypages, t);
+		} catch(TransactionAbortedException e) {
+			markDirty(tid, dirtypages);
+			throw e;
+		}
+        return new ArrayList<>(dirtypages.values());
+	}
+
+	private void deleteTuple(TransactionId tid, Map<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		// lock the key, and the next key whose range grows by the deleted one
+		Field key = t.getField(keyField);
+		Database.getBufferPool().lockKeyRange(tid, tableid, key, LockMode.X);
 
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+		BTreeLeafPage page;
+		while(true) {
+			BTreePageId latch = latchable(tid, dirtypages, pageId);
+			page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+
+			// lock the next key on the leaf if no reader holds it; otherwise let go of a
+			// leaf locked only for this delete while waiting, as an insert does
+			Field next = nextKey(tid, dirtypages, page, key);
+			if(Database.getBufferPool().tryLockKeyRange(tid, tableid, next, LockMode.X)) {
+				break;
+			}
+			if(latch != null) {
+				dirtypages.remove(pageId);
+				Database.getBufferPool().unsafeReleasePage(tid, pageId);
+			}
+			Database.getBufferPool().lockKeyRange(tid, tableid, next, LockMode.X);
+			if(latch == null) {
+				break;
+			}
+		}
+
 		page.deleteTuple(t);
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
@@ -813,8 +1169,66 @@ public class BTreeFile implements DbFile {
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
 			handleMinOccupancyPage(tid, dirtypages, page);
 		}
+	}
 
-        return new ArrayList<>(dirtypages.values());
+	/**
+	 * Find the smallest key greater than key in the index, starting at the given leaf
+	 * page and following right siblings. Siblings that this transaction did not already
+	 * lock are only locked while they are read.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the leaf page where key belongs
+	 * @param key - the key to find the next key of
+	 * @return the next key, or null if key is the largest key in the index
+	 */
+	private Field nextKey(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page, Field key)
+			throws DbException, TransactionAbortedException {
+		BTreePageId latched = null;
+		try {
+			while(true) {
+				Iterator<Tuple> it = page.iterator(key);
+				while(it.hasNext()) {
+					Field f = it.next().getField(keyField);
+					if(f.compare(Op.GREATER_THAN, key)) {
+						return f;
+					}
+				}
+				BTreePageId nextId = page.getRightSiblingId();
+				if(nextId == null) {
+					return null;
+				}
+				// latch the next sibling before letting go of the previous one
+				BTreePageId prev = latched;
+				latched = latchable(tid, dirtypages, nextId);
+				page = (BTreeLeafPage) getPage(tid, dirtypages, nextId, Permissions.READ_ONLY);
+				unlatch(tid, prev);
+			}
+		} finally {
+			unlatch(tid, latched);
+		}
+	}
+
+	/**
+	 * Lock the range of a key read by an index scan until the transaction completes.
+	 * 
+	 * @param tid - the transaction id
+	 * @param key - the key read, or null for the end of the index
+	 */
+	void lockKeyRange(TransactionId tid, Field key) throws TransactionAbortedException {
+		Database.getBufferPool().lockKeyRange(tid, tableid, key, LockMode.S);
+	}
+
+	/**
+	 * Lock the range of a key read by an index scan like lockKeyRange, but only if
+	 * the lock can be granted right away.
+	 * 
+	 * @param tid - the transaction id
+	 * @param key - the key read, or null for the end of the index
+	 * @return true if the range is locked
+	 */
+	boolean tryLockKeyRange(TransactionId tid, Field key) {
+		return Database.getBufferPool().tryLockKeyRange(tid, tableid, key, LockMode.S);
 	}
 
 	/**
@@ -861,9 +1275,14 @@ public class BTreeFile implements DbFile {
 	public int getEmptyPageNo(TransactionId tid, Map<PageId, Page> dirtypages)
 			throws DbException, IOException, TransactionAbortedException {
 		// get a read lock on the root pointer page and use it to locate the first header page
+		BTreePageId latched = latchable(tid, dirtypages, BTreeRootPtrPage.getId(tableid));
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId headerId = rootPtr.getHeaderId();
 		int emptyPageNo = 0;
+		if(headerId != null) {
+			getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+		}
+		unlatch(tid, latched);
 
 		if(headerId != null) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
@@ -1027,6 +1446,116 @@ public class BTreeFile implements DbFile {
 		headerPage.markSlotUsed(emptySlot, false);
 	}
 
+	/**
+	 * Pin a leaf page for an iterator so that it stays resident while its tuples
+	 * are returned. The pin must be released with unpinLeafPage.
+	 *
+	 * @param tid - the transaction id
+	 * @param pid - the id of the leaf page
+	 * @return the pinned buffer pool frame holding the leaf
+	 */
+	BufferFrame pinLeafPage(TransactionId tid, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		BufferFrame frame = Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+		if(frame == null) {
+			throw new DbException("unable to read leaf page " + pid.getPageNumber());
+		}
+		return frame;
+	}
+
+	/**
+	 * Release a pin taken by pinLeafPage. Does nothing if frame is null.
+	 */
+	void unpinLeafPage(BufferFrame frame) {
+		if(frame != null) {
+			Database.getBufferPool().unpinPage(frame);
+		}
+	}
+
+	/**
+	 * A leaf pinned for a search iterator, and whether the transaction locked the leaf
+	 * only for it.
+	 */
+	static final class PinnedLeaf {
+		final BufferFrame frame;
+		final boolean lockTaken;
+
+		PinnedLeaf(BufferFrame frame, boolean lockTaken) {
+			this.frame = frame;
+			this.lockTaken = lockTaken;
+		}
+
+		BTreeLeafPage getPage() {
+			return (BTreeLeafPage) frame.getPage();
+		}
+	}
+
+	/**
+	 * Find and pin the leaf page for the key field f for a search iterator, descending
+	 * with lock coupling as findLeafPage does. If f is null, the left-most leaf page.
+	 * The pin must be released with releaseLeafPage.
+	 * 
+	 * @param tid - the transaction id
+	 * @param f - the field to search for
+	 * @return the pinned left-most leaf page possibly containing the key field f, or null
+	 * if the tree has no root page yet
+	 */
+	PinnedLeaf pinLeafPageFor(TransactionId tid, Field f)
+			throws DbException, TransactionAbortedException {
+		if(this.f.length() == 0) {
+			return null;
+		}
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		BTreePageId latched = latchable(tid, dirtypages, rootPtrId);
+		BTreePageId pid = ((BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY)).getRootId();
+		if(pid == null) {
+			unlatch(tid, latched);
+			return null;
+		}
+		while(pid.pgcateg() != BTreePageId.LEAF) {
+			BTreePageId next = latchable(tid, dirtypages, pid);
+			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			unlatch(tid, latched);
+			latched = next;
+			pid = childFor(page, f);
+		}
+		PinnedLeaf leaf = pinSearchLeafPage(tid, pid);
+		unlatch(tid, latched);
+		return leaf;
+	}
+
+	/**
+	 * Pin a leaf page for a search iterator, noting whether the transaction held a lock
+	 * on it already. The pin must be released with releaseLeafPage.
+	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the id of the leaf page
+	 * @return the pinned leaf page
+	 */
+	PinnedLeaf pinSearchLeafPage(TransactionId tid, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		boolean lockTaken = !Database.getBufferPool().holdsLock(tid, pid);
+		return new PinnedLeaf(pinLeafPage(tid, pid), lockTaken);
+	}
+
+	/**
+	 * Release a pin taken for a search iterator, together with the transaction's lock on
+	 * the leaf if the iterator took that lock and the transaction only read the leaf. A
+	 * search iterator calls this when it leaves a leaf, since the key-range locks on what
+	 * it returned keep the scan serializable. A lock the transaction held before is kept
+	 * until it completes, as strict two-phase locking requires. Does nothing if leaf is
+	 * null.
+	 */
+	void releaseLeafPage(TransactionId tid, PinnedLeaf leaf) {
+		if(leaf != null) {
+			Database.getBufferPool().unpinPage(leaf.frame);
+			if(leaf.lockTaken) {
+				Database.getBufferPool().releaseSharedPage(tid, leaf.frame.getId());
+			}
+		}
+	}
+
 	/**
 	 * get the specified tuples from the file based on its IndexPredicate value on
 	 * behalf of the specified transaction. This method will acquire a read lock on
@@ -1062,6 +1591,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// pinned frame of curp, released when moving to the next leaf
+	BufferFrame curFrame = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1080,10 +1611,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
+		curFrame = f.pinLeafPage(tid, f.findLeafPage(tid, null).getId());
+		curp = (BTreeLeafPage) curFrame.getPage();
 		it = curp.iterator();
 	}
 
@@ -1100,12 +1629,14 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 		while (it == null && curp != null) {
 			BTreePageId nextp = curp.getRightSiblingId();
+			f.unpinLeafPage(curFrame);
+			curFrame = null;
 			if(nextp == null) {
 				curp = null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				curFrame = f.pinLeafPage(tid, nextp);
+				curp = (BTreeLeafPage) curFrame.getPage();
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1130,6 +1661,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		f.unpinLeafPage(curFrame);
+		curFrame = null;
 		it = null;
 		curp = null;
 	}
@@ -1137,12 +1670,27 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 /**
  * Helper class that implements the DbFileIterator for search tuples on a
- * B+ Tree File
+ * B+ Tree File.
+ * 
+ * The iterator uses next-key locking: it locks the key range of every tuple it returns
+ * and of the first key past the end of the search, or the end of the index, so no
+ * other transaction can insert into or delete from the searched range until this
+ * transaction completes. Leaves the iterator locks itself are only locked while it is on
+ * them; leaves the transaction had locked before stay locked. A writer may hold the range
+ * of a key while it waits for the leaf, so the iterator never waits for a key-range lock
+ * while it is on a leaf: it leaves the leaf, waits, and reads on from the last key it had
+ * locked.
  */
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// pinned curp, released when moving to the next leaf
+	BTreeFile.PinnedLeaf curLeaf = null;
+	// the last key whose range was locked
+	Field locked = null;
+	// after waiting for a key-range lock, the last key read before, whose tuples are skipped
+	Field resumeAfter = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1165,17 +1713,30 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		locked = null;
+		resumeAfter = null;
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			curLeaf = f.pinLeafPageFor(tid, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			curLeaf = f.pinLeafPageFor(tid, null);
+		}
+		if(curLeaf == null) {
+			// an empty tree: lock the end of the index so that nothing appears in it
+			lock(null);
+			it = null;
+			return;
+		}
+		curp = curLeaf.getPage();
+		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
+				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
+			// skip the smaller keys of the page with a binary search
+			it = curp.iterator(ipred.getField());
+		}
+		else {
+			it = curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1187,22 +1748,41 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 	NoSuchElementException {
+		scan:
 		while (it != null) {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				Field key = t.getField(f.keyField());
+				if (resumeAfter != null) {
+					if (!key.compare(Op.GREATER_THAN, resumeAfter)) {
+						continue;
+					}
+					resumeAfter = null;
+				}
+				if (key.compare(ipred.getOp(), ipred.getField())) {
+					if (!lock(key)) {
+						continue scan;
+					}
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
 					// if the predicate was not satisfied and the operation is less than, we have
 					// hit the end
+					if (!lock(key)) {
+						continue scan;
+					}
+					it = null;
 					return null;
 				}
-				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+				else if(ipred.getOp() == Op.EQUALS &&
+						key.compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
+					if (!lock(key)) {
+						continue scan;
+					}
+					it = null;
 					return null;
 				}
 			}
@@ -1210,11 +1790,19 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			BTreePageId nextp = curp.getRightSiblingId();
 			// if there are no more pages to the right, end the iteration
 			if(nextp == null) {
+				if (!lock(null)) {
+					continue;
+				}
+				it = null;
 				return null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				// lock the next leaf before letting go of this one, so that a split
+				// cannot move tuples past the scan in between
+				BTreeFile.PinnedLeaf prevLeaf = curLeaf;
+				curLeaf = f.pinSearchLeafPage(tid, nextp);
+				f.releaseLeafPage(tid, prevLeaf);
+				curp = curLeaf.getPage();
 				it = curp.iterator();
 			}
 		}
@@ -1222,6 +1810,41 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		return null;
 	}
 
+	/**
+	 * Lock the range of key, or of the end of the index if key is null, unless it
+	 * was the last one locked. On a leaf, the lock is only taken if it is free: a
+	 * writer holding it may be waiting for the leaf. Otherwise the iterator leaves
+	 * the leaf, waits for the lock, and finds its place again past the last key it
+	 * had locked, since the leaf may have changed meanwhile.
+	 *
+	 * @return true if the lock was taken on the leaf, false if the iterator had to
+	 * leave it and must read on from its new place
+	 */
+	private boolean lock(Field key) throws TransactionAbortedException, DbException {
+		if (key != null && key.equals(locked)) {
+			return true;
+		}
+		if (curLeaf == null || f.tryLockKeyRange(tid, key)) {
+			locked = key;
+			return true;
+		}
+		Field after = locked;
+		f.releaseLeafPage(tid, curLeaf);
+		curLeaf = null;
+		it = null;
+		f.lockKeyRange(tid, key);
+		locked = key;
+		if (after == null) {
+			open();
+			return false;
+		}
+		curLeaf = f.pinLeafPageFor(tid, after);
+		curp = curLeaf.getPage();
+		it = curp.iterator(after);
+		resumeAfter = after;
+		return false;
+	}
+
 	/**
 	 * rewind this iterator back to the beginning of the tuples
 	 */
@@ -1235,6 +1858,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		f.releaseLeafPage(tid, curLeaf);
+		curLeaf = null;
 		it = null;
 	}
 }
@@ -205,27 +205,113 @@ public class BTreeFileEncoder {
 		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields);
 		HeapFile heapf = Utility.openHeapFile(numFields, hFile);
 
-		// read all the tuples from the heap file and sort them on the keyField
-		List<Tuple> tuples = new ArrayList<>();
+		// sort the tuples on the keyField and build the tree bottom-up
+		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
+		bulkLoad(heapf, bf, npagebytes, 1.0);
+
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		return bf;
+	}
+
+	/**
+	 * Build a B+ tree file from the tuples of a DbFile, e.g. a HeapFile, which need
+	 * not be sorted or fit in memory. The tuples are sorted on the key field with an
+	 * external merge sort, and the pages of the tree are then written bottom-up in one
+	 * sequential pass over the output file: first the leaves, then each level of
+	 * internal pages, with the root last. The resulting BTreeFile is added to the catalog.
+	 * <p>
+	 * Leaf and internal pages are filled up to fillFactor of their capacity, leaving
+	 * room for later inserts, except that the last two pages of each level share what
+	 * is left over. Fill factors below one half are raised to one half, so that all
+	 * pages but the root are at least half full.
+	 * 
+	 * @param source - the file to read the tuples from
+	 * @param bFile - the file on disk to back the resulting BTreeFile; any contents are replaced
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @param fillFactor - the fraction of each page to fill, in (0, 1]
+	 * @return the BTreeFile
+	 * @throws IOException
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	public static BTreeFile bulkLoad(DbFile source, File bFile, int keyField, double fillFactor)
+			throws IOException, DbException, TransactionAbortedException {
+		BTreeFile bf = new BTreeFile(bFile, keyField, source.getTupleDesc());
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		bulkLoad(source, bf, BufferPool.getPageSize(), fillFactor);
+		return bf;
+	}
+
+	/**
+	 * Sort the tuples of source and write them out as the B+ tree bf.
+	 * @see #bulkLoad(DbFile, File, int, double)
+	 */
+	private static void bulkLoad(DbFile source, BTreeFile bf, int npagebytes, double fillFactor)
+			throws IOException, DbException, TransactionAbortedException {
 		TransactionId tid = new TransactionId();
-		DbFileIterator it = Database.getCatalog().getDatabaseFile(heapf.getId()).iterator(tid);
-		it.open();
-		while (it.hasNext()) {
-			Tuple tup = it.next();
-			tuples.add(tup);
+		bulkLoad(source.iterator(tid), bf, npagebytes, fillFactor);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Replace the contents of the B+ tree file bf with the tuples of an iterator, in any
+	 * order, as {@link #bulkLoad(DbFile, File, int, double)} does. The iterator is opened
+	 * and closed here. Nothing else may use bf while it is loaded.
+	 * 
+	 * @param tuples - the tuples to load, with the tuple descriptor of bf
+	 * @param bf - the BTreeFile to write, which must be in the catalog
+	 * @param fillFactor - the fraction of each page to fill, in (0, 1]
+	 * @throws IOException
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	public static void bulkLoad(DbFileIterator tuples, BTreeFile bf, double fillFactor)
+			throws IOException, DbException, TransactionAbortedException {
+		bulkLoad(tuples, bf, BufferPool.getPageSize(), fillFactor);
+	}
+
+	private static void bulkLoad(DbFileIterator tuples, BTreeFile bf, int npagebytes, double fillFactor)
+			throws IOException, DbException, TransactionAbortedException {
+		if(fillFactor <= 0 || fillFactor > 1) {
+			throw new IllegalArgumentException("fill factor must be in (0, 1]: " + fillFactor);
 		}
-		it.close();
-		tuples.sort(new TupleComparator(keyField));
+		try (ExternalSort sort = new ExternalSort(bf.getTupleDesc(), new TupleComparator(bf.keyField()))) {
+			tuples.open();
+			while (tuples.hasNext()) {
+				sort.add(tuples.next());
+			}
+			tuples.close();
 
-		// add the tuples to B+ tree file
-		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
-		Type keyType = typeAr[keyField];
-		int tableid = bf.getId();
+			writeTree(bf, sort.iterator(), sort.size(), npagebytes, fillFactor);
+		}
+	}
 
+	/**
+	 * Write the B+ tree bf from tuples sorted on its key field. The size of every level
+	 * follows from the number of tuples, so the page numbers of all parents and siblings
+	 * are known before a page is written, and each page is written exactly once, in
+	 * page number order.
+	 * 
+	 * @param bf - the BTreeFile to write
+	 * @param tuples - the tuples, sorted on the key field
+	 * @param ntuples - the number of tuples
+	 * @param npagebytes - number of bytes per page
+	 * @param fillFactor - the fraction of each page to fill
+	 */
+	private static void writeTree(BTreeFile bf, Iterator<Tuple> tuples, long ntuples, int npagebytes,
+			double fillFactor) throws IOException {
+		TupleDesc td = bf.getTupleDesc();
+		int keyField = bf.keyField();
+		int tableid = bf.getId();
+		int numFields = td.numFields();
+		Type[] typeAr = new Type[numFields];
 		int nrecbytes = 0;
-		for (int i = 0; i < numFields ; i++) {
+		for (int i = 0; i < numFields; i++) {
+			typeAr[i] = td.getFieldType(i);
 			nrecbytes += typeAr[i].getLen();
 		}
+		Type keyType = typeAr[keyField];
+
 		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
 		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
 		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
@@ -235,273 +321,218 @@ public class BTreeFileEncoder {
 		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 
-		List<List<BTreeEntry>> entries = new ArrayList<>();
-
-		// first add some bytes for the root pointer page
-		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), 
-				BTreeRootPtrPage.createEmptyPageData()));
-
-		// next iterate through all the tuples and write out leaf pages
-		// and internal pages as they fill up.
-		// We wait until we have two full pages of tuples before writing out the first page
-		// so that we will not end up with any pages containing less than nrecords/2 tuples
-		// (unless it's the only page)
-		List<Tuple> page1 = new ArrayList<>();
-		List<Tuple> page2 = new ArrayList<>();
-		BTreePageId leftSiblingId = null;
-		for(Tuple tup : tuples) {
-			if(page1.size() < nrecords) {
-				page1.add(tup);
-			}
-			else if(page2.size() < nrecords) {
-				page2.add(tup);
-			}
-			else {
-				// write out a page of records
-				byte[] leafPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyField);
-				BTreePageId leafPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-				BTreeLeafPage leafPage = new BTreeLeafPage(leafPid, leafPageBytes, keyField);
-				leafPage.setLeftSiblingId(leftSiblingId);
-				bf.writePage(leafPage);
-				leftSiblingId = leafPid;
-
-				// update the parent by "copying up" the next key
-				BTreeEntry copyUpEntry = new BTreeEntry(page2.get(0).getField(keyField), leafPid, null);
-				updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
-						keyType, tableid, keyField);
-
-				page1 = page2;
-				page2 = new ArrayList<>();
-				page2.add(tup);
-			}
+		// plan the levels bottom-up: tuples per leaf, then children per internal page
+		int perLeaf = Math.max((int) (nrecords * fillFactor), (nrecords + 1) / 2);
+		int perInternal = Math.max((int) ((nentries + 1) * fillFactor), (nentries + 1) / 2 + 1);
+		List<Level> levels = new ArrayList<>();
+		levels.add(new Level(ntuples, perLeaf, nrecords, false, 1));
+		while (levels.get(levels.size() - 1).pages > 1) {
+			Level below = levels.get(levels.size() - 1);
+			levels.add(new Level(below.pages, perInternal, nentries + 1, true, below.firstPage + below.pages));
 		}
+		Level top = levels.get(levels.size() - 1);
+		int rootCategory = (levels.size() > 1 ? BTreePageId.INTERNAL : BTreePageId.LEAF);
+
+		KeySpill separators = new KeySpill(keyType);
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(bf.getFile()), 16 * npagebytes)) {
+			out.write(convertToRootPtrPage(top.firstPage, rootCategory, 0));
+
+			// the leaves, spilling the first key of each but the first for the level above
+			Level leaves = levels.get(0);
+			Level parents = levels.size() > 1 ? levels.get(1) : null;
+			for (int j = 0; j < leaves.pages; j++) {
+				int size = leaves.size(j);
+				List<Tuple> page = new ArrayList<>(size);
+				for (int k = 0; k < size; k++) {
+					page.add(tuples.next());
+				}
+				if (j > 0) {
+					separators.write(page.get(0).getField(keyField));
+				}
+				int leftSibling = (j > 0 ? leaves.firstPage + j - 1 : 0);
+				int rightSibling = (j < leaves.pages - 1 ? leaves.firstPage + j + 1 : 0);
+				out.write(convertToLeafPage(page, npagebytes, numFields, typeAr, keyField,
+						parentOf(parents, j), leftSibling, rightSibling));
+			}
 
-		// now we need to deal with the end cases. There are two options:
-		// 1. We have less than or equal to a full page of records. Because of the way the code
-		//    was written above, we know this must be the only page
-		// 2. We have somewhere between one and two pages of records remaining.
-		// For case (1), we write out the page 
-		// For case (2), we divide the remaining records equally between the last two pages,
-		// write them out, and update the parent's child pointers.
-		BTreePageId lastPid = null;
-		if(page2.size() == 0) {
-			// write out a page of records - this is the root page
-			byte[] lastPageBytes = convertToLeafPage(page1, npagebytes, numFields, typeAr, keyField);
-			lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyField);
-			lastPage.setLeftSiblingId(leftSiblingId);
-			bf.writePage(lastPage);
-		}
-		else {
-			// split the remaining tuples in half
-			int remainingTuples = page1.size() + page2.size();
-            List<Tuple> lastPg = new ArrayList<>();
-            List<Tuple> secondToLastPg = new ArrayList<>(page1.subList(0, remainingTuples / 2));
-			lastPg.addAll(page1.subList(remainingTuples/2, page1.size()));
-			lastPg.addAll(page2);
-
-			// write out the last two pages of records
-			byte[] secondToLastPageBytes = convertToLeafPage(secondToLastPg, npagebytes, numFields, typeAr, keyField);
-			BTreePageId secondToLastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage secondToLastPage = new BTreeLeafPage(secondToLastPid, secondToLastPageBytes, keyField);
-			secondToLastPage.setLeftSiblingId(leftSiblingId);
-			bf.writePage(secondToLastPage);
-
-			byte[] lastPageBytes = convertToLeafPage(lastPg, npagebytes, numFields, typeAr, keyField);
-			lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.LEAF);
-			BTreeLeafPage lastPage = new BTreeLeafPage(lastPid, lastPageBytes, keyField);
-			lastPage.setLeftSiblingId(secondToLastPid);
-			bf.writePage(lastPage);
-
-			// update the parent by "copying up" the next key
-			BTreeEntry copyUpEntry = new BTreeEntry(lastPg.get(0).getField(keyField), secondToLastPid, lastPid);
-			updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
-					keyType, tableid, keyField);
+			// each internal level stores the separators between its children, except the
+			// ones between its own pages, which are pushed up to the level above
+			for (int l = 1; l < levels.size(); l++) {
+				Level children = levels.get(l - 1);
+				Level level = levels.get(l);
+				parents = (l + 1 < levels.size() ? levels.get(l + 1) : null);
+				int childCategory = (l == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+				KeySpill keys = separators;
+				keys.startReading();
+				separators = new KeySpill(keyType);
+				int child = 0;
+				for (int j = 0; j < level.pages; j++) {
+					int size = level.size(j);
+					if (j > 0) {
+						separators.write(keys.read());
+					}
+					List<BTreeEntry> entries = new ArrayList<>(size - 1);
+					BTreePageId left = new BTreePageId(tableid, children.firstPage + child, childCategory);
+					for (int k = 1; k < size; k++) {
+						BTreePageId right = new BTreePageId(tableid, children.firstPage + child + k, childCategory);
+						entries.add(new BTreeEntry(keys.read(), left, right));
+						left = right;
+					}
+					child += size;
+					out.write(convertToInternalPage(entries, npagebytes, keyType, childCategory,
+							parentOf(parents, j)));
+				}
+				keys.delete();
+			}
+		} finally {
+			separators.delete();
 		}
-
-		// Write out the remaining internal pages
-		cleanUpEntries(entries, bf, nentries, npagebytes, keyType, tableid, keyField);
-
-		// update the root pointer to point to the last page of the file
-		int root = bf.numPages();
-		int rootCategory = (root > 1 ? BTreePageId.INTERNAL : BTreePageId.LEAF);
-		byte[] rootPtrBytes = convertToRootPtrPage(root, rootCategory, 0);
-		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid), rootPtrBytes));
-
-		// set all the parent and sibling pointers
-		setParents(bf, new BTreePageId(tableid, root, rootCategory), BTreeRootPtrPage.getId(tableid));
-		setRightSiblingPtrs(bf, lastPid, null);
-
-		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
-		return bf;
 	}
 
 	/**
-	 * Set all the right sibling pointers by following the left sibling pointers
-	 * 
-	 * @param bf - the BTreeFile
-	 * @param pid - the id of the page to update with the right sibling pointer
-	 * @param rightSiblingId - the id of the page's right sibling
-	 * @throws IOException
-	 * @throws DbException
+	 * @return the page number of the parent of the jth page of a level, or 0 for the
+	 * root pointer if the level above is null
 	 */
-	private static void setRightSiblingPtrs(BTreeFile bf, BTreePageId pid, BTreePageId rightSiblingId) 
-			throws IOException, DbException {
-		BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
-		page.setRightSiblingId(rightSiblingId);
-		BTreePageId leftSiblingId = page.getLeftSiblingId();
-		bf.writePage(page);
-		if(leftSiblingId != null) {
-			setRightSiblingPtrs(bf, leftSiblingId, page.getId());
-		}
+	private static int parentOf(Level parents, int j) {
+		return parents == null ? 0 : parents.firstPage + parents.pageOf(j);
 	}
 
 	/**
-	 * Recursive function to set all the parent pointers
-	 * 
-	 * @param bf - the BTreeFile
-	 * @param pid - id of the page to update with the parent pointer
-	 * @param parent - the id of the page's parent
-	 * @throws IOException
-	 * @throws DbException
+	 * The sizes of the pages of one level of a bulk loaded tree, counted in tuples for
+	 * leaves and in children for internal pages. Pages are filled with perPage items
+	 * while more than two pages' worth remain. The rest goes to one page if it fits,
+	 * and is split between two pages otherwise.
 	 */
-	private static void setParents(BTreeFile bf, BTreePageId pid, BTreePageId parent) 
-			throws IOException, DbException {
-		if(pid.pgcateg() == BTreePageId.INTERNAL) {
-			BTreeInternalPage page = (BTreeInternalPage) bf.readPage(pid);
-			page.setParentId(parent);
-
-			Iterator<BTreeEntry> it = page.iterator();
-			BTreeEntry e = null;
-			while(it.hasNext()) {
-				e = it.next();
-				setParents(bf, e.getLeftChild(), pid);
+	private static class Level {
+		final int perPage;
+		final int firstPage;
+		final int pages;
+		final long fullPages;
+		// sizes of the last one or two pages
+		final int secondToLast;
+		final int last;
+
+		/**
+		 * @param items - the number of tuples or children on this level
+		 * @param perPage - the number of items to put on a full page
+		 * @param capacity - the most items a page can hold
+		 * @param ceilFirst - if the rest is split, whether the first page gets the larger half
+		 * @param firstPage - the page number of the first page of this level
+		 */
+		Level(long items, int perPage, int capacity, boolean ceilFirst, int firstPage) {
+			this.perPage = perPage;
+			this.firstPage = firstPage;
+			this.fullPages = (items > 2L * perPage ? (items - 2L * perPage + perPage - 1) / perPage : 0);
+			int rest = (int) (items - fullPages * perPage);
+			if (rest <= capacity) {
+				this.secondToLast = 0;
+				this.last = rest;
+				this.pages = (int) fullPages + 1;
 			}
-			if(e != null) {
-				setParents(bf, e.getRightChild(), pid);
+			else {
+				this.secondToLast = (ceilFirst ? (rest + 1) / 2 : rest / 2);
+				this.last = rest - secondToLast;
+				this.pages = (int) fullPages + 2;
 			}
-			bf.writePage(page);
 		}
-		else { // pid.pgcateg() == BTreePageId.LEAF
-			BTreeLeafPage page = (BTreeLeafPage) bf.readPage(pid);
-			page.setParentId(parent);
-			bf.writePage(page);
+
+		/** @return the number of items on the jth page of this level */
+		int size(int j) {
+			if (j < fullPages) {
+				return perPage;
+			}
+			return (j == pages - 1 ? last : secondToLast);
+		}
+
+		/** @return the index of the page of this level holding the ith item */
+		int pageOf(long i) {
+			if (i < fullPages * perPage) {
+				return (int) (i / perPage);
+			}
+			return (i - fullPages * perPage < secondToLast ? pages - 2 : pages - 1);
 		}
 	}
 
 	/**
-	 * Write out any remaining entries and update the parent pointers.
-	 * 
-	 * @param entries - the list of remaining entries
-	 * @param bf - the BTreeFile
-	 * @param nentries - number of entries per page
-	 * @param npagebytes - number of bytes per page
-	 * @param keyType - the type of the key field
-	 * @param tableid - the table id of this BTreeFile
-	 * @param keyField - the index of the key field
-	 * @throws IOException
+	 * A sequence of keys spilled to a temporary file, read back in the same order.
 	 */
-	private static void cleanUpEntries(List<List<BTreeEntry>> entries,
-			BTreeFile bf, int nentries, int npagebytes, Type keyType, int tableid, 
-			int keyField) throws IOException {
-		// As with the leaf pages, there are two options:
-		// 1. We have less than or equal to a full page of entries. Because of the way the code
-		//    was written, we know this must be the root page
-		// 2. We have somewhere between one and two pages of entries remaining.
-		// For case (1), we write out the page 
-		// For case (2), we divide the remaining entries equally between the last two pages,
-		// write them out, and update the parent's child pointers.
-		for(int i = 0; i < entries.size(); i++) {
-			int childPageCategory = (i == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
-			int size = entries.get(i).size();
-			if(size <= nentries) {
-				// write out a page of entries
-				byte[] internalPageBytes = convertToInternalPage(entries.get(i), npagebytes, keyType, childPageCategory);
-				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
-			}
-			else {
-				// split the remaining entries in half
-                List<BTreeEntry> secondToLastPg = new ArrayList<>(entries.get(i).subList(0, size / 2));
-                List<BTreeEntry> lastPg = new ArrayList<>(entries.get(i).subList(size / 2 + 1, size));
-
-				// write out the last two pages of entries
-				byte[] secondToLastPageBytes = convertToInternalPage(secondToLastPg, npagebytes, keyType, childPageCategory);
-				BTreePageId secondToLastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(secondToLastPid, secondToLastPageBytes, keyField));
-
-				byte[] lastPageBytes = convertToInternalPage(lastPg, npagebytes, keyType, childPageCategory);
-				BTreePageId lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(lastPid, lastPageBytes, keyField));
-
-				// update the parent by "pushing up" the next key
-				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(i).get(size/2).getKey(), secondToLastPid, lastPid);
-				updateEntries(entries, bf, pushUpEntry, i+1, nentries, npagebytes, 
-						keyType, tableid, keyField);
+	private static class KeySpill {
+		private final Type keyType;
+		private final File file;
+		private DataOutputStream out;
+		private DataInputStream in = null;
+
+		KeySpill(Type keyType) throws IOException {
+			this.keyType = keyType;
+			this.file = File.createTempFile("btreekeys", ".dat");
+			file.deleteOnExit();
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		}
+
+		void write(Field key) throws IOException {
+			key.serialize(out);
+		}
+
+		/** Finish writing and read the keys from the beginning. */
+		void startReading() throws IOException {
+			out.close();
+			out = null;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		}
+
+		Field read() throws IOException {
+			try {
+				return keyType.parse(in);
+			} catch (java.text.ParseException e) {
+				throw new IOException("corrupt key spill file " + file, e);
 			}
+		}
 
+		void delete() throws IOException {
+			if (out != null) {
+				out.close();
+			}
+			if (in != null) {
+				in.close();
+			}
+			file.delete();
 		}
 	}
 
 	/**
-	 * Recursive function to update the entries by adding a new Entry at a particular level
+	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage
 	 * 
-	 * @param entries - the list of entries
-	 * @param bf - the BTreefile
-	 * @param e - the new entry 
-	 * @param level - the level of the new entry (0 is closest to the leaf pages)
-	 * @param nentries - number of entries per page
+	 * @param tuples - the set of tuples
 	 * @param npagebytes - number of bytes per page
-	 * @param keyType - the type of the key field
-	 * @param tableid - the table id of this BTreeFile
-	 * @param keyField - the index of the key field
+	 * @param numFields - number of fields in each tuple
+	 * @param typeAr - array containing the types of the tuples
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @return a byte array which can be passed to the BTreeLeafPage constructor
 	 * @throws IOException
 	 */
-	private static void updateEntries(List<List<BTreeEntry>> entries,
-			BTreeFile bf, BTreeEntry e, int level, int nentries, int npagebytes, Type keyType, 
-			int tableid, int keyField) throws IOException {
-		while(entries.size() <= level) {
-			entries.add(new ArrayList<>());
-		}
-
-		int childPageCategory = (level == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
-		int size = entries.get(level).size();
-
-		if(size > 0) {
-			BTreeEntry prev = entries.get(level).get(size-1);
-			entries.get(level).set(size-1, new BTreeEntry(prev.getKey(), prev.getLeftChild(), e.getLeftChild()));
-			if(size == nentries * 2 + 1) {
-				// write out a page of entries
-                ArrayList<BTreeEntry> pageEntries = new ArrayList<>(entries.get(level).subList(0, nentries));
-				byte[] internalPageBytes = convertToInternalPage(pageEntries, npagebytes, keyType, childPageCategory);
-				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
-				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
-
-				// update the parent by "pushing up" the next key
-				BTreeEntry pushUpEntry = new BTreeEntry(entries.get(level).get(nentries).getKey(), internalPid, null);
-				updateEntries(entries, bf, pushUpEntry, level + 1, nentries, npagebytes, 
-						keyType, tableid, keyField);
-                List<BTreeEntry> remainingEntries = new ArrayList<>(entries.get(level).subList(nentries + 1, size));
-				entries.get(level).clear();
-				entries.get(level).addAll(remainingEntries);
-			}
-		}
-		entries.get(level).add(e);
+	public static byte[] convertToLeafPage(List<Tuple> tuples, int npagebytes,
+			int numFields, Type[] typeAr, int keyField)
+					throws IOException {
+		return convertToLeafPage(tuples, npagebytes, numFields, typeAr, keyField, 0, 0, 0);
 	}
 
 	/**
-	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage
+	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage with
+	 * the given parent and sibling pointers
 	 * 
 	 * @param tuples - the set of tuples
 	 * @param npagebytes - number of bytes per page
 	 * @param numFields - number of fields in each tuple
 	 * @param typeAr - array containing the types of the tuples
 	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @param parent - the page number of the parent, or 0 for the root pointer
+	 * @param leftSibling - the page number of the left sibling, or 0 if none
+	 * @param rightSibling - the page number of the right sibling, or 0 if none
 	 * @return a byte array which can be passed to the BTreeLeafPage constructor
 	 * @throws IOException
 	 */
 	public static byte[] convertToLeafPage(List<Tuple> tuples, int npagebytes,
-			int numFields, Type[] typeAr, int keyField)
+			int numFields, Type[] typeAr, int keyField, int parent, int leftSibling, int rightSibling)
 					throws IOException {
 		int nrecbytes = 0;
 		for (int i = 0; i < numFields ; i++) {
@@ -531,9 +562,9 @@ public class BTreeFileEncoder {
 		if (recordcount > nrecords)
 			recordcount = nrecords;
 
-		dos.writeInt(0); // parent pointer
-		dos.writeInt(0); // left sibling pointer
-		dos.writeInt(0); // right sibling pointer
+		dos.writeInt(parent); // parent pointer
+		dos.writeInt(leftSibling); // left sibling pointer
+		dos.writeInt(rightSibling); // right sibling pointer
 
 		int i = 0;
 		byte headerbyte = 0;
@@ -621,6 +652,24 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(List<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
+		return convertToInternalPage(entries, npagebytes, keyType, childPageCategory, 0);
+	}
+
+	/**
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage with
+	 * the given parent pointer
+	 * 
+	 * @param entries - the set of entries
+	 * @param npagebytes - number of bytes per page
+	 * @param keyType - the type of the key field
+	 * @param childPageCategory - the category of the child pages (either internal or leaf)
+	 * @param parent - the page number of the parent, or 0 for the root pointer
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 * @throws IOException
+	 */
+	public static byte[] convertToInternalPage(List<BTreeEntry> entries, int npagebytes,
+			Type keyType, int childPageCategory, int parent)
+					throws IOException {
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
@@ -645,7 +694,7 @@ public class BTreeFileEncoder {
 		if (entrycount > nentries)
 			entrycount = nentries;
 
-		dos.writeInt(0); // parent pointer
+		dos.writeInt(parent); // parent pointer
 		dos.writeByte((byte) childPageCategory);
 
 		int i = 0;
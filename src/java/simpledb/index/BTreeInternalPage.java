@@ -27,6 +27,10 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field[] keys;
 	private final int[] children;
 	private final int numSlots;
+	// the used slots in slot (and so key) order in usedSlots[0..numUsed), kept up to
+	// date by markSlotUsed so that searches do not have to step over empty slots
+	private final int[] usedSlots;
+	private int numUsed;
 	
 	private int childCategory; // either leaf or internal
 
@@ -90,6 +94,10 @@ public class BTreeInternalPage extends BTreePage {
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
+		usedSlots = new int[numSlots];
+		for (int i=0; i<numSlots; i++)
+			if (isSlotUsed(i))
+				usedSlots[numUsed++] = i;
 
 		keys = new Field[numSlots];
 		try{
@@ -144,12 +152,7 @@ public class BTreeInternalPage extends BTreePage {
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,getBeforeImageData(),keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -158,13 +161,6 @@ public class BTreeInternalPage extends BTreePage {
 		return null;
 	}
 
-	public void setBeforeImage() {
-		synchronized(oldDataLock)
-		{
-			oldData = getPageData().clone();
-		}
-	}
-
 	/**
 	 * Read keys from the source file.
 	 */
@@ -349,6 +345,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *        delete the left child
 	 */
 	private void deleteEntry(BTreeEntry e, boolean deleteRightChild) throws DbException {
+		beforeModify();
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to delete entry with null rid");
@@ -406,6 +403,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *         order on the page
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
+		beforeModify();
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to update entry with null rid");
@@ -445,6 +443,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
+		beforeModify();
 		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
 			throw new DbException("key field type mismatch, in insertEntry");
 
@@ -573,13 +572,38 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of empty slots on this page.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		// start from 1 because the first key slot is not used
-		// since a node with m keys has m+1 pointers
-		for(int i=1; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		// the first key slot is not used since a node with m keys has m+1 pointers,
+		// so slot 0 only holds a child pointer
+		int used = numUsed > 0 && usedSlots[0] == 0 ? numUsed - 1 : numUsed;
+		return numSlots - 1 - used;
+	}
+
+	/**
+	 * Find the child to descend to for the key field f with a binary search over the
+	 * entries of this page: the left child of the first entry whose key is >= f, or the
+	 * right child of the last entry if there is none. If f is null, the left-most child.
+	 * This takes O(log n) key comparisons for a page with n entries.
+	 * @param f - the field to search for
+	 * @return the child page id, or null if this page has no entries
+	 */
+	public BTreePageId findChild(Field f) {
+		if(numUsed < 2) {
+			return null;
+		}
+		// usedSlots[0] only holds the left-most child, so the keys are in usedSlots[1..]
+		int lo = 1;
+		int hi = f == null ? 1 : numUsed;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(keys[usedSlots[mid]].compare(Op.GREATER_THAN_OR_EQ, f)) {
+				hi = mid;
+			}
+			else {
+				lo = mid + 1;
+			}
+		}
+		// the child left of the first key >= f, or the right-most child
+		return new BTreePageId(pid.getTableId(), children[usedSlots[lo - 1]], childCategory);
 	}
 
 	/**
@@ -599,6 +623,20 @@ public class BTreeInternalPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
+		if(value != isSlotUsed(i)) {
+			// keep usedSlots sorted: open or close a gap at the slot's position
+			int pos = Arrays.binarySearch(usedSlots, 0, numUsed, i);
+			if(value) {
+				pos = -pos - 1;
+				System.arraycopy(usedSlots, pos, usedSlots, pos + 1, numUsed - pos);
+				usedSlots[pos] = i;
+				numUsed++;
+			}
+			else {
+				System.arraycopy(usedSlots, pos + 1, usedSlots, pos, numUsed - pos - 1);
+				numUsed--;
+			}
+		}
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
@@ -765,8 +803,13 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key != null) {
+					// the left child is in the closest used slot before this one,
+					// which need not be the adjacent slot once entries are deleted
+					while(!p.isSlotUsed(curEntry)) {
+						--curEntry;
+					}
+					BTreePageId childId = p.getChildId(curEntry);
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
@@ -23,6 +23,10 @@ public class BTreeLeafPage extends BTreePage {
 	private final byte[] header;
 	private final Tuple[] tuples;
 	private final int numSlots;
+	// the used slots in slot (and so key) order in usedSlots[0..numUsed), kept up to
+	// date by markSlotUsed so that searches do not have to step over empty slots
+	private final int[] usedSlots;
+	private int numUsed;
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
@@ -96,6 +100,10 @@ public class BTreeLeafPage extends BTreePage {
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
+		usedSlots = new int[numSlots];
+		for (int i=0; i<numSlots; i++)
+			if (isSlotUsed(i))
+				usedSlots[numUsed++] = i;
 
 		tuples = new Tuple[numSlots];
 		try{
@@ -135,12 +143,7 @@ public class BTreeLeafPage extends BTreePage {
         -- used by recovery */
 	public BTreeLeafPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,getBeforeImageData(),keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -149,13 +152,6 @@ public class BTreeLeafPage extends BTreePage {
 		return null;
 	}
 
-	public void setBeforeImage() {
-		synchronized(oldDataLock)
-		{
-			oldData = getPageData().clone();
-		}
-	}
-
 	/**
 	 * Read tuples from the source file.
 	 */
@@ -290,6 +286,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param t The tuple to delete
 	 */
 	public void deleteTuple(Tuple t) throws DbException {
+		beforeModify();
 		RecordId rid = t.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to delete tuple with null rid");
@@ -310,6 +307,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param t The tuple to add.
 	 */
 	public void insertTuple(Tuple t) throws DbException {
+		beforeModify();
 		if (!t.getTupleDesc().equals(td))
 			throw new DbException("type mismatch, in addTuple");
 
@@ -326,16 +324,8 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int greater = search(t.getField(keyField), Predicate.Op.GREATER_THAN);
+		int lessOrEqKey = greater > 0 ? usedSlots[greater - 1] : -1;
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -403,6 +393,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setLeftSiblingId(BTreePageId id) throws DbException {
+		beforeModify();
 		if(id == null) {
 			leftSibling = 0;
 		}
@@ -423,6 +414,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setRightSiblingId(BTreePageId id) throws DbException {
+		beforeModify();
 		if(id == null) {
 			rightSibling = 0;
 		}
@@ -448,11 +440,27 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of empty slots on this page.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		for(int i=0; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		return numSlots - numUsed;
+	}
+
+	/**
+	 * Binary search for the first tuple on this page whose key compares true with f
+	 * under op, which must be GREATER_THAN or GREATER_THAN_OR_EQ.
+	 * @return the index into usedSlots of that tuple, or numUsed if there is none
+	 */
+	private int search(Field f, Predicate.Op op) {
+		int lo = 0;
+		int hi = numUsed;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(tuples[usedSlots[mid]].getField(keyField).compare(op, f)) {
+				hi = mid;
+			}
+			else {
+				lo = mid + 1;
+			}
+		}
+		return lo;
 	}
 
 	/**
@@ -472,6 +480,20 @@ public class BTreeLeafPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
+		if(value != isSlotUsed(i)) {
+			// keep usedSlots sorted: open or close a gap at the slot's position
+			int pos = Arrays.binarySearch(usedSlots, 0, numUsed, i);
+			if(value) {
+				pos = -pos - 1;
+				System.arraycopy(usedSlots, pos, usedSlots, pos + 1, numUsed - pos);
+				usedSlots[pos] = i;
+				numUsed++;
+			}
+			else {
+				System.arraycopy(usedSlots, pos + 1, usedSlots, pos, numUsed - pos - 1);
+				numUsed--;
+			}
+		}
 		if(value)
 			header[headerbyte] |= 1 << headerbit;
 		else
@@ -483,7 +505,18 @@ public class BTreeLeafPage extends BTreePage {
 	 * (note that this iterator shouldn't return tuples in empty slots!)
 	 */
 	public Iterator<Tuple> iterator() {
-		return new BTreeLeafPageIterator(this);
+		return new BTreeLeafPageIterator(this, 0);
+	}
+
+	/**
+	 * @param f - the key to start from
+	 * @return an iterator over the tuples on this page whose key is greater than or equal
+	 * to f, found with a binary search over the used slots (calling remove on this
+	 * iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		int first = search(f, Predicate.Op.GREATER_THAN_OR_EQ);
+		return new BTreeLeafPageIterator(this, first < numUsed ? usedSlots[first] : numSlots);
 	}
 
 	/**
@@ -524,12 +557,13 @@ public class BTreeLeafPage extends BTreePage {
  * Helper class that implements the Java Iterator for tuples on a BTreeLeafPage.
  */
 class BTreeLeafPageIterator implements Iterator<Tuple> {
-	int curTuple = 0;
+	int curTuple;
 	Tuple nextToReturn = null;
 	final BTreeLeafPage p;
 
-	public BTreeLeafPageIterator(BTreeLeafPage p) {
+	public BTreeLeafPageIterator(BTreeLeafPage p, int firstSlot) {
 		this.p = p;
+		this.curTuple = firstSlot;
 	}
 
 	public boolean hasNext() {
@@ -20,6 +20,7 @@ import simpledb.transaction.TransactionId;
 public abstract class BTreePage implements Page {
 	protected volatile boolean dirty = false;
 	protected volatile TransactionId dirtier = null;
+	protected volatile long pageLSN = 0;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -28,6 +29,7 @@ public abstract class BTreePage implements Page {
 	protected final int keyField;
 
 	protected int parent; // parent is always internal node or 0 for root node
+	// before image, or null while the page is unchanged since setBeforeImage
 	protected byte[] oldData;
 	protected final Byte oldDataLock= (byte) 0;
 
@@ -81,6 +83,40 @@ public abstract class BTreePage implements Page {
 		return new byte[len]; //all 0
 	}
 
+	/**
+	 * Make the current contents the before image. The copy is taken lazily by
+	 * beforeModify(), so clean pages in the buffer pool never hold a second image.
+	 */
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = null;
+		}
+	}
+
+	/**
+	 * Snapshot the before image if this is the first change since the last
+	 * setBeforeImage. Every method that modifies the page calls this first.
+	 */
+	protected void beforeModify() {
+		synchronized(oldDataLock)
+		{
+			if(oldData == null) {
+				oldData = getPageData();
+			}
+		}
+	}
+
+	/**
+	 * @return the bytes of the before image of this page
+	 */
+	protected byte[] getBeforeImageData() {
+		synchronized(oldDataLock)
+		{
+			return oldData != null ? oldData : getPageData();
+		}
+	}
+
 	/**
 	 * Get the parent id of this page
 	 * @return the parent id
@@ -107,6 +143,7 @@ public abstract class BTreePage implements Page {
 		if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
 			throw new DbException("parent must be an internal node or root pointer");
 		}
+		beforeModify();
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 			parent = 0;
 		}
@@ -134,6 +171,14 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return pageLSN;
+	}
+
+	public void setLSN(long lsn) {
+		this.pageLSN = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
@@ -19,6 +19,7 @@ public class BTreeRootPtrPage implements Page {
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
+	private volatile long pageLSN = 0;
 
 	private final BTreePageId pid;
 
@@ -140,6 +141,14 @@ public class BTreeRootPtrPage implements Page {
 			return null;
 	}
 
+	public long getLSN() {
+		return pageLSN;
+	}
+
+	public void setLSN(long lsn) {
+		this.pageLSN = lsn;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
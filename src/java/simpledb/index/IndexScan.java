@@ -0,0 +1,165 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexOpIterator;
+import simpledb.execution.IndexPredicate;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * IndexScan is an access method that reads the tuples of a table whose
+ * indexed field satisfies an index predicate, either from a table stored
+ * as a B+ tree on the field or through a secondary index of a heap file.
+ * Unlike BTreeScan, the predicate can be replaced when the scan is opened
+ * or rewound, so a plan can probe the index with different keys.
+ */
+public class IndexScan implements IndexOpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private final int tableid;
+	private final String alias;
+	private final TupleDesc myTd;
+	private final transient Function<IndexPredicate, DbFileIterator> source;
+	private IndexPredicate ipred;
+	private transient DbFileIterator it;
+
+	/**
+	 * Creates a scan of a table stored as a B+ tree, on its key field.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan, which must be a BTreeFile
+	 * @param tableAlias
+	 *            the alias of this table; the returned tupleDesc has fields
+	 *            with name tableAlias.fieldName
+	 * @param ipred
+	 *            The index predicate to match
+	 */
+	public IndexScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+		this(tableid, tableAlias, ipred, btreeSource(tid, tableid));
+	}
+
+	/**
+	 * Creates a scan of a heap file through one of its secondary indexes.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to scan; rows come from the table it indexes
+	 * @param tableAlias
+	 *            the alias of the indexed table; the returned tupleDesc has
+	 *            fields with name tableAlias.fieldName
+	 * @param ipred
+	 *            The index predicate to match
+	 */
+	public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this(index.getTableId(), tableAlias, ipred, p -> index.iterator(tid, p));
+	}
+
+	private IndexScan(int tableid, String tableAlias, IndexPredicate ipred,
+			Function<IndexPredicate, DbFileIterator> source) {
+		this.tableid = tableid;
+		this.alias = tableAlias;
+		this.ipred = ipred;
+		this.source = source;
+
+		TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+		String[] newNames = new String[td.numFields()];
+		Type[] newTypes = new Type[td.numFields()];
+		for (int i = 0; i < td.numFields(); i++) {
+			newNames[i] = tableAlias + "." + td.getFieldName(i);
+			newTypes[i] = td.getFieldType(i);
+		}
+		this.myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	private static Function<IndexPredicate, DbFileIterator> btreeSource(TransactionId tid, int tableid) {
+		DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+		if (!(f instanceof BTreeFile))
+			throw new IllegalArgumentException("table " + tableid + " is not stored as a B+ tree");
+		return p -> ((BTreeFile) f).indexIterator(tid, p);
+	}
+
+	/**
+	 * @return the table name of the table the operator scans, as it is in
+	 *         the catalog
+	 */
+	public String getTableName() {
+		return Database.getCatalog().getTableName(tableid);
+	}
+
+	/**
+	 * @return Return the alias of the table this operator scans.
+	 */
+	public String getAlias() {
+		return alias;
+	}
+
+	/**
+	 * @return the predicate the scan is currently matching
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return ipred;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		it = source.apply(ipred);
+		it.open();
+		isOpen = true;
+	}
+
+	public void open(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+		this.ipred = ipred;
+		open();
+	}
+
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+
+		return it.next();
+	}
+
+	public void close() {
+		if (it != null)
+			it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void rewind(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+		close();
+		open(ipred);
+	}
+}
@@ -0,0 +1,285 @@
+package simpledb.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import simpledb.common.Catalog;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * SecondaryIndex is a B+ tree over one column of a HeapFile table. Each entry
+ * of the tree holds the indexed value, copies of any included columns, and the
+ * RecordId of the row in the heap file:
+ * <pre>(key, included..., rid page, rid slot)</pre>
+ * A lookup reads the matching entries and fetches each row by its RecordId.
+ * A query that only needs the key and the included columns can read the
+ * entries alone with {@link #coveringIterator}.
+ * <p>
+ * Indexes are registered with {@link Catalog#addIndex} and are then kept up to
+ * date by BufferPool.insertTuple and deleteTuple. Only heap files can be
+ * indexed: a row of a heap file keeps its RecordId until it is deleted, while
+ * a BTreeFile moves tuples to other pages when it splits or merges them.
+ *
+ * @see BTreeFile
+ * @see HeapFile#getTuple
+ */
+public class SecondaryIndex {
+
+	private final String name;
+	private final HeapFile base;
+	private final int keyField;
+	private final int[] included;
+	private final BTreeFile file;
+	private final TupleDesc coveringDesc;
+
+	/**
+	 * Constructs a secondary index backed by the specified file. The index is
+	 * empty until it is built or rows are inserted into the base table after it
+	 * has been added to the catalog.
+	 *
+	 * @param f - the file that stores the B+ tree of the index
+	 * @param name - the name of the index in the catalog
+	 * @param base - the indexed table
+	 * @param keyField - the field of the base table the index is keyed on
+	 * @param included - fields of the base table copied into each entry
+	 */
+	public SecondaryIndex(File f, String name, HeapFile base, int keyField, int... included) {
+		this.name = name;
+		this.base = base;
+		this.keyField = keyField;
+		this.included = included.clone();
+
+		TupleDesc btd = base.getTupleDesc();
+		int n = included.length;
+		Type[] types = new Type[n + 3];
+		String[] names = new String[n + 3];
+		types[0] = btd.getFieldType(keyField);
+		names[0] = btd.getFieldName(keyField);
+		for(int i = 0; i < n; i++) {
+			types[i + 1] = btd.getFieldType(included[i]);
+			names[i + 1] = btd.getFieldName(included[i]);
+		}
+		types[n + 1] = Type.INT_TYPE;
+		names[n + 1] = "rid_page";
+		types[n + 2] = Type.INT_TYPE;
+		names[n + 2] = "rid_slot";
+		this.file = new BTreeFile(f, 0, new TupleDesc(types, names));
+		this.coveringDesc = new TupleDesc(Arrays.copyOf(types, n + 1), Arrays.copyOf(names, n + 1));
+	}
+
+	/**
+	 * @return the name of this index in the catalog
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the id of the indexed table
+	 */
+	public int getTableId() {
+		return base.getId();
+	}
+
+	/**
+	 * @return the field of the base table this index is keyed on
+	 */
+	public int keyField() {
+		return keyField;
+	}
+
+	/**
+	 * @return the fields of the base table copied into each entry
+	 */
+	public int[] includedFields() {
+		return included.clone();
+	}
+
+	/**
+	 * @return the B+ tree that stores the entries of this index
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the tuple descriptor of tuples returned by {@link #coveringIterator}:
+	 *         the key field followed by the included fields
+	 */
+	public TupleDesc getCoveringTupleDesc() {
+		return coveringDesc;
+	}
+
+	/**
+	 * @return whether the entries of this index hold every one of the given
+	 *         fields of the base table
+	 */
+	public boolean covers(int... fields) {
+		for(int f : fields) {
+			if(f != keyField && Arrays.stream(included).noneMatch(i -> i == f)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Replace the contents of the index with entries for every row of the base
+	 * table, built bottom-up by the bulk loader. Call this after adding the index
+	 * to the catalog and before the index is read.
+	 *
+	 * @param fillFactor - the fraction of each page of the index to fill, in (0, 1]
+	 * @throws IOException
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	public void build(double fillFactor) throws IOException, DbException, TransactionAbortedException {
+		TransactionId tid = new TransactionId();
+		BTreeFileEncoder.bulkLoad(new EntryMapper(base.iterator(tid)) {
+			Tuple map(Tuple row) {
+				return entryFor(row);
+			}
+		}, file, fillFactor);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Add the entry for a row that was just inserted into the base table.
+	 *
+	 * @param tid - the transaction inserting the row
+	 * @param row - the row, with the RecordId it was stored under
+	 */
+	public void insertTuple(TransactionId tid, Tuple row)
+			throws DbException, IOException, TransactionAbortedException {
+		Database.getBufferPool().insertTuple(tid, file.getId(), entryFor(row));
+	}
+
+	/**
+	 * Remove the entry for a row that is being deleted from the base table.
+	 *
+	 * @param tid - the transaction deleting the row
+	 * @param row - the row, with its RecordId
+	 * @throws DbException if the index has no entry for the row
+	 */
+	public void deleteTuple(TransactionId tid, Tuple row)
+			throws DbException, IOException, TransactionAbortedException {
+		RecordId rid = row.getRecordId();
+		Tuple entry = null;
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, row.getField(keyField)));
+		it.open();
+		while(entry == null && it.hasNext()) {
+			Tuple t = it.next();
+			if(rid.equals(ridOf(t))) {
+				entry = t;
+			}
+		}
+		it.close();
+		if(entry == null) {
+			throw new DbException("no entry for the tuple in index " + name);
+		}
+		Database.getBufferPool().deleteTuple(tid, entry);
+	}
+
+	/**
+	 * Get the rows of the base table whose key satisfies the predicate, in key
+	 * order. Each row is fetched from the heap file by its RecordId.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on
+	 * @return an iterator over rows of the base table
+	 */
+	public DbFileIterator iterator(TransactionId tid, IndexPredicate ipred) {
+		return new EntryMapper(file.indexIterator(tid, ipred)) {
+			Tuple map(Tuple entry) throws DbException, TransactionAbortedException {
+				return base.getTuple(tid, ridOf(entry));
+			}
+		};
+	}
+
+	/**
+	 * Get the key and included fields of the entries whose key satisfies the
+	 * predicate, in key order, without reading the base table.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on
+	 * @return an iterator over tuples of {@link #getCoveringTupleDesc}
+	 */
+	public DbFileIterator coveringIterator(TransactionId tid, IndexPredicate ipred) {
+		return new EntryMapper(file.indexIterator(tid, ipred)) {
+			Tuple map(Tuple entry) {
+				Tuple t = new Tuple(coveringDesc);
+				for(int i = 0; i < coveringDesc.numFields(); i++) {
+					t.setField(i, entry.getField(i));
+				}
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Build the index entry for a row of the base table.
+	 */
+	private Tuple entryFor(Tuple row) {
+		TupleDesc td = file.getTupleDesc();
+		int n = included.length;
+		Tuple entry = new Tuple(td);
+		entry.setField(0, row.getField(keyField));
+		for(int i = 0; i < n; i++) {
+			entry.setField(i + 1, row.getField(included[i]));
+		}
+		RecordId rid = row.getRecordId();
+		entry.setField(n + 1, new IntField(rid.getPageId().getPageNumber()));
+		entry.setField(n + 2, new IntField(rid.getTupleNumber()));
+		return entry;
+	}
+
+	/**
+	 * @return the RecordId of the row an index entry points to
+	 */
+	private RecordId ridOf(Tuple entry) {
+		int n = included.length;
+		int pgNo = ((IntField) entry.getField(n + 1)).getValue();
+		int slot = ((IntField) entry.getField(n + 2)).getValue();
+		return new RecordId(new HeapPageId(base.getId(), pgNo), slot);
+	}
+
+	/**
+	 * Helper class that maps each tuple of another DbFileIterator to a new tuple
+	 */
+	private static abstract class EntryMapper extends AbstractDbFileIterator {
+
+		private final DbFileIterator it;
+
+		EntryMapper(DbFileIterator it) {
+			this.it = it;
+		}
+
+		abstract Tuple map(Tuple t) throws DbException, TransactionAbortedException;
+
+		public void open() throws DbException, TransactionAbortedException {
+			it.open();
+		}
+
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			return it.hasNext() ? map(it.next()) : null;
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		public void close() {
+			super.close();
+			it.close();
+		}
+	}
+}
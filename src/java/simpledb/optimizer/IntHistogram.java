@@ -2,10 +2,19 @@ package simpledb.optimizer;
 
 import simpledb.execution.Predicate;
 
+import java.util.Arrays;
+
 /** A class to represent a fixed-width histogram over a single integer-based field.
  */
 public class IntHistogram {
 
+    private final int min;
+    private final int max;
+    private final int[] counts;
+    /** Number of values each bucket covers; the last bucket may cover fewer. */
+    private final double width;
+    private int ntups = 0;
+
     /**
      * Create a new IntHistogram.
      * 
@@ -24,6 +33,39 @@ public class IntHistogram {
      */
     public IntHistogram(int buckets, int min, int max) {
     	// some code goes here
+        this.min = min;
+        this.max = max;
+        // no point in buckets narrower than one value
+        long range = (long) max - min + 1;
+        int n = (int) Math.max(1, Math.min(buckets, range));
+        this.counts = new int[n];
+        this.width = (double) range / n;
+    }
+
+    private int bucket(int v) {
+        return (int) Math.min(counts.length - 1, (v - (long) min) / width);
+    }
+
+    /** @return the fraction of the values in bucket b that are less than v */
+    private double fractionBelow(int b, int v) {
+        double left = min + b * width;
+        return Math.max(0, Math.min(1, (v - left) / width));
+    }
+
+    /** @return the fraction of all values that are less than v */
+    private double lessThan(long v) {
+        if (v <= min) {
+            return 0;
+        }
+        if (v > max) {
+            return 1;
+        }
+        int b = bucket((int) v);
+        double below = counts[b] * fractionBelow(b, (int) v);
+        for (int i = 0; i < b; i++) {
+            below += counts[i];
+        }
+        return below / ntups;
     }
 
     /**
@@ -32,6 +74,9 @@ public class IntHistogram {
      */
     public void addValue(int v) {
     	// some code goes here
+        // a value out of range counts towards the first or last bucket
+        counts[bucket(Math.max(min, Math.min(max, v)))]++;
+        ntups++;
     }
 
     /**
@@ -47,7 +92,34 @@ public class IntHistogram {
     public double estimateSelectivity(Predicate.Op op, int v) {
 
     	// some code goes here
-        return -1.0;
+        if (ntups == 0) {
+            return 0;
+        }
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return equals(v);
+            case NOT_EQUALS:
+                return 1 - equals(v);
+            case LESS_THAN:
+                return lessThan(v);
+            case LESS_THAN_OR_EQ:
+                return lessThan(v + 1L);
+            case GREATER_THAN:
+                return 1 - lessThan(v + 1L);
+            case GREATER_THAN_OR_EQ:
+                return 1 - lessThan(v);
+            default:
+                throw new IllegalArgumentException("unsupported operator " + op);
+        }
+    }
+
+    /** @return the fraction of values equal to v, assuming a uniform spread in its bucket */
+    private double equals(int v) {
+        if (v < min || v > max) {
+            return 0;
+        }
+        return counts[bucket(v)] / Math.max(1, width) / ntups;
     }
     
     /**
@@ -61,7 +133,16 @@ public class IntHistogram {
     public double avgSelectivity()
     {
         // some code goes here
-        return 1.0;
+        if (ntups == 0) {
+            return 1.0;
+        }
+        // the chance that two values drawn at random fall into the same bucket,
+        // spread over the values of that bucket
+        double sum = 0;
+        for (int c : counts) {
+            sum += (double) c * c;
+        }
+        return sum / ((double) ntups * ntups) / Math.max(1, width);
     }
     
     /**
@@ -69,6 +150,7 @@ public class IntHistogram {
      */
     public String toString() {
         // some code goes here
-        return null;
+        return "IntHistogram(" + counts.length + " buckets over [" + min + ", " + max + "], "
+                + ntups + " values: " + Arrays.toString(counts) + ")";
     }
 }
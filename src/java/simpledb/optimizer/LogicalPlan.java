@@ -4,6 +4,9 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.IndexScan;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -274,8 +277,75 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * Page reads charged for the root-to-leaf descent of an index scan, on
+     * top of the pages the scan reads once it reaches the leaves.
+     */
+    static final int INDEX_DESCENT_PAGES = 3;
+
+    /** An index scan that can replace a table scan and one of its filters. */
+    private static class AccessPath {
+        final IndexScan scan;
+        final Predicate predicate;
+        final double cost;
+
+        AccessPath(IndexScan scan, Predicate predicate, double cost) {
+            this.scan = scan;
+            this.predicate = predicate;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * Find the cheapest index scan that returns exactly the tuples of a table
+     * matching a filter: a scan of the table itself if it is a B+ tree keyed on
+     * the filtered field, or of a secondary index on that field. A clustered
+     * scan reads the matching fraction of the table's pages; a secondary index
+     * reads the matching fraction of its own, smaller pages plus one page of the
+     * table for each matching row.
+     *
+     * @param t the transaction the scan runs as part of
+     * @param alias the alias of the table
+     * @param p the filter, on a field of the table
+     * @param sel the estimated selectivity of the filter
+     * @param s the statistics of the table
+     * @return the cheapest index scan, or null if no index can evaluate the filter
+     */
+    private AccessPath indexAccessPath(TransactionId t, String alias, Predicate p, double sel, TableStats s) {
+        switch (p.getOp()) {
+            case EQUALS: case GREATER_THAN: case GREATER_THAN_OR_EQ:
+            case LESS_THAN: case LESS_THAN_OR_EQ:
+                break;
+            default:
+                return null;
+        }
+        int tableId = getTableId(alias);
+        IndexPredicate ipred = new IndexPredicate(p.getOp(), p.getOperand());
+        double descent = (double) TableStats.IOCOSTPERPAGE * INDEX_DESCENT_PAGES;
+        double scanCost = s.estimateScanCost();
+        AccessPath best = null;
+
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (file instanceof BTreeFile && ((BTreeFile) file).keyField() == p.getField()) {
+            best = new AccessPath(new IndexScan(t, tableId, alias, ipred), p, descent + sel * scanCost);
+        }
+        int tupleSize = file.getTupleDesc().getSize();
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            if (index.keyField() != p.getField())
+                continue;
+            double entryRatio = (double) index.getFile().getTupleDesc().getSize() / tupleSize;
+            double cost = descent + sel * scanCost * entryRatio
+                    + sel * s.totalTuples() * TableStats.IOCOSTPERPAGE;
+            if (best == null || cost < best.cost)
+                best = new AccessPath(new IndexScan(t, index, alias, ipred), p, cost);
+        }
+        return best;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
+     *   Each table is read by a sequential scan, or by an index scan on one of
+     *   its filters if the estimated cost of the index scan is lower.
      *  @param t The transaction that the returned OpIterator will run as a part of
      *  @param baseTableStats a HashMap providing a {@link TableStats}
      *    object for each table used in the LogicalPlan.  This should
@@ -292,6 +362,8 @@ public class LogicalPlan {
         Map<String,String> equivMap = new HashMap<>();
         Map<String,Double> filterSelectivities = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
+        Map<String,List<Predicate>> filterPredicates = new HashMap<>();
+        Map<String,AccessPath> accessPaths = new HashMap<>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -335,15 +407,37 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            filterPredicates.computeIfAbsent(lf.tableAlias, k -> new ArrayList<>()).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
             double sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
+            AccessPath path = indexAccessPath(t, lf.tableAlias, p, sel, s);
+            AccessPath best = accessPaths.get(lf.tableAlias);
+            if (path != null && path.cost < s.estimateScanCost() && (best == null || path.cost < best.cost))
+                accessPaths.put(lf.tableAlias, path);
+
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        // read each table through its cheapest access path, then apply the
+        // filters the access path does not evaluate
+        for (Map.Entry<String, List<Predicate>> e : filterPredicates.entrySet()) {
+            OpIterator subplan = subplanMap.get(e.getKey());
+            AccessPath path = accessPaths.get(e.getKey());
+            if (path != null) {
+                subplan = path.scan;
+                if (explain)
+                    System.out.println("Using an index scan on " + e.getKey() + " (" + path.scan.getTableName() + ")");
+            }
+            for (Predicate p : e.getValue()) {
+                if (path == null || p != path.predicate)
+                    subplan = new Filter(p, subplan);
+            }
+            subplanMap.put(e.getKey(), subplan);
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
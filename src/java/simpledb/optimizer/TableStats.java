@@ -1,15 +1,19 @@
 package simpledb.optimizer;
 
 import simpledb.common.Database;
+import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
-import simpledb.execution.SeqScan;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -68,6 +72,15 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    private final int ioCostPerPage;
+    private final TupleDesc td;
+    private int numPages;
+    private int numTuples = 0;
+    /** Histogram of each INT_TYPE field, null for other fields. */
+    private final IntHistogram[] intHistograms;
+    /** Histogram of each STRING_TYPE field, null for other fields. */
+    private final StringHistogram[] stringHistograms;
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
@@ -87,6 +100,77 @@ public class TableStats {
         // necessarily have to (for example) do everything
         // in a single scan of the table.
         // some code goes here
+        this.ioCostPerPage = ioCostPerPage;
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        this.td = file.getTupleDesc();
+        int n = td.numFields();
+        this.intHistograms = new IntHistogram[n];
+        this.stringHistograms = new StringHistogram[n];
+
+        // a snapshot sees the same tuples in both passes and never holds up writers
+        Transaction t = new Transaction();
+        t.startSnapshot();
+        boolean done = false;
+        try {
+            DbFileIterator it = file.iterator(t.getId());
+            it.open();
+
+            // first pass: the number of tuples and pages, and the range of each int field
+            int[] min = new int[n];
+            int[] max = new int[n];
+            Arrays.fill(min, Integer.MAX_VALUE);
+            Arrays.fill(max, Integer.MIN_VALUE);
+            Set<PageId> pages = new HashSet<>();
+            while (it.hasNext()) {
+                Tuple tup = it.next();
+                numTuples++;
+                pages.add(tup.getRecordId().getPageId());
+                for (int i = 0; i < n; i++) {
+                    if (td.getFieldType(i) == Type.INT_TYPE) {
+                        int v = ((IntField) tup.getField(i)).getValue();
+                        min[i] = Math.min(min[i], v);
+                        max[i] = Math.max(max[i], v);
+                    }
+                }
+            }
+            // a heap file is read page by page, empty pages included
+            numPages = file instanceof HeapFile ? ((HeapFile) file).numPages() : pages.size();
+
+            for (int i = 0; i < n; i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    intHistograms[i] = numTuples == 0 ? new IntHistogram(NUM_HIST_BINS, 0, 0)
+                            : new IntHistogram(NUM_HIST_BINS, min[i], max[i]);
+                } else {
+                    stringHistograms[i] = new StringHistogram(NUM_HIST_BINS);
+                }
+            }
+
+            // second pass: fill the histograms
+            it.rewind();
+            while (it.hasNext()) {
+                Tuple tup = it.next();
+                for (int i = 0; i < n; i++) {
+                    if (intHistograms[i] != null) {
+                        intHistograms[i].addValue(((IntField) tup.getField(i)).getValue());
+                    } else {
+                        stringHistograms[i].addValue(((StringField) tup.getField(i)).getValue());
+                    }
+                }
+            }
+            it.close();
+            t.commit();
+            done = true;
+        } catch (DbException | TransactionAbortedException | IOException e) {
+            throw new RuntimeException("failed to compute statistics of table " + tableid, e);
+        } finally {
+            if (!done) {
+                try {
+                    t.abort();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
     }
 
     /**
@@ -103,7 +187,7 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-        return 0;
+        return (double) numPages * ioCostPerPage;
     }
 
     /**
@@ -117,7 +201,7 @@ public class TableStats {
      */
     public int estimateTableCardinality(double selectivityFactor) {
         // some code goes here
-        return 0;
+        return (int) Math.round(numTuples * selectivityFactor);
     }
 
     /**
@@ -132,7 +216,18 @@ public class TableStats {
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        return 1.0;
+        double eq = intHistograms[field] != null ? intHistograms[field].avgSelectivity()
+                : stringHistograms[field].avgSelectivity();
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return eq;
+            case NOT_EQUALS:
+                return 1 - eq;
+            default:
+                // on average a range predicate keeps half of the tuples
+                return 0.5;
+        }
     }
 
     /**
@@ -150,7 +245,10 @@ public class TableStats {
      */
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
-        return 1.0;
+        if (intHistograms[field] != null) {
+            return intHistograms[field].estimateSelectivity(op, ((IntField) constant).getValue());
+        }
+        return stringHistograms[field].estimateSelectivity(op, ((StringField) constant).getValue());
     }
 
     /**
@@ -158,7 +256,7 @@ public class TableStats {
      * */
     public int totalTuples() {
         // some code goes here
-        return 0;
+        return numTuples;
     }
 
 }
@@ -0,0 +1,220 @@
+package simpledb.storage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferFrame is one slot of the BufferPool page table. It holds the cached
+ * page together with the number of callers currently pinning it. Frames
+ * returned by {@link BufferPool#pinPage} act as handles: while pinned, the
+ * frame stays resident and {@link #getPage} returns its current version.
+ * <p>
+ * A frame is created empty and filled by the first caller of {@link #load};
+ * concurrent callers block on the frame until that read finishes, so a miss
+ * on a given PageId is read from disk only once (single-flight loading).
+ * <p>
+ * The pin count doubles as the eviction latch: a value of -1 means the frame
+ * has been evicted and must not be pinned again. Callers that fail to pin
+ * must look the page up again.
+ * <p>
+ * In an off-heap pool the frame owns one {@link PageArena} slot and keeps
+ * the image of its {@link RelocatablePage} there; the image is copied back
+ * to the heap when the page is replaced or the frame is released.
+ *
+ * @see BufferPool
+ */
+public class BufferFrame {
+
+    private static final int EVICTED = -1;
+
+    private final PageId pid;
+    private final AtomicInteger pinCount = new AtomicInteger(0);
+    private volatile Page page;
+    private volatile boolean loaded = false;
+    /** Set when the page holds committed changes that are not on disk yet. */
+    private volatile boolean needsWrite = false;
+    /**
+     * Log offset at or before the oldest update record of this page that
+     * is not on disk yet, or -1 if the disk image is current.
+     */
+    private volatile long recLSN = -1;
+
+    /** Arena holding resident page images, or null for an on-heap pool. */
+    private final PageArena arena;
+    private int arenaSlot = -1;
+
+    BufferFrame(PageId pid, PageArena arena) {
+        this.pid = pid;
+        this.arena = arena;
+    }
+
+    /** Create a frame that already holds the given page. */
+    BufferFrame(Page page, PageArena arena) {
+        this(page.getId(), arena);
+        this.page = page;
+        this.loaded = true;
+        attach(page);
+    }
+
+    public PageId getId() {
+        return pid;
+    }
+
+    /**
+     * @return the cached page, or null if the frame has not been loaded yet
+     */
+    public Page getPage() {
+        return page;
+    }
+
+    /**
+     * Replace the cached page, e.g. with a newer version returned by a
+     * DbFile update or with a before image on abort.
+     */
+    synchronized void setPage(Page page) {
+        if (page != this.page) {
+            detach();
+            this.page = page;
+            attach(page);
+        }
+        this.loaded = true;
+    }
+
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return true if the page holds committed changes that the page
+     * cleaner has not written back yet
+     */
+    boolean needsWrite() {
+        return needsWrite;
+    }
+
+    void setNeedsWrite(boolean needsWrite) {
+        this.needsWrite = needsWrite;
+    }
+
+    /** @return the recovery LSN of the page, or -1 if its disk image is current */
+    long getRecLSN() {
+        return recLSN;
+    }
+
+    /**
+     * Note that an update record of the page is about to be logged at or
+     * after offset. Keeps the older offset if one is already set.
+     */
+    synchronized void noteLogged(long offset) {
+        if (recLSN < 0) {
+            recLSN = offset;
+        }
+    }
+
+    /** Note that the page was written and its disk image is current. */
+    void clearRecLSN() {
+        recLSN = -1;
+    }
+
+    /**
+     * Read the page from its DbFile unless another caller already did.
+     *
+     * @return the cached page
+     */
+    synchronized Page load(DbFile file) {
+        if (!loaded) {
+            page = file.readPage(pid);
+            loaded = true;
+            attach(page);
+        }
+        return page;
+    }
+
+    /**
+     * Give up the arena slot of this frame once it has left the page table.
+     * The page is moved back to the heap, so callers that still hold a
+     * reference to it keep seeing valid data.
+     */
+    synchronized void release() {
+        detach();
+        if (arenaSlot >= 0) {
+            arena.release(arenaSlot);
+            arenaSlot = -1;
+        }
+    }
+
+    private void attach(Page p) {
+        if (arena == null || !(p instanceof RelocatablePage)
+                || arena.getSlotSize() != BufferPool.getPageSize()) {
+            return;
+        }
+        if (arenaSlot < 0) {
+            arenaSlot = arena.allocate();
+            if (arenaSlot < 0) {
+                // concurrent misses overfilled the pool, stay on the heap
+                return;
+            }
+        }
+        ((RelocatablePage) p).relocate(arena.slot(arenaSlot));
+    }
+
+    private void detach() {
+        if (arenaSlot >= 0 && page instanceof RelocatablePage) {
+            ((RelocatablePage) page).relocate(ByteBuffer.allocate(BufferPool.getPageSize()));
+        }
+    }
+
+    /**
+     * Pin this frame so that it cannot be evicted.
+     *
+     * @return false if the frame was evicted concurrently
+     */
+    boolean pin() {
+        while (true) {
+            int c = pinCount.get();
+            if (c == EVICTED) {
+                return false;
+            }
+            if (pinCount.compareAndSet(c, c + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void unpin() {
+        while (true) {
+            int c = pinCount.get();
+            if (c == EVICTED) {
+                // discarded while pinned, nothing left to release
+                return;
+            }
+            assert c > 0 : "unbalanced unpin of " + pid;
+            if (pinCount.compareAndSet(c, c - 1)) {
+                return;
+            }
+        }
+    }
+
+    public int getPinCount() {
+        return Math.max(pinCount.get(), 0);
+    }
+
+    /**
+     * Atomically mark an unpinned frame as evicted.
+     *
+     * @return true if the frame was unpinned and is now evicted
+     */
+    boolean tryEvict() {
+        return pinCount.compareAndSet(0, EVICTED);
+    }
+
+    /** Undo a successful {@link #tryEvict} that the caller decided to abandon. */
+    void cancelEvict() {
+        pinCount.compareAndSet(EVICTED, 0);
+    }
+
+    /** Mark the frame as evicted regardless of its pins (used by discardPage). */
+    void invalidate() {
+        pinCount.set(EVICTED);
+    }
+}
@@ -1,15 +1,20 @@
 package simpledb.storage;
 
 import simpledb.common.*;
+import simpledb.index.SecondaryIndex;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -24,33 +29,202 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class BufferPool {
 
-    LockManager lockManager;
+    final LockManager lockManager;
 
-    private LinkedHashMap<PageId, Page> pageMap;
+    /** Resident pages, keyed by PageId. Frames are pinned while in use. */
+    private final ConcurrentHashMap<PageId, BufferFrame> pageTable;
 
-    private int maxPages;
+    private final int maxPages;
+
+    private final EvictionPolicy evictionPolicy;
+
+    /** Off-heap storage for resident page images, or null for an on-heap pool. */
+    private final PageArena arena;
+
+    /** Background writer of committed pages, or null if commits write them. */
+    private final PageCleaner cleaner;
+
+    /** Whether eviction may write pages of running transactions (STEAL). */
+    private final boolean steal;
+
+    /** Committed page versions for snapshot reads, or null without snapshots. */
+    private final VersionStore versions;
+
+    /** Read sets, write sets and private pages of optimistic transactions. */
+    private final OptimisticValidator optimistic = new OptimisticValidator();
+
+    /** Lock owner used when writing committed pages back. */
+    private final TransactionId cleanerTid = new TransactionId();
+
+    /** Transactions being rolled back from the log; their dirty pages are not flushed. */
+    private final Set<TransactionId> rollingBack = ConcurrentHashMap.newKeySet();
+
+    /** Serializes victim selection; never held while reading a page. */
+    private final Object evictionLock = new Object();
+
+    /**
+     * Background readers shared by all pools. Prefetching is advisory, so
+     * the threads are daemons and a JVM can exit with reads still queued.
+     */
+    private static final ExecutorService PREFETCHER = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "simpledb-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
 
     private static final int DEFAULT_PAGE_SIZE = 4096;
 
     private static int pageSize = DEFAULT_PAGE_SIZE;
 
-    Iterator<PageId> pageIter = null;
-
     /** Default number of pages passed to the constructor. This is used by
      other classes. BufferPool should use the numPages argument to the
      constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /**
+     * System property that makes pools created without an explicit mode
+     * keep page images off-heap, e.g. -Dsimpledb.storage.BufferPool.offHeap=true
+     */
+    public static final String OFF_HEAP_PROPERTY = "simpledb.storage.BufferPool.offHeap";
+
+    /**
+     * System property that makes pools created without an explicit mode run
+     * a page cleaner that wakes every given number of milliseconds, e.g.
+     * -Dsimpledb.storage.BufferPool.pageCleaner=50
+     */
+    public static final String PAGE_CLEANER_PROPERTY = "simpledb.storage.BufferPool.pageCleaner";
+
+    /**
+     * System property that makes pools created without an explicit mode
+     * evict dirty pages (STEAL), e.g. -Dsimpledb.storage.BufferPool.steal=true
+     */
+    public static final String STEAL_PROPERTY = "simpledb.storage.BufferPool.steal";
+
+    /**
+     * System property that makes pools created without an explicit mode
+     * support snapshot reads, e.g. -Dsimpledb.storage.BufferPool.snapshots=true
+     */
+    public static final String SNAPSHOTS_PROPERTY = "simpledb.storage.BufferPool.snapshots";
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new TwoQueueEvictionPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and picks
+     * eviction victims with the given policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy the replacement policy used by evictPage
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy) {
+        this(numPages, evictionPolicy, Boolean.getBoolean(OFF_HEAP_PROPERTY),
+                Long.getLong(PAGE_CLEANER_PROPERTY, 0), Boolean.getBoolean(STEAL_PROPERTY),
+                Boolean.getBoolean(SNAPSHOTS_PROPERTY));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     * <p>
+     * In off-heap mode the pool allocates one direct {@link PageArena} of
+     * numPages slots up front, and pages that support it
+     * ({@link RelocatablePage}) keep their bytes in their frame's slot
+     * instead of on the Java heap. Callers that keep using a page across
+     * other BufferPool calls should pin it with {@link #pinPage}.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy the replacement policy used by evictPage
+     * @param offHeap whether resident page images live in a direct arena
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy, boolean offHeap) {
+        this(numPages, evictionPolicy, offHeap, 0);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     * <p>
+     * With a positive cleanerIntervalMillis the pool runs a
+     * {@link PageCleaner}: committing a transaction logs the after images
+     * of its pages instead of writing them, and the cleaner writes them back
+     * in the background once the log is forced. Otherwise commits write
+     * their pages synchronously.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy the replacement policy used by evictPage
+     * @param offHeap whether resident page images live in a direct arena
+     * @param cleanerIntervalMillis how often the page cleaner runs, or 0 for
+     *                              no page cleaner
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy, boolean offHeap,
+                      long cleanerIntervalMillis) {
+        this(numPages, evictionPolicy, offHeap, cleanerIntervalMillis, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     * <p>
+     * In STEAL mode eviction may pick a page dirtied by a running
+     * transaction. The page's update is logged, the log is forced up to
+     * the page LSN, and the page is written, so a transaction's write set
+     * is not limited by the pool size. Such a transaction must abort
+     * through {@link LogFile#logAbort}, as {@link simpledb.transaction.Transaction}
+     * does, which undoes the written pages from the log.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy the replacement policy used by evictPage
+     * @param offHeap whether resident page images live in a direct arena
+     * @param cleanerIntervalMillis how often the page cleaner runs, or 0 for
+     *                              no page cleaner
+     * @param steal whether eviction may write uncommitted pages
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy, boolean offHeap,
+                      long cleanerIntervalMillis, boolean steal) {
+        this(numPages, evictionPolicy, offHeap, cleanerIntervalMillis, steal, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     * <p>
+     * With snapshots enabled, transactions started by
+     * {@link #beginSnapshot} read the pages as of their start from a
+     * {@link VersionStore} and take no locks, so they never wait for
+     * writers. Writers then copy each page they pin READ_WRITE once, and
+     * their commits keep the new images while older snapshots run.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy the replacement policy used by evictPage
+     * @param offHeap whether resident page images live in a direct arena
+     * @param cleanerIntervalMillis how often the page cleaner runs, or 0 for
+     *                              no page cleaner
+     * @param steal whether eviction may write uncommitted pages
+     * @param snapshots whether read-only transactions may read snapshots
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy, boolean offHeap,
+                      long cleanerIntervalMillis, boolean steal, boolean snapshots) {
         // some code goes here
-        this.pageMap = new LinkedHashMap<>(numPages);
+        this.steal = steal;
+        this.versions = snapshots ? new VersionStore() : null;
+        this.pageTable = new ConcurrentHashMap<>(numPages);
         this.maxPages = numPages;
         this.lockManager = new LockManager();
+        this.evictionPolicy = evictionPolicy;
+        this.arena = offHeap ? new PageArena(numPages, getPageSize()) : null;
+        if (cleanerIntervalMillis > 0) {
+            this.cleaner = new PageCleaner(this, cleanerIntervalMillis);
+            this.cleaner.start();
+        } else {
+            this.cleaner = null;
+        }
+    }
+
+    /** @return the maximum number of pages this pool caches */
+    public int getNumPages() {
+        return maxPages;
     }
 
     public static int getPageSize() {
@@ -77,6 +251,10 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * Lookups go through a ConcurrentHashMap and never take the pool
+     * monitor. The frame is pinned while it is being loaded, and threads
+     * that miss on the same page concurrently wait for a single read.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -85,22 +263,317 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
+        BufferFrame frame = pinPage(tid, pid, perm);
+        if (frame == null) {
+            return null;
+        }
+        Page page = frame.getPage();
+        frame.unpin();
+        return page;
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage} and pin its frame.
+     * A pinned frame is never evicted, so the caller may keep using it
+     * until it calls {@link #unpinPage}. Every successful call must be
+     * matched by exactly one unpinPage.
+     * <p>
+     * The frame always returns the current cached version of the page,
+     * so iterators can hold on to it instead of looking the page up again.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return the pinned frame, or null if the page could not be read
+     */
+    public BufferFrame pinPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        if (versions != null && versions.isSnapshot(tid)) {
+            return pinSnapshotPage(tid, pid, perm);
+        }
+        OptimisticValidator.State occ = optimistic.state(tid);
+        if (occ != null) {
+            return pinOptimisticPage(tid, occ, pid);
+        }
         try{
             lockManager.acquire(tid, pid, perm);
         } catch(InterruptedException e){
             e.printStackTrace();
         }
 
-        Page page =  pageMap.get(pid);
-        if (page==null){
-            if(pageMap.size()>=maxPages) {
-                evictPage();
+        BufferFrame frame = pinFrame(pid);
+        if (frame != null && perm == Permissions.READ_WRITE) {
+            optimistic.noteWriting(tid, pid);
+            if (versions != null) {
+                versions.beforeWrite(tid, frame.getPage());
             }
-            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            page = file.readPage(pid);
-            pageMap.put(pid, page);
         }
-        return page;
+        return frame;
+    }
+
+    /**
+     * Start an optimistic transaction: it reads and writes private copies
+     * of committed pages without taking locks, and is validated by
+     * {@link #commitOptimistic}.
+     */
+    public void beginOptimistic(TransactionId tid) {
+        optimistic.begin(tid);
+    }
+
+    /**
+     * Return tid's private copy of a page, copying the committed page on
+     * first use. Reads and writes are the same for an optimistic
+     * transaction; its changes stay in the copy until commit.
+     *
+     * @throws TransactionAbortedException if another transaction is writing
+     *   the page, so its image is not committed
+     */
+    private BufferFrame pinOptimisticPage(TransactionId tid, OptimisticValidator.State occ, PageId pid)
+            throws TransactionAbortedException, DbException {
+        Page page = occ.pages.get(pid);
+        if (page == null) {
+            if (optimistic.isWrittenByOther(tid, pid)) {
+                throw new TransactionAbortedException("optimistic read conflicts with a writer of " + pid);
+            }
+            try {
+                byte[] data = readCommitted(pid).getPageData();
+                // a writer registers before it changes the page, so the copy is committed
+                if (optimistic.isWrittenByOther(tid, pid)) {
+                    throw new TransactionAbortedException("optimistic read conflicts with a writer of " + pid);
+                }
+                page = LogPageType.of(pid).newPage(pid, data);
+            } catch (IOException e) {
+                throw new DbException("could not read " + pid + ": " + e.getMessage());
+            }
+            occ.pages.put(pid, page);
+            occ.reads.add(pid);
+        }
+        BufferFrame frame = new BufferFrame(page, null);
+        frame.pin();
+        return frame;
+    }
+
+    /**
+     * Validate an optimistic transaction and install its changes in the
+     * pool. Its write set is locked exclusively first, which orders it with
+     * locking transactions; the caller then completes the transaction with
+     * {@link #transactionComplete}, which logs and writes the pages as for
+     * any commit.
+     *
+     * @return false if validation failed; the caller must abort tid
+     * @throws TransactionAbortedException if locking the write set deadlocked
+     */
+    public boolean commitOptimistic(TransactionId tid) throws TransactionAbortedException {
+        OptimisticValidator.State occ = optimistic.state(tid);
+        if (occ == null) {
+            throw new IllegalArgumentException(tid + " is not optimistic");
+        }
+        List<Page> writes = occ.writes(tid);
+        Set<PageId> writeSet = new HashSet<>();
+        for (Page p : writes) {
+            try {
+                lockManager.acquire(tid, p.getId(), Permissions.READ_WRITE);
+            } catch (InterruptedException e) {
+                throw new TransactionAbortedException("interrupted locking " + p.getId());
+            }
+            optimistic.noteWriting(tid, p.getId());
+            writeSet.add(p.getId());
+        }
+        if (!optimistic.validate(tid, writeSet)) {
+            return false;
+        }
+        try {
+            for (Page p : writes) {
+                if (versions != null) {
+                    versions.beforeWrite(tid, readCommitted(p.getId()));
+                }
+                cachePage(p);
+            }
+        } catch (IOException | DbException e) {
+            throw new TransactionAbortedException("could not install " + tid + ": " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Start a read-only transaction that reads a snapshot of the committed
+     * database as of now, without locks. The snapshot ends with
+     * {@link #transactionComplete}.
+     *
+     * @return false if this pool does not support snapshots, in which case
+     *   tid reads under locks like any other transaction
+     */
+    public boolean beginSnapshot(TransactionId tid) {
+        if (versions == null) {
+            return false;
+        }
+        versions.beginSnapshot(tid);
+        return true;
+    }
+
+    /**
+     * Return a private copy of the page as of tid's snapshot, in a pinned
+     * frame that is not part of the pool.
+     */
+    private BufferFrame pinSnapshotPage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        if (perm == Permissions.READ_WRITE) {
+            throw new DbException("snapshot transaction " + tid + " cannot write " + pid);
+        }
+        Page page;
+        try {
+            page = versions.read(tid, pid, this::readCommitted);
+        } catch (IOException e) {
+            throw new DbException("could not read " + pid + " for snapshot: " + e.getMessage());
+        }
+        BufferFrame frame = new BufferFrame(page, null);
+        frame.pin();
+        return frame;
+    }
+
+    /** Read the current image of a page through the pool without locking it. */
+    private Page readCommitted(PageId pid) throws IOException {
+        try {
+            BufferFrame frame = pinFrame(pid);
+            if (frame == null) {
+                throw new IOException("page " + pid + " does not exist");
+            }
+            try {
+                return frame.getPage();
+            } finally {
+                frame.unpin();
+            }
+        } catch (DbException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Look the page up and pin its frame, reading it into the pool on a miss.
+     *
+     * @return the pinned frame, or null if the page could not be read
+     */
+    private BufferFrame pinFrame(PageId pid) throws DbException {
+        while (true) {
+            BufferFrame frame = pageTable.get(pid);
+            boolean created = false;
+            if (frame == null) {
+                BufferFrame fresh = new BufferFrame(pid, arena);
+                fresh.pin();
+                frame = pageTable.putIfAbsent(pid, fresh);
+                if (frame == null) {
+                    frame = fresh;
+                    created = true;
+                } else if (!frame.pin()) {
+                    continue;
+                }
+            } else if (!frame.pin()) {
+                // lost a race with eviction, look the page up again
+                continue;
+            }
+
+            Page page;
+            try {
+                if (created) {
+                    ensureCapacity();
+                }
+                page = frame.load(Database.getCatalog().getDatabaseFile(pid.getTableId()));
+            } catch (DbException | RuntimeException e) {
+                frame.unpin();
+                dropUnloadedFrame(frame);
+                throw e;
+            }
+
+            if (page == null) {
+                frame.unpin();
+                dropUnloadedFrame(frame);
+                return null;
+            }
+            if (created) {
+                evictionPolicy.pageLoaded(pid);
+            } else {
+                evictionPolicy.pageAccessed(pid);
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * Release a pin taken by {@link #pinPage}. The frame becomes a candidate
+     * for eviction once its last pin is released.
+     *
+     * @param frame the frame returned by pinPage
+     */
+    public void unpinPage(BufferFrame frame) {
+        frame.unpin();
+    }
+
+    /**
+     * Schedule an asynchronous read of the specified page into the pool, so
+     * that a later getPage finds it resident. Returns immediately.
+     * <p>
+     * The page is loaded without taking a lock: prefetching only caches the
+     * on-disk image, and readers still lock the page through getPage. Pages
+     * that are already resident are left alone. If the page cannot be read
+     * or no frame can be evicted for it, the request is dropped.
+     *
+     * @param pid the ID of the page to read ahead
+     * @see ReadAhead
+     */
+    public void prefetchPage(PageId pid) {
+        if (pageTable.containsKey(pid)) {
+            return;
+        }
+        // the frame is published right away, so a reader that gets there
+        // before the prefetcher loads the page itself instead of reading twice
+        BufferFrame fresh = new BufferFrame(pid, arena);
+        fresh.pin();
+        if (pageTable.putIfAbsent(pid, fresh) != null) {
+            return;
+        }
+        PREFETCHER.execute(() -> {
+            try {
+                ensureCapacity();
+                if (fresh.load(Database.getCatalog().getDatabaseFile(pid.getTableId())) != null) {
+                    evictionPolicy.pageLoaded(pid);
+                }
+            } catch (Exception e) {
+                // advisory read; a later getPage reports any real error
+            } finally {
+                fresh.unpin();
+                dropUnloadedFrame(fresh);
+            }
+        });
+    }
+
+    /** @return true if the page has a frame in the pool, loaded or not */
+    boolean isResident(PageId pid) {
+        return pageTable.containsKey(pid);
+    }
+
+    /**
+     * @return the cached image of the page, or null if it is not loaded.
+     *         Does not lock or pin the page; used by rollback.
+     */
+    Page getCachedPage(PageId pid) {
+        BufferFrame frame = pageTable.get(pid);
+        return frame == null || !frame.isLoaded() ? null : frame.getPage();
+    }
+
+    /** @return true if the page is in the pool and its read has finished */
+    boolean isLoaded(PageId pid) {
+        BufferFrame frame = pageTable.get(pid);
+        return frame != null && frame.isLoaded();
+    }
+
+    /**
+     * Remove a frame whose load failed, unless another caller is still
+     * waiting on it.
+     */
+    private void dropUnloadedFrame(BufferFrame frame) {
+        if ((!frame.isLoaded() || frame.getPage() == null) && frame.tryEvict()) {
+            pageTable.remove(frame.getId(), frame);
+            frame.release();
+        }
     }
 
     /**
@@ -117,6 +590,107 @@ public class BufferPool {
         lockManager.release(tid, pid);
     }
 
+    /**
+     * Acquire the lock {@link #getPage} takes on a page, without reading the
+     * page. An index descent locks a page this way before it knows whether
+     * it will change it, and releases the lock with
+     * {@link #unsafeReleasePage} if it does not.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param pid the ID of the page to lock
+     * @param perm the permissions the lock grants
+     */
+    public void lockPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        if (!takesLocks(tid)) {
+            return;
+        }
+        try {
+            lockManager.acquire(tid, pid, perm);
+        } catch (InterruptedException e) {
+            throw new TransactionAbortedException("interrupted locking " + pid);
+        }
+    }
+
+    /**
+     * Releases tid's lock on a page if it is only a shared lock. Index scans
+     * call this on leaves they have moved past once key-range locks protect
+     * what they read there.
+     *
+     * @see LockManager#releaseShared
+     */
+    public void releaseSharedPage(TransactionId tid, PageId pid) {
+        lockManager.releaseShared(tid, pid);
+    }
+
+    /**
+     * Lock the range of an index key for tid until it completes: the key
+     * and the gap down to the next smaller key, or the end of the index for
+     * a null key. Snapshot and optimistic transactions take no locks, so
+     * this does nothing for them.
+     *
+     * @param tableId the id of the index file
+     * @param mode S to read the range, X to insert or delete the key
+     * @see LockManager#acquireKeyRange
+     */
+    public void lockKeyRange(TransactionId tid, int tableId, Field key, LockMode mode)
+            throws TransactionAbortedException {
+        if (!takesLocks(tid)) {
+            return;
+        }
+        try {
+            lockManager.acquireKeyRange(tid, tableId, key, mode);
+        } catch (InterruptedException e) {
+            throw new TransactionAbortedException("interrupted locking the range of " + key);
+        }
+    }
+
+    /**
+     * Lock the range of an index key for tid like lockKeyRange, but only if
+     * the lock can be granted right away. Never blocks.
+     *
+     * @return true if tid now holds the lock, or takes no locks
+     * @see LockManager#tryAcquireKeyRange
+     */
+    public boolean tryLockKeyRange(TransactionId tid, int tableId, Field key, LockMode mode) {
+        return !takesLocks(tid) || lockManager.tryAcquireKeyRange(tid, tableId, key, mode);
+    }
+
+    /**
+     * Wait until no other transaction holds a lock on the range of an index
+     * key that conflicts with mode, without keeping a lock. Inserts check
+     * the range of the next key this way.
+     *
+     * @see LockManager#awaitKeyRange
+     */
+    public void awaitKeyRange(TransactionId tid, int tableId, Field key, LockMode mode)
+            throws TransactionAbortedException {
+        if (!takesLocks(tid)) {
+            return;
+        }
+        try {
+            lockManager.awaitKeyRange(tid, tableId, key, mode);
+        } catch (InterruptedException e) {
+            throw new TransactionAbortedException("interrupted waiting for the range of " + key);
+        }
+    }
+
+    /**
+     * Check like awaitKeyRange whether tid could lock the range of an index
+     * key in mode, without waiting and without keeping a lock.
+     *
+     * @return true if no other transaction holds a conflicting lock on the
+     *   range, or tid takes no locks
+     * @see LockManager#tryAwaitKeyRange
+     */
+    public boolean tryAwaitKeyRange(TransactionId tid, int tableId, Field key, LockMode mode) {
+        return !takesLocks(tid) || lockManager.tryAwaitKeyRange(tid, tableId, key, mode);
+    }
+
+    private boolean takesLocks(TransactionId tid) {
+        return !(versions != null && versions.isSnapshot(tid)) && optimistic.state(tid) == null;
+    }
+
     /**
      * Release all locks associated with a given transaction.
      *
@@ -127,6 +701,21 @@ public class BufferPool {
         this.transactionComplete(tid, true);
     }
 
+    /** @return the lock wait statistics of this pool's lock manager */
+    public LockStats getLockStats() {
+        return lockManager.getStats();
+    }
+
+    /**
+     * Bound each lock wait of tid, so that it aborts instead of waiting
+     * longer than timeoutMillis.
+     *
+     * @see LockManager#setLockTimeout
+     */
+    public void setLockTimeout(TransactionId tid, long timeoutMillis) {
+        lockManager.setLockTimeout(tid, timeoutMillis);
+    }
+
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId pid) {
         // some code goes here
@@ -136,34 +725,193 @@ public class BufferPool {
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * If the pages of a committing transaction cannot be logged, its changes
+     * are rolled back as for an abort and the error is rethrown; the caller
+     * must not log the commit.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
+     * @throws UncheckedIOException if the commit failed and was rolled back
      */
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
-        try{
-            if (commit){
-                flushPages(tid);
-            }
-            else{
-                Iterator<PageId> page_iter = pageMap.keySet().iterator();
-                while (page_iter.hasNext()) {
-                    PageId pid = page_iter.next();
-                    Page p = pageMap.get(pid);
-                    if (p.isDirty() != null && p.isDirty().equals(tid)) {
-                        Page temp = p.getBeforeImage();
-                        pageMap.remove(pid);
-                        pageMap.put(pid, temp);
-                        // discardPage(pid);
-                        // getPage(tid, pid, Permissions.READ_ONLY);
-                    }
+        if (versions != null && versions.isSnapshot(tid)) {
+            versions.endSnapshot(tid);
+            lockManager.releaseAll(tid);
+            return;
+        }
+        IOException failure = null;
+        if (commit) {
+            try {
+                if (cleaner != null) {
+                    handOffPages(tid);
+                } else {
+                    flushPages(tid);
                 }
+            } catch (IOException e) {
+                failure = e;
+                commit = false;
+            }
+        }
+        if (!commit) {
+            for (BufferFrame frame : pageTable.values()) {
+                Page p = frame.getPage();
+                if (p != null && tid.equals(p.isDirty())) {
+                    frame.setPage(p.getBeforeImage());
+                }
+            }
+        }
+        if (commit && optimistic.state(tid) == null) {
+            optimistic.committed(tid);
+        }
+        optimistic.finished(tid);
+        if (versions != null) {
+            try {
+                if (commit) {
+                    versions.commit(tid, this::readCommitted);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                // no-op after a commit; drops the base images otherwise
+                versions.abort(tid);
             }
         }
-        catch(Exception e){}
         this.lockManager.releaseAll(tid);
+        rollingBack.remove(tid);
+        if (failure != null) {
+            throw new UncheckedIOException("commit of " + tid + " failed and was rolled back", failure);
+        }
+    }
 
+    /**
+     * Stop flushing the pages dirtied by tid until it completes, before it
+     * is rolled back from the log. Called without the log lock: a flush
+     * holds its frame's monitor while it logs, so this waits for flushes of
+     * tid's pages that are already running, and later ones skip them. No
+     * update of tid is then logged after its compensation records, and no
+     * page is written over the image its rollback restores.
+     *
+     * @see LogFile#rollback
+     */
+    void beginRollback(TransactionId tid) {
+        rollingBack.add(tid);
+        for (BufferFrame frame : pageTable.values()) {
+            Page p = frame.getPage();
+            if (p != null && tid.equals(p.isDirty())) {
+                synchronized (frame) {
+                    // a flush that started before tid was marked has finished
+                }
+            }
+        }
+    }
+
+    /**
+     * Log the after images of the pages dirtied by a committing transaction
+     * and leave them to the page cleaner. The records are forced by the
+     * commit record that follows, and the cleaner forces the log up to the
+     * page LSN before it writes a page, so no page reaches disk ahead of
+     * its log record.
+     * <p>
+     * Every page is logged before any is handed off, so if logging fails
+     * the pages are still dirty and can be rolled back.
+     */
+    private void handOffPages(TransactionId tid) throws IOException {
+        List<BufferFrame> logged = new ArrayList<>();
+        for (BufferFrame frame : pageTable.values()) {
+            Page p = frame.getPage();
+            if (p != null && tid.equals(p.isDirty())) {
+                frame.noteLogged(Database.getLogFile().getEndOffset());
+                Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
+                logged.add(frame);
+            }
+        }
+        for (BufferFrame frame : logged) {
+            Page p = frame.getPage();
+            // mark before cleaning, so that eviction never sees the page unmarked
+            frame.setNeedsWrite(true);
+            p.setBeforeImage();
+            p.markDirty(false, null);
+        }
+        int pending = 0;
+        for (BufferFrame frame : pageTable.values()) {
+            if (frame.needsWrite()) {
+                pending++;
+            }
+        }
+        if (pending > maxPages / 4) {
+            cleaner.wake();
+        }
+    }
+
+    /**
+     * Write back every page holding committed changes that is not locked
+     * exclusively by a running transaction. Called by the page cleaner, and
+     * by evictPage when every unpinned page still needs a write.
+     *
+     * @return the number of pages written
+     */
+    public int writeCommittedPages() throws IOException {
+        List<BufferFrame> pending = new ArrayList<>();
+        for (BufferFrame frame : pageTable.values()) {
+            if (frame.needsWrite()) {
+                pending.add(frame);
+            }
+        }
+        int written = 0;
+        for (BufferFrame frame : pending) {
+            if (writeCommittedPage(frame)) {
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Return the dirty page table for a fuzzy checkpoint: every page with
+     * logged updates that are not on disk yet, and the log offset of its
+     * oldest such update (its recLSN). The table is read without stopping
+     * other threads; pages logged after the caller noted the end of the
+     * log may or may not be listed.
+     */
+    public Map<PageId, Long> getDirtyPageTable() {
+        Map<PageId, Long> dirty = new HashMap<>();
+        for (BufferFrame frame : pageTable.values()) {
+            long recLSN = frame.getRecLSN();
+            if (recLSN >= 0) {
+                dirty.put(frame.getId(), recLSN);
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * Write one committed page under a shared lock, so that its image does
+     * not change while it is written. Pages a transaction is updating are
+     * skipped and picked up by a later pass.
+     */
+    private boolean writeCommittedPage(BufferFrame frame) throws IOException {
+        PageId pid = frame.getId();
+        if (!lockManager.tryAcquireShared(cleanerTid, pid)) {
+            return false;
+        }
+        try {
+            synchronized (frame) {
+                Page p = frame.getPage();
+                if (!frame.needsWrite() || p == null || p.isDirty() != null) {
+                    return false;
+                }
+                // usually a no-op: the commit that handed the page off forced its record
+                Database.getLogFile().forceUpTo(p.getLSN());
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+                frame.setNeedsWrite(false);
+                frame.clearRecLSN();
+                return true;
+            }
+        } finally {
+            lockManager.release(cleanerTid, pid);
+        }
     }
 
     /**
@@ -175,7 +923,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
-     * that future requests see up-to-date pages.
+     * that future requests see up-to-date pages. The entries for the tuple are
+     * then added to the secondary indexes of the table.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -187,10 +936,10 @@ public class BufferPool {
         List<Page> modpages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
         for (Page page: modpages) {
             page.markDirty(true, tid);
-            if (pageMap.size() > maxPages) {
-                evictPage();
-            }
-            this.pageMap.put(page.getId(), page);
+            cachePage(tid, page);
+        }
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.insertTuple(tid, t);
         }
     }
 
@@ -202,7 +951,8 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
-     * that future requests see up-to-date pages.
+     * that future requests see up-to-date pages. The entries for the tuple are
+     * first removed from the secondary indexes of its table.
      *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
@@ -212,10 +962,13 @@ public class BufferPool {
         // some code goes here
         try {
             int tableid = t.getRecordId().getPageId().getTableId();
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(tableid)) {
+                index.deleteTuple(tid, t);
+            }
             List<Page> modpages = Database.getCatalog().getDatabaseFile(tableid).deleteTuple(tid, t);
             for (Page page : modpages) {
                 page.markDirty(true, tid);
-                pageMap.put(page.getId(), page);
+                cachePage(tid, page);
             }
         } catch(NullPointerException e){
             throw new DbException("tuple not in any table");
@@ -223,14 +976,58 @@ public class BufferPool {
     }
 
 
+    /**
+     * Install a page returned by a DbFile update for tid: in the pool, or
+     * among the private pages of an optimistic transaction.
+     */
+    private void cachePage(TransactionId tid, Page page) throws DbException {
+        OptimisticValidator.State occ = optimistic.state(tid);
+        if (occ != null) {
+            occ.pages.put(page.getId(), page);
+        } else {
+            cachePage(page);
+        }
+    }
+
+    /**
+     * Install a page returned by a DbFile update in the pool, replacing any
+     * cached version, and evict another page if it is new and the pool is full.
+     */
+    private void cachePage(Page page) throws DbException {
+        PageId pid = page.getId();
+        while (true) {
+            BufferFrame frame = pageTable.get(pid);
+            if (frame != null) {
+                if (!frame.pin()) {
+                    continue;
+                }
+                frame.setPage(page);
+                frame.unpin();
+                evictionPolicy.pageAccessed(pid);
+                return;
+            }
+            BufferFrame fresh = new BufferFrame(page, arena);
+            fresh.pin();
+            if (pageTable.putIfAbsent(pid, fresh) == null) {
+                try {
+                    ensureCapacity();
+                } finally {
+                    fresh.unpin();
+                }
+                evictionPolicy.pageLoaded(pid);
+                return;
+            }
+        }
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
-        for(PageId pid: pageMap.keySet()){
+        for (PageId pid : pageTable.keySet()) {
             flushPage(pid);
         }
     }
@@ -243,62 +1040,169 @@ public class BufferPool {
      Also used by B+ tree files to ensure that deleted pages
      are removed from the cache so they can be reused safely
      */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
-        pageMap.remove(pid);
+        BufferFrame frame = pageTable.remove(pid);
+        if (frame != null) {
+            frame.invalidate();
+            frame.release();
+            evictionPolicy.pageDiscarded(pid);
+        }
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
-        if (!pageMap.containsKey(pid)){
-            return;
+        BufferFrame frame = pageTable.get(pid);
+        if (frame != null) {
+            flushFrame(frame);
         }
-        Page p = pageMap.get(pid);
-        if(p.isDirty()!=null){
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
-            p.markDirty(false,null);
+    }
+
+    private void flushFrame(BufferFrame frame) throws IOException {
+        PageId pid = frame.getId();
+        synchronized (frame) {
+            Page p = frame.getPage();
+            TransactionId dirtier = p == null ? null : p.isDirty();
+            if (dirtier != null && rollingBack.contains(dirtier)) {
+                return;
+            }
+            if (dirtier != null) {
+                frame.noteLogged(Database.getLogFile().getEndOffset());
+                Database.getLogFile().logWrite(dirtier, p.getBeforeImage(), p);
+                // later records of the transaction are relative to the logged image
+                p.setBeforeImage();
+            }
+            if (p != null && (dirtier != null || frame.needsWrite())) {
+                // write-ahead: the page's updates must be on disk before the page
+                Database.getLogFile().forceUpTo(p.getLSN());
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+                p.markDirty(false, null);
+                frame.setNeedsWrite(false);
+                frame.clearRecLSN();
+            }
         }
     }
 
     /** Write all pages of the specified transaction to disk.
+     * <p>
+     * The update records of all the pages are appended first and the log
+     * is forced once, up to the last of them, before any page is written.
+     * If logging fails no page has changed yet, so the transaction can
+     * still be rolled back.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
-        Iterator<PageId> page_iter = pageMap.keySet().iterator();
-        while (page_iter.hasNext()) {
-            PageId pid = page_iter.next();
-            Page p = pageMap.get(pid);
-            if (p.isDirty() != null && p.isDirty().equals(tid)) {
-                flushPage(pid);
+        List<BufferFrame> logged = new ArrayList<>();
+        long lastLSN = -1;
+        for (BufferFrame frame : pageTable.values()) {
+            synchronized (frame) {
+                Page p = frame.getPage();
+                if (p != null && tid.equals(p.isDirty())) {
+                    frame.noteLogged(Database.getLogFile().getEndOffset());
+                    Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
+                    lastLSN = Math.max(lastLSN, p.getLSN());
+                    logged.add(frame);
+                }
+            }
+        }
+        if (logged.isEmpty()) {
+            return;
+        }
+        // write-ahead: the updates of every page are on disk before any page
+        Database.getLogFile().forceUpTo(lastLSN);
+        for (BufferFrame frame : logged) {
+            synchronized (frame) {
+                Page p = frame.getPage();
+                Database.getCatalog().getDatabaseFile(frame.getId().getTableId()).writePage(p);
+                p.setBeforeImage();
+                p.markDirty(false, null);
+                frame.setNeedsWrite(false);
+                frame.clearRecLSN();
             }
         }
     }
 
+    /**
+     * Evict pages until the page table is back within maxPages. Frames
+     * created by concurrent misses may push the table over the limit
+     * briefly; each miss evicts for itself.
+     */
+    private void ensureCapacity() throws DbException {
+        if (pageTable.size() <= maxPages) {
+            return;
+        }
+        synchronized (evictionLock) {
+            while (pageTable.size() > maxPages) {
+                evictPage();
+            }
+        }
+    }
+
+    private boolean isEvictable(PageId pid) {
+        BufferFrame frame = pageTable.get(pid);
+        return frame != null && frame.isLoaded() && frame.getPinCount() == 0
+                && (steal || (isCleanFrame(frame) && !frame.needsWrite()));
+    }
+
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is chosen by the EvictionPolicy among unpinned frames.
+     * Dirty pages are never evicted unless the pool runs in STEAL mode, which
+     * logs and writes them first. Committed pages waiting for the page
+     * cleaner are written back here if nothing else can be evicted.
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
-        Iterator<PageId> page_iter = pageMap.keySet().iterator();
-        while(page_iter.hasNext()){
-            PageId pid = page_iter.next();
-
-            if (pageMap.get(pid).isDirty() != null) {
+        boolean wroteBack = false;
+        for (int attempt = 0; attempt <= maxPages; attempt++) {
+            PageId pid = evictionPolicy.chooseVictim(this::isEvictable);
+            if (pid == null) {
+                if (cleaner == null || wroteBack) {
+                    break;
+                }
+                wroteBack = true;
+                try {
+                    writeCommittedPages();
+                } catch (IOException e) {
+                    throw new DbException("could not write back committed pages: " + e.getMessage());
+                }
                 continue;
             }
-            try {
-                flushPage(pid);
-            } catch (IOException e) {
-                throw new DbException("Error during eviction");
+            BufferFrame frame = pageTable.get(pid);
+            if (frame == null) {
+                evictionPolicy.pageDiscarded(pid);
+                continue;
+            }
+            if (steal && (!isCleanFrame(frame) || frame.needsWrite())) {
+                // write before tryEvict, so that a concurrent miss on the
+                // page cannot read the old image from disk
+                try {
+                    flushFrame(frame);
+                } catch (IOException e) {
+                    throw new DbException("could not write page " + pid + " for eviction: " + e.getMessage());
+                }
+            }
+            if (!frame.tryEvict()) {
+                continue;
+            }
+            if (!isCleanFrame(frame) || frame.needsWrite()) {
+                frame.cancelEvict();
+                continue;
             }
-            discardPage(pid);
+            pageTable.remove(pid, frame);
+            frame.release();
+            evictionPolicy.pageRemoved(pid);
             return;
         }
         throw new DbException("No non-dirty pages in the buffer pool");
     }
-}
\ No newline at end of file
+
+    private static boolean isCleanFrame(BufferFrame frame) {
+        Page p = frame.getPage();
+        return p == null || p.isDirty() == null;
+    }
+}
@@ -0,0 +1,56 @@
+package simpledb.storage;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum, as used for log records. The JDK only
+ * ships java.util.zip.CRC32C from Java 9 on, and this code base still
+ * builds for Java 8.
+ */
+public class Crc32c implements Checksum {
+
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ 0x82F63B78 : c >>> 1;
+            }
+            TABLE[n] = c;
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int c = crc;
+        for (int i = off; i < off + len; i++) {
+            c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xFF];
+        }
+        crc = c;
+    }
+
+    @Override
+    public long getValue() {
+        return (~crc) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+
+    /** @return the CRC-32C of len bytes of b starting at off */
+    public static int compute(byte[] b, int off, int len) {
+        Crc32c c = new Crc32c();
+        c.update(b, off, len);
+        return (int) c.getValue();
+    }
+}
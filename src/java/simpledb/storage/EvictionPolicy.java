@@ -0,0 +1,60 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * EvictionPolicy decides which resident page the BufferPool should drop
+ * when it runs out of frames. The BufferPool reports every page it loads,
+ * every hit on a resident page and every page it removes; the policy keeps
+ * whatever bookkeeping it needs to pick a victim from those events.
+ * <p>
+ * Implementations must not touch the BufferPool themselves. The pool is
+ * responsible for flushing and discarding the page returned by
+ * {@link #chooseVictim}.
+ *
+ * @see BufferPool
+ * @see TwoQueueEvictionPolicy
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Called when a page that was not resident is added to the pool.
+     *
+     * @param pid the id of the page that was loaded
+     */
+    void pageLoaded(PageId pid);
+
+    /**
+     * Called when a resident page is requested again.
+     *
+     * @param pid the id of the page that was hit
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page leaves the pool because it was evicted.
+     *
+     * @param pid the id of the page that was evicted
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Called when a page leaves the pool because it was discarded
+     * explicitly, e.g. after a rollback, rather than chosen as a victim.
+     * The policy should forget the page, so that its next load is not
+     * taken for a reuse.
+     *
+     * @param pid the id of the page that was discarded
+     */
+    void pageDiscarded(PageId pid);
+
+    /**
+     * Pick the next page to evict. The policy walks its candidates in
+     * eviction order and returns the first one accepted by evictable;
+     * pages that are rejected (dirty or pinned pages) keep their position.
+     *
+     * @param evictable test deciding whether a candidate may be evicted now
+     * @return the id of the victim, or null if no candidate is evictable
+     */
+    PageId chooseVictim(Predicate<PageId> evictable);
+}
@@ -0,0 +1,229 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * ExternalSort sorts a stream of tuples that need not fit in memory. Tuples
+ * are collected into runs of at most runSize tuples; each full run is sorted
+ * and spilled to a temporary file in the binary field format of the pages.
+ * {@link #iterator} then merges the runs with a priority queue on their head
+ * tuples, reading each run sequentially.
+ * <p>
+ * At most MAX_FAN_IN runs are merged at once. If there are more, groups of
+ * runs are first merged into longer runs, so the number of open files stays
+ * bounded however large the input is.
+ */
+public class ExternalSort implements Closeable {
+
+    /**
+     * Budget of a run, in bytes of tuple data, if none is given. Tuples
+     * take several times as much heap as they take on a page.
+     */
+    public static final int DEFAULT_RUN_BYTES = 1 << 20;
+
+    static final int MAX_FAN_IN = 64;
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final int runSize;
+    private final List<Tuple> buffer = new ArrayList<>();
+    private final Deque<Run> runs = new ArrayDeque<>();
+    private long size = 0;
+
+    /**
+     * Creates a sorter whose runs hold about DEFAULT_RUN_BYTES of tuple data.
+     *
+     * @param td the tuple descriptor of the tuples to sort
+     * @param comparator the sort order
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator) {
+        this(td, comparator, Math.max(1, DEFAULT_RUN_BYTES / td.getSize()));
+    }
+
+    /**
+     * @param td the tuple descriptor of the tuples to sort
+     * @param comparator the sort order
+     * @param runSize the number of tuples sorted in memory at a time
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator, int runSize) {
+        this.td = td;
+        this.comparator = comparator;
+        this.runSize = runSize;
+    }
+
+    /** Add a tuple to the input, spilling a sorted run if the buffer is full. */
+    public void add(Tuple t) throws IOException {
+        buffer.add(t);
+        size++;
+        if (buffer.size() >= runSize) {
+            spill();
+        }
+    }
+
+    /** @return the number of tuples added so far */
+    public long size() {
+        return size;
+    }
+
+    /** @return the number of runs spilled to disk so far */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    /**
+     * @return an iterator over all tuples added, in sorted order. Tuples
+     *         added after this call are not returned. Reading a run file
+     *         fails with an UncheckedIOException.
+     */
+    public Iterator<Tuple> iterator() throws IOException {
+        if (runs.isEmpty()) {
+            buffer.sort(comparator);
+            return new ArrayList<>(buffer).iterator();
+        }
+        spill();
+        while (runs.size() > MAX_FAN_IN) {
+            List<Run> group = new ArrayList<>();
+            for (int i = 0; i < MAX_FAN_IN; i++) {
+                group.add(runs.poll());
+            }
+            Run merged = new Run(td);
+            try (DataOutputStream dos = merged.openWrite()) {
+                Iterator<Tuple> it = new MergeIterator(group);
+                while (it.hasNext()) {
+                    merged.write(dos, it.next());
+                }
+            }
+            for (Run r : group) {
+                r.delete();
+            }
+            runs.add(merged);
+        }
+        return new MergeIterator(new ArrayList<>(runs));
+    }
+
+    /** Delete all run files. */
+    public void close() {
+        for (Run r : runs) {
+            r.delete();
+        }
+        runs.clear();
+        buffer.clear();
+    }
+
+    /** Sort the buffered tuples and write them out as a new run. */
+    private void spill() throws IOException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        buffer.sort(comparator);
+        Run run = new Run(td);
+        try (DataOutputStream dos = run.openWrite()) {
+            for (Tuple t : buffer) {
+                run.write(dos, t);
+            }
+        }
+        buffer.clear();
+        runs.add(run);
+    }
+
+    /** A sorted run of tuples in a temporary file. */
+    private static class Run {
+        final TupleDesc td;
+        final File file;
+        long count = 0;
+
+        Run(TupleDesc td) throws IOException {
+            this.td = td;
+            this.file = File.createTempFile("sortrun", ".dat");
+            file.deleteOnExit();
+        }
+
+        DataOutputStream openWrite() throws IOException {
+            return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+
+        void write(DataOutputStream dos, Tuple t) throws IOException {
+            for (int i = 0; i < td.numFields(); i++) {
+                t.getField(i).serialize(dos);
+            }
+            count++;
+        }
+
+        void delete() {
+            file.delete();
+        }
+    }
+
+    /** Reads a run back one tuple at a time. */
+    private static class RunReader {
+        final Run run;
+        final DataInputStream dis;
+        long remaining;
+        Tuple head;
+
+        RunReader(Run run) throws IOException {
+            this.run = run;
+            this.dis = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file)));
+            this.remaining = run.count;
+            advance();
+        }
+
+        /** Read the next tuple into head, or set it to null at the end of the run. */
+        void advance() throws IOException {
+            if (remaining == 0) {
+                head = null;
+                dis.close();
+                return;
+            }
+            remaining--;
+            Tuple t = new Tuple(run.td);
+            try {
+                for (int i = 0; i < run.td.numFields(); i++) {
+                    t.setField(i, run.td.getFieldType(i).parse(dis));
+                }
+            } catch (ParseException e) {
+                throw new IOException("corrupt sort run " + run.file, e);
+            }
+            head = t;
+        }
+    }
+
+    /** Merges runs by repeatedly taking the smallest head tuple. */
+    private class MergeIterator implements Iterator<Tuple> {
+        final PriorityQueue<RunReader> queue;
+
+        MergeIterator(List<Run> runs) throws IOException {
+            queue = new PriorityQueue<>(Math.max(1, runs.size()),
+                    (a, b) -> comparator.compare(a.head, b.head));
+            for (Run r : runs) {
+                RunReader reader = new RunReader(r);
+                if (reader.head != null) {
+                    queue.add(reader);
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        public Tuple next() {
+            RunReader reader = queue.poll();
+            if (reader == null) {
+                throw new NoSuchElementException();
+            }
+            Tuple t = reader.head;
+            try {
+                reader.advance();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (reader.head != null) {
+                queue.add(reader);
+            }
+            return t;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * GroupCommit batches the log forces of concurrent commits. A committer
+ * appends its commit record and then calls {@link #awaitDurable} with the
+ * sequence number of that append. The first waiter becomes the leader: it
+ * waits up to maxDelayMicros for more committers to arrive (or until
+ * maxBatchSize are waiting), forces the log once for all of them, and wakes
+ * every waiter whose record is now on disk. Waiters whose records were
+ * appended after the force started lead the next batch.
+ * <p>
+ * With a zero delay, batches form only from committers that arrive while a
+ * force is in progress, so a single committer never waits longer than one
+ * force.
+ *
+ * @Threadsafe
+ * @see LogFile#logCommit
+ */
+public class GroupCommit {
+
+    /** System property for the batch window in microseconds, e.g. 500 */
+    public static final String MAX_DELAY_PROPERTY = "simpledb.storage.LogFile.groupCommitDelay";
+    /** System property for the number of waiters that closes a batch early */
+    public static final String MAX_BATCH_PROPERTY = "simpledb.storage.LogFile.groupCommitBatch";
+
+    static final int DEFAULT_MAX_BATCH = 64;
+
+    private final LogFile log;
+
+    private long maxDelayMicros;
+    private int maxBatchSize;
+
+    // all fields below are protected by this
+    private long durableSeq = 0;
+    private boolean forcing = false;
+    private int waiting = 0;
+
+    private long commits = 0;
+    private long forces = 0;
+    private int maxBatch = 0;
+    private long totalWaitNanos = 0;
+
+    GroupCommit(LogFile log) {
+        this.log = log;
+        this.maxDelayMicros = Long.getLong(MAX_DELAY_PROPERTY, 0);
+        this.maxBatchSize = Integer.getInteger(MAX_BATCH_PROPERTY, DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * Set the batch window.
+     *
+     * @param maxDelayMicros how long a leader waits for more committers
+     * @param maxBatchSize number of waiting committers that ends the wait early
+     */
+    public synchronized void setWindow(long maxDelayMicros, int maxBatchSize) {
+        if (maxDelayMicros < 0 || maxBatchSize < 1) {
+            throw new IllegalArgumentException("invalid group commit window");
+        }
+        this.maxDelayMicros = maxDelayMicros;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Block until every log record up to append sequence number seq is on
+     * disk, forcing the log if no other committer is doing so.
+     */
+    void awaitDurable(long seq) throws IOException {
+        long start = System.nanoTime();
+        int batch;
+        synchronized (this) {
+            commits++;
+            waiting++;
+            notifyAll();
+            try {
+                while (durableSeq < seq && forcing) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                waiting--;
+                throw new InterruptedIOException("interrupted waiting for log force");
+            }
+            if (durableSeq >= seq) {
+                finish(start);
+                return;
+            }
+
+            // lead the next batch
+            forcing = true;
+            long deadline = start + maxDelayMicros * 1000;
+            try {
+                while (waiting < maxBatchSize) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        break;
+                    }
+                    wait(left / 1000000, (int) (left % 1000000));
+                }
+            } catch (InterruptedException e) {
+                // force what we have
+            }
+            batch = waiting;
+        }
+
+        long target = -1;
+        try {
+            target = log.forceAppended();
+        } finally {
+            synchronized (this) {
+                forcing = false;
+                if (target >= 0) {
+                    durableSeq = Math.max(durableSeq, target);
+                    forces++;
+                    maxBatch = Math.max(maxBatch, batch);
+                    finish(start);
+                } else {
+                    waiting--;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /** Note that a force outside of a batch made records up to seq durable. */
+    synchronized void markDurable(long seq) {
+        if (seq > durableSeq) {
+            durableSeq = seq;
+            notifyAll();
+        }
+    }
+
+    private void finish(long start) {
+        waiting--;
+        totalWaitNanos += System.nanoTime() - start;
+    }
+
+    /** @return the number of commits that waited for the log */
+    public synchronized long getCommits() {
+        return commits;
+    }
+
+    /** @return the number of log forces issued on behalf of commits */
+    public synchronized long getForces() {
+        return forces;
+    }
+
+    /** @return the average number of commits made durable per force */
+    public synchronized double getAverageBatchSize() {
+        return forces == 0 ? 0 : (double) commits / forces;
+    }
+
+    /** @return the largest number of committers waiting on one force */
+    public synchronized int getMaxBatchSize() {
+        return maxBatch;
+    }
+
+    /** @return the average time a commit waited for its record to be durable */
+    public synchronized long getAverageWaitMicros() {
+        return commits == 0 ? 0 : totalWaitNanos / commits / 1000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "group commit: " + commits + " commits, " + forces + " forces, "
+                + String.format("%.1f", getAverageBatchSize()) + " avg batch, "
+                + maxBatch + " max batch, " + getAverageWaitMicros() + " us avg wait";
+    }
+}
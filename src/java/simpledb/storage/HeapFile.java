@@ -175,24 +175,58 @@ public class HeapFile implements DbFile {
         return modpages;
     }
 
+    /**
+     * Fetch a single tuple by its RecordId, taking a read lock on its page.
+     *
+     * @throws NoSuchElementException if the record id does not name a tuple
+     *         of this file
+     */
+    public Tuple getTuple(TransactionId tid, RecordId rid)
+            throws DbException, TransactionAbortedException {
+        PageId pid = rid.getPageId();
+        if (pid.getTableId() != getId() || pid.getPageNumber() >= numPages()) {
+            throw new NoSuchElementException("no page " + pid.getPageNumber() + " of table " + pid.getTableId() + " in this file");
+        }
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        return page.getTuple(rid.getTupleNumber());
+    }
+
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
         DbFileIterator dbfileiter = new DbFileIterator(){
             Iterator<Tuple> tup_iter;
+            // the page being iterated stays pinned until we move past it
+            BufferFrame frame;
+            final ReadAhead readAhead = new ReadAhead(getId());
             int pageNo = 0;
             boolean isOpen = false;
 
+            private void pinPage(int pgNo) throws DbException, TransactionAbortedException {
+                unpinPage();
+                readAhead.advance(pgNo, numPages());
+                frame = Database.getBufferPool().pinPage(tid, new HeapPageId(getId(), pgNo), Permissions.READ_ONLY);
+                tup_iter = frame == null ? Collections.emptyIterator() : ((HeapPage) frame.getPage()).iterator();
+            }
+
+            private void unpinPage() {
+                if (frame != null) {
+                    Database.getBufferPool().unpinPage(frame);
+                    frame = null;
+                }
+            }
+
             @Override
             public void open() throws DbException, TransactionAbortedException {
-                tup_iter = ((HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), 0), Permissions.READ_ONLY)).iterator();
+                pageNo = 0;
+                readAhead.reset();
+                pinPage(pageNo);
                 isOpen = true;
 
             }
 
             @Override
             public void close() {
-                // Not sure what to write here
-                // page_iter = null;
+                unpinPage();
                 tup_iter = null;
                 pageNo = -1;
                 isOpen = false;
@@ -206,9 +240,10 @@ public class HeapFile implements DbFile {
                 while (!tup_iter.hasNext()) {
                     pageNo+=1;
                     if (pageNo >= numPages()) {
+                        unpinPage();
                         return false;
                     }
-                    tup_iter = ((HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), pageNo), Permissions.READ_ONLY)).iterator();
+                    pinPage(pageNo);
                 }
                 return true;
 
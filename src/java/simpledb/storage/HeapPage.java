@@ -4,32 +4,53 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Catalog;
+import simpledb.common.Type;
 import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page keeps its on-disk image in a ByteBuffer and works on it in
+ * place: header bits are tested and set in the buffer, and tuples are
+ * decoded from their slot only when they are iterated. While the page is
+ * resident in an off-heap BufferPool the buffer is a slot of the pool's
+ * {@link PageArena}.
+ * <p>
+ * Every access to the buffer holds the page's monitor, and so does
+ * {@link #relocate}: a write can never land in an image that has already
+ * been copied away, and a read never sees an arena slot that was handed
+ * back to the pool.
  *
  * @see HeapFile
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements RelocatablePage {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
-    final Tuple[] tuples;
     final int numSlots;
+    final int headerSize;
 
+    /** Page image: header bytes followed by numSlots tuple slots. */
+    private volatile ByteBuffer data;
+
+    /**
+     * Before image, or null if the page has not been modified since the
+     * last call to setBeforeImage (the current image is the before image).
+     */
     byte[] oldData;
     private final Byte oldDataLock= (byte) 0;
 
     boolean dirty;
     TransactionId dirtiedbytid;
+    /** See {@link Page#getLSN}; not part of the page image. */
+    private volatile long pageLSN = 0;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -51,24 +72,9 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
+        this.headerSize = getHeaderSize();
+        // images shorter than a page (no padding) are zero-extended
+        this.data = ByteBuffer.wrap(Arrays.copyOf(data, BufferPool.getPageSize()));
     }
 
     /** Retrieve the number of tuples on this page.
@@ -105,7 +111,7 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
-            return new HeapPage(pid,oldDataRef);
+            return new HeapPage(pid, oldDataRef != null ? oldDataRef : getPageData());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -114,13 +120,36 @@ public class HeapPage implements Page {
         return null;
     }
 
+    /**
+     * Make the current contents the before image. The copy is taken lazily
+     * by the next modification, so clean pages never hold a second image.
+     */
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
         }
     }
 
+    /** Snapshot the before image if this is the first change since setBeforeImage. */
+    private void beforeModify() {
+        synchronized(oldDataLock)
+        {
+            if (oldData == null) {
+                oldData = getPageData();
+            }
+        }
+    }
+
+    public synchronized void relocate(ByteBuffer target) {
+        ByteBuffer src = data.duplicate();
+        src.clear();
+        ByteBuffer dst = target.duplicate();
+        dst.clear();
+        dst.put(src);
+        data = target;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -129,38 +158,56 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * td.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Decode the tuple stored in the given (used) slot.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private Tuple readTuple(int slotId) {
+        ByteBuffer buf = data;
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        int offset = slotOffset(slotId);
+        for (int j=0; j<td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            t.setField(j, type.parse(buf, offset));
+            offset += type.getLen();
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
+    /**
+     * @return the tuple in the given slot, with its RecordId set
+     * @throws NoSuchElementException if the slot is out of range or empty
+     */
+    public synchronized Tuple getTuple(int slotId) {
+        if (slotId < 0 || slotId >= numSlots || !isSlotUsed(slotId)) {
+            throw new NoSuchElementException("no tuple in slot " + slotId + " of page " + pid.getPageNumber());
+        }
+        return readTuple(slotId);
+    }
+
+    /**
+     * Encode t into the given slot.
+     */
+    private void writeTuple(int slotId, Tuple t) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
         try {
             for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+                t.getField(j).serialize(dos);
             }
-        } catch (java.text.ParseException e) {
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
             e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
         }
-
-        return t;
+        byte[] bytes = baos.toByteArray();
+        ByteBuffer dst = data.duplicate();
+        dst.position(slotOffset(slotId));
+        dst.put(bytes, 0, Math.min(bytes.length, td.getSize()));
     }
 
     /**
@@ -174,65 +221,12 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+    public synchronized byte[] getPageData() {
+        byte[] out = new byte[BufferPool.getPageSize()];
+        ByteBuffer src = data.duplicate();
+        src.clear();
+        src.get(out);
+        return out;
     }
 
     /**
@@ -256,17 +250,21 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         final RecordId recordId = t.getRecordId();
-        if(pid !=  recordId.getPageId() || recordId.getTupleNumber() >= numSlots){
+        if(recordId == null || !pid.equals(recordId.getPageId()) || recordId.getTupleNumber() >= numSlots){
             throw new DbException("The tuple is not on this page | HeapPage.java | deleteTuple(Tuple t)");
         }
         if(!isSlotUsed(recordId.getTupleNumber())){
             throw new DbException("The tuple slot is already used| HeapPage.java | deleteTuple(Tuple t)");
         }
+        beforeModify();
         int tupNum = recordId.getTupleNumber();
-        markSlotUsed(recordId.getTupleNumber(), false);
-        tuples[tupNum]=null;
+        markSlotUsed(tupNum, false);
+        // zero the slot so that the page image matches a freshly written one
+        ByteBuffer dst = data.duplicate();
+        dst.position(slotOffset(tupNum));
+        dst.put(new byte[td.getSize()]);
     }
 
     /**
@@ -276,11 +274,12 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         if (!td.equals(t.getTupleDesc())) throw new DbException("TupleDesc is mismatch | HeapPage.java | insertTuple(Tuple t)");
         for(int i=0;i<this.numSlots;i++) {
             if (!isSlotUsed(i)) {
-                tuples[i] = t;
+                beforeModify();
+                writeTuple(i, t);
                 t.setRecordId(new RecordId(pid, i));
                 markSlotUsed(i,true);
                 return;
@@ -306,33 +305,39 @@ public class HeapPage implements Page {
         // some code goes here
         if(dirty)
             return dirtiedbytid;
-        System.out.println("Page is not dirty | HeapPage.java | isDirty()");
         return null;
     }
 
+    public long getLSN() {
+        return pageLSN;
+    }
+
+    public void setLSN(long lsn) {
+        this.pageLSN = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
-    public int getNumEmptySlots() {
+    public synchronized int getNumEmptySlots() {
         // some code goes here
-        int empty = 0;
-        for (int i=0;i<getNumTuples();i++){
-            if(isSlotUsed(i) == false){
-                empty++;
-            }
+        ByteBuffer buf = data;
+        int used = 0;
+        for (int i=0;i<headerSize;i++){
+            used += Integer.bitCount(buf.get(i) & 0xff);
         }
-        return empty;
+        return numSlots - used;
     }
 
     /**
      * Returns true if associated slot on this page is filled.
      */
-    public boolean isSlotUsed(int i) {
+    public synchronized boolean isSlotUsed(int i) {
         // some code goes here
         int byteIndex = i/8;
     	int bitOffset = i % 8;
     	int bitMask = 1 << bitOffset;
-    	return (header[byteIndex] & bitMask) != 0;
+    	return (data.get(byteIndex) & bitMask) != 0;
     }
 
     /**
@@ -345,15 +350,17 @@ public class HeapPage implements Page {
         if (bytePos < 0 || bytePos > 7) {
             throw new IllegalArgumentException();
         }
+        byte b = data.get(byteNum);
         if (value)
         {
-             header[(int)byteNum] |= (1<<bytePos); //Move the bit 1 to the specified position, for example, if pos is 3 and value is true, you will get 00001000
+             b |= (1<<bytePos); //Move the bit 1 to the specified position, for example, if pos is 3 and value is true, you will get 00001000
         //If the value is 1, use the byte 00001000 and "|" operation to change the specified position to 1, and keep other positions unchanged
         }
         else
         {
-            header[(int)byteNum] &= ~(1<<bytePos);//If the value is 0, use the byte 11110111 and the "&" operation to change the specified position to 0, and the other positions remain unchanged
+            b &= ~(1<<bytePos);//If the value is 0, use the byte 11110111 and the "&" operation to change the specified position to 0, and the other positions remain unchanged
         }
+        data.put(byteNum, b);
     }
 
     /**
@@ -366,14 +373,18 @@ public class HeapPage implements Page {
     }
     private class UsedTupleIterator implements Iterator<Tuple> {
 
+        private int i = nextUsed(0);
 
-        private int p = 0;
-        private int i = 0;
-        private int usedTuplesNum = getNumTuples() - getNumEmptySlots();
+        private int nextUsed(int from) {
+            while (from < numSlots && !isSlotUsed(from)) {
+                from++;
+            }
+            return from;
+        }
 
         @Override
         public boolean hasNext() {
-            return i < getNumTuples() && p < usedTuplesNum;
+            return i < numSlots;
         }
 
         @Override
@@ -381,10 +392,11 @@ public class HeapPage implements Page {
             if (!hasNext()) {
                 throw new NoSuchElementException();
             }
-            for (; !isSlotUsed(i); i++) {
+            synchronized (HeapPage.this) {
+                Tuple t = readTuple(i);
+                i = nextUsed(i + 1);
+                return t;
             }
-            p++;
-            return tuples[i++];
         }
     }
 
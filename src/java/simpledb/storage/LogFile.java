@@ -6,8 +6,8 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -19,23 +19,15 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
-
-<p>
-<pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
-
-       ..
-
-       }
-    }
-</pre>
+writes from happening).  BufferPool is not synchronized as a whole: it
+writes log records while holding the monitor of the page frame it
+flushes, so the log lock is always taken after a frame's monitor, and
+nothing here may wait for a frame while holding the log lock.  A
+rollback therefore first calls {@link BufferPool#beginRollback}, without
+the log lock, which stops the pool from flushing the pages of the
+transaction until it completes.  No flush can then log an update of the
+transaction after its compensation records, or write its changes over a
+restored page.
 */
 
 /**
@@ -43,40 +35,55 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself is a small control file holding an integer
+magic number, an integer format version, the integer segment size, the
+long integer offset of the last written checkpoint (or -1 if there are
+no checkpoints), and the long integer offset of the first record still
+in the log
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in fixed-size segment files next to the
+control file (see {@link LogSegments}).  Record offsets are logical
+positions in the log and do not change when old segments are dropped.
+Log records are variable length and binary encoded by {@link LogRecord}.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer length, a byte type and a
+long integer transaction id.
 
 <li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+the position in the log file where the record began, followed by a
+CRC-32C checksum of the record.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, and CLR
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
-
-<li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+<li>UPDATE RECORDS hold the byte ranges in which the before and after
+images of a page differ, tagged with a numeric page type (see
+{@link LogPageType}).  See LogFile.print() for an example.
+
+<li> CLR records log the undo of an UPDATE record.  They are redo-only:
+they hold the restored byte ranges and the offset of the next update of
+the transaction that still has to be undone (its undoNextLSN), so that
+rollback and recovery never compensate an update twice.
+
+<li> CHECKPOINT records consist of the offset at which the checkpoint
+began, the active transactions at the time the checkpoint was taken and
+their first log record on disk, and the dirty page table.  The format of
+the record is a long integer begin offset, an integer count of the number
+of transactions, a long integer transaction id and a long integer first
+record offset for each active transaction, an integer count of dirty
+pages, and a page type tag, table id, page number and long integer
+recLSN for each dirty page.  Checkpoints are fuzzy: they do not flush
+the buffer pool, and recovery redoes each listed page from its recLSN.
 
 </ul>
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final RandomAccessFile control;
+    private LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -84,17 +91,43 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int CLR_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
+    /** "SDBL" */
+    static final int LOG_MAGIC = 0x5344424C;
+    static final int LOG_VERSION = 4;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /** System property for the size of new log segments in bytes */
+    public static final String SEGMENT_SIZE_PROPERTY = "simpledb.storage.LogFile.segmentSize";
+
+    /** System property for the number of threads that redo pages during recovery */
+    public static final String REDO_THREADS_PROPERTY = "simpledb.storage.LogFile.redoThreads";
+
+    /** The checkpoint pointer follows the magic number, version and segment size. */
+    static final int CHECKPOINT_PTR_OFFSET = INT_SIZE + INT_SIZE + INT_SIZE;
+    static final int FIRST_RECORD_PTR_OFFSET = CHECKPOINT_PTR_OFFSET + LONG_SIZE;
+    static final int CONTROL_SIZE = FIRST_RECORD_PTR_OFFSET + LONG_SIZE;
+
+    private final int newSegmentSize;
+
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
+    /** Number of records appended so far; never reset by truncation. */
+    long appendSeq = 0; //protected by this
+
+    /** Offset up to which the log is known to be on disk. */
+    private volatile long flushedLSN = 0;
+
+    private final GroupCommit groupCommit = new GroupCommit(this);
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -107,8 +140,23 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, Integer.getInteger(SEGMENT_SIZE_PROPERTY, LogSegments.DEFAULT_SEGMENT_SIZE));
+    }
+
+    /** Constructor.
+        Like {@link #LogFile(File)}, but start new logs with segments of
+        segmentSize bytes. An existing log keeps the segment size it was
+        written with.
+
+        @param f The log file's name
+        @param segmentSize size of each log segment in bytes
+    */
+    public LogFile(File f, int segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        this.newSegmentSize = segmentSize;
+        control = new RandomAccessFile(f, "rw");
+        int existingSize = hasValidControl() ? readControlInt(INT_SIZE + INT_SIZE) : segmentSize;
+        segments = new LogSegments(f, existingSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,16 +175,112 @@ public class LogFile {
     // the log.
     void preAppend() throws IOException {
         totalRecords++;
+        appendSeq++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            startNewLog();
         }
     }
 
+    /** Throw away all segments and start an empty log. */
+    private void startNewLog() throws IOException {
+        segments.reset();
+        segments = new LogSegments(logFile, newSegmentSize);
+        writeControl(NO_CHECKPOINT_ID, 0);
+        currentOffset = segments.getEnd();
+        flushedLSN = currentOffset;
+    }
+
+    private void writeControl(long checkpointOffset, long firstRecordOffset) throws IOException {
+        control.seek(0);
+        control.setLength(0);
+        control.writeInt(LOG_MAGIC);
+        control.writeInt(LOG_VERSION);
+        control.writeInt(segments.getSegmentSize());
+        control.writeLong(checkpointOffset);
+        control.writeLong(firstRecordOffset);
+        control.getChannel().force(true);
+    }
+
+    private boolean hasValidControl() throws IOException {
+        if (control.length() < CONTROL_SIZE) {
+            return false;
+        }
+        control.seek(0);
+        return control.readInt() == LOG_MAGIC && control.readInt() == LOG_VERSION;
+    }
+
+    private int readControlInt(long pos) throws IOException {
+        control.seek(pos);
+        return control.readInt();
+    }
+
+    private long readControlLong(long pos) throws IOException {
+        control.seek(pos);
+        return control.readLong();
+    }
+
+    /** Check the log header and return the offset of the last checkpoint. */
+    long readCheckpointPointer() throws IOException {
+        if (!hasValidControl()) {
+            throw new IOException("not a SimpleDb log file or unsupported version: " + logFile);
+        }
+        return readControlLong(CHECKPOINT_PTR_OFFSET);
+    }
+
+    /** Return the offset of the oldest record still in the log. */
+    long readFirstRecordPointer() throws IOException {
+        if (!hasValidControl()) {
+            throw new IOException("not a SimpleDb log file or unsupported version: " + logFile);
+        }
+        return readControlLong(FIRST_RECORD_PTR_OFFSET);
+    }
+
+    /** Append a record at the end of the log; the caller holds this.
+        @return the offset at which the record starts
+    */
+    long append(LogRecord record) throws IOException {
+        long start = segments.getEnd();
+        segments.append(record.encode(start));
+        currentOffset = segments.getEnd();
+        return start;
+    }
+
+    /** Read the record starting at offset; the caller holds this.
+        @throws EOFException at the end of the log or at a torn record
+    */
+    LogRecord readRecord(long offset) throws IOException {
+        byte[] lengthBytes = new byte[INT_SIZE];
+        segments.read(offset, lengthBytes);
+        int length = java.nio.ByteBuffer.wrap(lengthBytes).getInt();
+        if (length < LogRecord.HEADER_SIZE + LogRecord.TRAILER_SIZE
+                || offset + length > segments.getEnd()) {
+            throw new EOFException("torn log record at offset " + offset);
+        }
+        byte[] bytes = new byte[length];
+        segments.read(offset, bytes);
+        LogRecord r = LogRecord.decode(bytes);
+        if (r.offset != offset) {
+            throw new EOFException("misplaced log record at offset " + offset);
+        }
+        return r;
+    }
+
+    /** Return the offset at which the next record will be appended */
+    public synchronized long getEndOffset() {
+        return segments.getEnd();
+    }
+
+    /** Return the offset up to which the log is known to be on disk */
+    public long getFlushedLSN() {
+        return flushedLSN;
+    }
+
+    /** Return the number of segment files the log currently occupies */
+    public synchronized int getNumSegments() {
+        return segments.getNumSegments();
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -146,50 +290,54 @@ public class LogFile {
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+        Database.getBufferPool().beginRollback(tid);
+        synchronized(this) {
+            preAppend();
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
+
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            undo(tid);
+
+            append(new LogRecord(ABORT_RECORD, tid.getId()));
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
         }
     }
 
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
 
+        The force is shared with concurrent committers (see
+        {@link GroupCommit}), so this method only holds the log lock while
+        appending the record.
+
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long seq;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            append(new LogRecord(COMMIT_RECORD, tid.getId()));
+            tidToFirstLogRecord.remove(tid.getId());
+            seq = appendSeq;
+        }
+        groupCommit.awaitDurable(seq);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Return the group commit state of this log, to tune its batch
+        window or read its statistics. */
+    public GroupCommit getGroupCommit() {
+        return groupCommit;
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.) Only the byte
+        ranges in which the two images differ are logged.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
@@ -199,95 +347,13 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
-        /* update record conists of
-
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-
+        append(LogRecord.update(tid.getId(), before, after));
+        after.setLSN(currentOffset);
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
-    }
-
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
-
-    }
-
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
@@ -300,51 +366,46 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        tidToFirstLogRecord.put(tid.getId(), append(new LogRecord(BEGIN_RECORD, tid.getId())));
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+
+        The checkpoint is fuzzy: instead of flushing the buffer pool it
+        records the dirty page table, and transactions keep running while
+        it is taken.  The log lock is held only to append the record.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        // every update appended before begin is on disk or in the dirty
+        // page table, since pages note their recLSN before logging
+        long begin;
+        synchronized (this) {
+            if (recoveryUndecided) {
+                recoveryUndecided = false;
+                startNewLog();
+            }
+            begin = segments.getEnd();
+        }
+        Map<PageId, Long> dirtyPages = Database.getBufferPool().getDirtyPageTable();
+
+        long startCpOffset;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            preAppend();
+            //write list of outstanding transactions and dirty pages
+            startCpOffset = append(LogRecord.checkpoint(begin, tidToFirstLogRecord, dirtyPages));
+        }
+        groupCommit.markDurable(forceAppended());
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        synchronized (this) {
+            //once the CP is written, make sure the CP location in the
+            // control file is updated
+            if (startCpOffset > readCheckpointPointer()) {
+                writeControl(startCpOffset, readFirstRecordPointer());
             }
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
@@ -354,96 +415,29 @@ public class LogFile {
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        long cpLoc = readCheckpointPointer();
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+        LogRecord cp = readRecord(cpLoc);
+        if (cp.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        long minLogRecord = Math.min(cpLoc, cp.redoPoint());
+        for (long firstLogRecord : cp.activeTxns.values()) {
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        // we can drop every segment before minLogRecord; offsets stay valid
+        int before = segments.getNumSegments();
+        writeControl(cpLoc, minLogRecord);
+        segments.truncateBefore(minLogRecord);
 
-        currentOffset = raf.getFilePointer();
-        //print();
+        Debug.log("TRUNCATING LOG; DROPPED " + (before - segments.getNumSegments())
+                + " SEGMENTS ; NEW START : " + minLogRecord);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -456,22 +450,78 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+        Database.getBufferPool().beginRollback(tid);
+        synchronized(this) {
+            undo(tid);
+        }
+    }
+
+    /** Rollback tid while holding the log lock; see {@link #rollback}. */
+    private void undo(TransactionId tid)
+        throws NoSuchElementException, IOException {
+        preAppend();
+        // some code goes here
+        Long first = tidToFirstLogRecord.get(tid.getId());
+        if (first == null) {
+            throw new NoSuchElementException("no live transaction " + tid.getId());
+        }
+        List<LogRecord> records = new ArrayList<>();
+        long end = segments.getEnd();
+        for (long offset = first; offset < end; ) {
+            LogRecord r = readRecord(offset);
+            offset += r.getLength();
+            if ((r.type == UPDATE_RECORD || r.type == CLR_RECORD) && r.tid == tid.getId()) {
+                records.add(r);
             }
         }
+
+        // undo newest first, logging a CLR for each update so that
+        // recovery repeats the rollback
+        List<LogRecord> updates = LogRecovery.pendingUndo(records);
+        Map<PageId, Page> pages = new LinkedHashMap<>();
+        for (int i = 0; i < updates.size(); i++) {
+            LogRecord r = updates.get(i);
+            Page current = pages.get(r.pid);
+            if (current == null) {
+                current = rollbackBase(tid, r);
+            }
+            pages.put(r.pid, r.undo(current));
+            long undoNext = i + 1 < updates.size() ? updates.get(i + 1).offset : LogRecord.NO_UNDO_NEXT;
+            preAppend();
+            append(r.compensation(undoNext));
+        }
+        force();
+
+        for (Page p : pages.values()) {
+            Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+            Database.getBufferPool().discardPage(p.getId());
+        }
+    }
+
+    /** The image a rollback starts from: the cached page if there is one,
+        without the transaction's changes that never reached the log, or
+        else the page on disk. */
+    private Page rollbackBase(TransactionId tid, LogRecord r) throws IOException {
+        Page cached = Database.getBufferPool().getCachedPage(r.pid);
+        if (cached == null) {
+            return r.readDiskPage();
+        }
+        return tid.equals(cached.isDirty()) ? cached.getBeforeImage() : cached;
     }
 
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
-            logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            //simple way to shutdown is to write every page and a checkpoint record
+            Database.getBufferPool().flushAllPages();
+            logCheckpoint();
+            synchronized (this) {
+                segments.close();
+                control.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -481,94 +531,127 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        See {@link LogRecovery} for the passes over the log.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
+        synchronized (this) {
+            recoveryUndecided = false;
+            openForAppend();
+            // some code goes here
+            int threads = Integer.getInteger(REDO_THREADS_PROPERTY,
+                    Runtime.getRuntime().availableProcessors());
+            new LogRecovery(this, threads).run();
+            tidToFirstLogRecord.clear();
+        }
+    }
+
+    /** Position the log after its last intact record, cutting off a torn
+        tail, or start an empty log if there is none. */
+    void openForAppend() throws IOException {
+        if (!hasValidControl()) {
+            startNewLog();
+            return;
+        }
+        long offset = readFirstRecordPointer();
+        while (true) {
+            try {
+                offset += readRecord(offset).getLength();
+            } catch (EOFException e) {
+                break;
             }
-         }
+        }
+        segments.truncateAfter(offset);
+        currentOffset = segments.getEnd();
+        flushedLSN = currentOffset;
     }
 
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
-
-        raf.seek(0);
-
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+    public synchronized void print() throws IOException {
+        System.out.println("checkpoint record at offset " + readCheckpointPointer());
 
+        long offset = readFirstRecordPointer();
         while (true) {
+            LogRecord r;
             try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
-
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
-
-                switch (cpType) {
-                case BEGIN_RECORD:
-                    System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case ABORT_RECORD:
-                    System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case COMMIT_RECORD:
-                    System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-
-                case CHECKPOINT_RECORD:
-                    System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
-
-                    while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
-                    }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-
-                    break;
-                case UPDATE_RECORD:
-                    System.out.println(" (UPDATE)");
-
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
-
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
-
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
-
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
-
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-
-                    break;
-                }
-
+                r = readRecord(offset);
             } catch (EOFException e) {
-                //e.printStackTrace();
+                break;
+            }
+            offset += r.getLength();
+            System.out.println(r.offset + ": RECORD TYPE " + r.type + " (" + LogRecord.typeToString(r.type) + ")");
+            System.out.println("    TID " + r.tid);
+
+            switch (r.type) {
+            case CHECKPOINT_RECORD:
+                System.out.println("    BEGIN OFFSET: " + r.checkpointBegin);
+                System.out.println("    NUMBER OF OUTSTANDING RECORDS: " + r.activeTxns.size());
+                for (Map.Entry<Long, Long> e : r.activeTxns.entrySet()) {
+                    System.out.println("    TID: " + e.getKey() + " FIRST LOG RECORD: " + e.getValue());
+                }
+                System.out.println("    NUMBER OF DIRTY PAGES: " + r.dirtyPages.size());
+                for (Map.Entry<PageId, Long> e : r.dirtyPages.entrySet()) {
+                    System.out.println("    PAGE: " + e.getKey() + " RECLSN: " + e.getValue());
+                }
+                break;
+            case UPDATE_RECORD:
+            case CLR_RECORD:
+                System.out.println("    " + r.pageType + " page: table id " + r.pid.getTableId()
+                        + ", page number " + r.pid.getPageNumber());
+                System.out.println("    " + r.rangeStarts.length + " changed ranges, "
+                        + r.changedBytes() + " bytes");
+                if (r.type == CLR_RECORD) {
+                    System.out.println("    UNDO NEXT: " + r.undoNextLSN);
+                }
                 break;
             }
         }
-
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        segments.force();
+        flushedLSN = segments.getEnd();
+        groupCommit.markDurable(appendSeq);
+    }
+
+    /** Make sure the log is on disk up to offset lsn, typically the LSN
+        of a page that is about to be written.  Returns at once if an
+        earlier force already covered it; otherwise forces everything
+        appended so far without holding the log lock.
+
+        @param lsn the log offset that must be durable
+    */
+    public void forceUpTo(long lsn) throws IOException {
+        if (lsn <= flushedLSN) {
+            return;
+        }
+        groupCommit.markDurable(forceAppended());
+    }
+
+    /** Force every record appended so far without holding the log lock
+        during the force, so other threads can keep appending.
+
+        @return the append sequence number that is now durable
+    */
+    long forceAppended() throws IOException {
+        long target;
+        long end;
+        List<FileChannel> channels;
+        synchronized (this) {
+            target = appendSeq;
+            end = segments.getEnd();
+            channels = segments.beginForce();
+        }
+        try {
+            LogSegments.forceChannels(channels);
+        } finally {
+            synchronized (this) {
+                segments.endForce(channels);
+            }
+        }
+        synchronized (this) {
+            flushedLSN = Math.max(flushedLSN, end);
+        }
+        return target;
     }
 
 }
@@ -0,0 +1,122 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.*;
+
+import java.io.IOException;
+
+/**
+ * Numeric tags for the page types that can appear in update log records.
+ * A tag determines both the PageId class and the Page class, so log replay
+ * can rebuild pages without looking classes up by name.
+ */
+public enum LogPageType {
+    HEAP(1),
+    BTREE_ROOT_PTR(2),
+    BTREE_INTERNAL(3),
+    BTREE_LEAF(4),
+    BTREE_HEADER(5);
+
+    private final byte tag;
+
+    LogPageType(int tag) {
+        this.tag = (byte) tag;
+    }
+
+    public byte getTag() {
+        return tag;
+    }
+
+    /** @return the type with the given tag */
+    public static LogPageType fromTag(byte tag) throws IOException {
+        for (LogPageType t : values()) {
+            if (t.tag == tag) {
+                return t;
+            }
+        }
+        throw new IOException("unknown page type tag " + tag);
+    }
+
+    /** @return the type of the given page */
+    public static LogPageType of(Page p) {
+        if (p instanceof HeapPage) {
+            return HEAP;
+        } else if (p instanceof BTreeRootPtrPage) {
+            return BTREE_ROOT_PTR;
+        } else if (p instanceof BTreeInternalPage) {
+            return BTREE_INTERNAL;
+        } else if (p instanceof BTreeLeafPage) {
+            return BTREE_LEAF;
+        } else if (p instanceof BTreeHeaderPage) {
+            return BTREE_HEADER;
+        }
+        throw new IllegalArgumentException("cannot log pages of type " + p.getClass().getName());
+    }
+
+    /** @return the type of the page with the given id */
+    public static LogPageType of(PageId pid) {
+        if (pid instanceof HeapPageId) {
+            return HEAP;
+        } else if (pid instanceof BTreePageId) {
+            switch (((BTreePageId) pid).pgcateg()) {
+            case BTreePageId.ROOT_PTR:
+                return BTREE_ROOT_PTR;
+            case BTreePageId.INTERNAL:
+                return BTREE_INTERNAL;
+            case BTreePageId.LEAF:
+                return BTREE_LEAF;
+            case BTreePageId.HEADER:
+                return BTREE_HEADER;
+            }
+        }
+        throw new IllegalArgumentException("cannot log pages with ids of type " + pid.getClass().getName());
+    }
+
+    /** @return the id of page pgNo of table tableId for this page type */
+    public PageId pageId(int tableId, int pgNo) {
+        switch (this) {
+        case HEAP:
+            return new HeapPageId(tableId, pgNo);
+        case BTREE_ROOT_PTR:
+            return new BTreePageId(tableId, pgNo, BTreePageId.ROOT_PTR);
+        case BTREE_INTERNAL:
+            return new BTreePageId(tableId, pgNo, BTreePageId.INTERNAL);
+        case BTREE_LEAF:
+            return new BTreePageId(tableId, pgNo, BTreePageId.LEAF);
+        default:
+            return new BTreePageId(tableId, pgNo, BTreePageId.HEADER);
+        }
+    }
+
+    /** @return the image of a page of this type that was never written to disk */
+    public byte[] emptyPageData() {
+        switch (this) {
+        case HEAP:
+            return HeapPage.createEmptyPageData();
+        case BTREE_ROOT_PTR:
+            return BTreeRootPtrPage.createEmptyPageData();
+        case BTREE_HEADER:
+            return BTreeHeaderPage.createEmptyPageData();
+        default:
+            return BTreePage.createEmptyPageData();
+        }
+    }
+
+    /** Build a page of this type from its on-disk image. */
+    public Page newPage(PageId pid, byte[] data) throws IOException {
+        switch (this) {
+        case HEAP:
+            return new HeapPage((HeapPageId) pid, data);
+        case BTREE_ROOT_PTR:
+            return new BTreeRootPtrPage((BTreePageId) pid, data);
+        case BTREE_HEADER:
+            return new BTreeHeaderPage((BTreePageId) pid, data);
+        default:
+            int keyField = ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+            if (this == BTREE_INTERNAL) {
+                return new BTreeInternalPage((BTreePageId) pid, data, keyField);
+            }
+            return new BTreeLeafPage((BTreePageId) pid, data, keyField);
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LogRecord is one record of the write-ahead log, in binary log format
+ * version {@link LogFile#LOG_VERSION}. Every record has the layout
+ *
+ * <pre>
+ *   int   total length of the record in bytes
+ *   byte  record type
+ *   long  transaction id
+ *   ...   payload
+ *   long  file offset where the record begins
+ *   int   CRC-32C of all preceding bytes of the record
+ * </pre>
+ *
+ * The trailing offset lets rollback walk the log backwards, and the
+ * checksum lets readers detect a torn tail after a crash.
+ * <p>
+ * UPDATE records do not store page images. Their payload is a
+ * {@link LogPageType} tag, the table id and page number, and the byte
+ * ranges where the before and after images differ, each stored as
+ * offset, length, before bytes and after bytes. Redo copies the after
+ * bytes into the current page image, and undo copies the before bytes.
+ * <p>
+ * CLR (compensation log record) records log the undo of one UPDATE and
+ * are redo-only. Their payload is the page type tag, table id and page
+ * number, the undoNextLSN, and the restored byte ranges, each stored as
+ * offset, length and bytes. The undoNextLSN is the offset of the next
+ * UPDATE of the transaction that still has to be undone, or
+ * {@link #NO_UNDO_NEXT} once the whole transaction is compensated, so an
+ * undo that is interrupted by a crash resumes where it stopped instead of
+ * compensating the same updates again.
+ * <p>
+ * CHECKPOINT records hold the log offset at which the checkpoint began,
+ * the number of active transactions followed by a (tid, first record
+ * offset) pair for each of them, and the dirty page table: the number of
+ * pages followed by a page type tag, table id, page number and recLSN for
+ * each of them.
+ */
+public class LogRecord {
+
+    /** length, type and tid */
+    static final int HEADER_SIZE = 4 + 1 + 8;
+    /** start offset and checksum */
+    static final int TRAILER_SIZE = 8 + 4;
+
+    /**
+     * Unchanged runs shorter than this are folded into the surrounding
+     * ranges, since each range costs 8 bytes of offset and length.
+     */
+    static final int MERGE_GAP = 8;
+
+    /** undoNextLSN of a CLR that compensates the first update of its transaction. */
+    static final long NO_UNDO_NEXT = -1;
+
+    final int type;
+    final long tid;
+    /** Where the record begins in the log, -1 until it is written. */
+    long offset = -1;
+    /** Encoded size of the record in bytes, 0 until it is encoded. */
+    int length = 0;
+
+    // UPDATE and CLR records; CLRs have no before bytes
+    LogPageType pageType;
+    PageId pid;
+    int[] rangeStarts;
+    byte[][] beforeBytes;
+    byte[][] afterBytes;
+
+    // CLR records
+    long undoNextLSN = NO_UNDO_NEXT;
+
+    // CHECKPOINT records
+    long checkpointBegin;
+    Map<Long, Long> activeTxns;
+    Map<PageId, Long> dirtyPages;
+
+    LogRecord(int type, long tid) {
+        this.type = type;
+        this.tid = tid;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public long getTid() {
+        return tid;
+    }
+
+    /** @return the encoded size of this record in bytes */
+    public int getLength() {
+        return length;
+    }
+
+    /** @return the page an UPDATE or CLR record applies to */
+    public PageId getPageId() {
+        return pid;
+    }
+
+    /** @return the offset of the next update to undo after a CLR record */
+    public long getUndoNextLSN() {
+        return undoNextLSN;
+    }
+
+    /** Build an UPDATE record holding the differences between two images of a page. */
+    public static LogRecord update(long tid, Page before, Page after) {
+        LogRecord r = new LogRecord(LogFile.UPDATE_RECORD, tid);
+        r.pageType = LogPageType.of(after);
+        r.pid = after.getId();
+
+        byte[] b = before.getPageData();
+        byte[] a = after.getPageData();
+        if (b.length != a.length) {
+            throw new IllegalArgumentException("before and after images differ in size");
+        }
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < a.length) {
+            if (a[i] == b[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend the range over short unchanged gaps
+            for (int j = end; j < a.length && j - end < MERGE_GAP; j++) {
+                if (a[j] != b[j]) {
+                    end = j + 1;
+                }
+            }
+            ranges.add(new int[]{start, end});
+            i = end;
+        }
+
+        r.rangeStarts = new int[ranges.size()];
+        r.beforeBytes = new byte[ranges.size()][];
+        r.afterBytes = new byte[ranges.size()][];
+        for (int k = 0; k < ranges.size(); k++) {
+            int start = ranges.get(k)[0];
+            int len = ranges.get(k)[1] - start;
+            r.rangeStarts[k] = start;
+            r.beforeBytes[k] = new byte[len];
+            r.afterBytes[k] = new byte[len];
+            System.arraycopy(b, start, r.beforeBytes[k], 0, len);
+            System.arraycopy(a, start, r.afterBytes[k], 0, len);
+        }
+        return r;
+    }
+
+    /**
+     * Build the CLR for this UPDATE record. It restores the before bytes of
+     * the same byte ranges, so redoing it repeats the rollback of this
+     * update.
+     *
+     * @param undoNextLSN the offset of the update of this transaction to
+     *        undo next, or {@link #NO_UNDO_NEXT} if this is its first
+     */
+    public LogRecord compensation(long undoNextLSN) {
+        if (type != LogFile.UPDATE_RECORD) {
+            throw new IllegalStateException("only UPDATE records can be compensated");
+        }
+        LogRecord r = new LogRecord(LogFile.CLR_RECORD, tid);
+        r.pageType = pageType;
+        r.pid = pid;
+        r.rangeStarts = rangeStarts;
+        r.afterBytes = beforeBytes;
+        r.undoNextLSN = undoNextLSN;
+        return r;
+    }
+
+    /**
+     * Build a CHECKPOINT record for the given active transactions and dirty
+     * pages. Every update logged before begin is either on disk or listed
+     * in dirtyPages.
+     */
+    static LogRecord checkpoint(long begin, Map<Long, Long> activeTxns, Map<PageId, Long> dirtyPages) {
+        LogRecord r = new LogRecord(LogFile.CHECKPOINT_RECORD, -1);
+        r.checkpointBegin = begin;
+        r.activeTxns = new LinkedHashMap<>(activeTxns);
+        r.dirtyPages = new LinkedHashMap<>(dirtyPages);
+        return r;
+    }
+
+    /**
+     * @return the offset where redo has to start for this CHECKPOINT record:
+     *         the oldest recLSN in its dirty page table, or the offset at
+     *         which the checkpoint began if that is older
+     */
+    long redoPoint() {
+        long redo = checkpointBegin;
+        for (long recLSN : dirtyPages.values()) {
+            redo = Math.min(redo, recLSN);
+        }
+        return redo;
+    }
+
+    private int payloadSize() {
+        switch (type) {
+        case LogFile.UPDATE_RECORD:
+            int size = 1 + 4 + 4 + 4;
+            for (byte[] range : afterBytes) {
+                size += 4 + 4 + 2 * range.length;
+            }
+            return size;
+        case LogFile.CLR_RECORD:
+            int clrSize = 1 + 4 + 4 + 8 + 4;
+            for (byte[] range : afterBytes) {
+                clrSize += 4 + 4 + range.length;
+            }
+            return clrSize;
+        case LogFile.CHECKPOINT_RECORD:
+            return 8 + 4 + activeTxns.size() * 16 + 4 + dirtyPages.size() * (1 + 4 + 4 + 8);
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Serialize this record as it will be stored at the given log offset.
+     */
+    public byte[] encode(long offset) {
+        this.offset = offset;
+        int length = HEADER_SIZE + payloadSize() + TRAILER_SIZE;
+        this.length = length;
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        buf.putInt(length);
+        buf.put((byte) type);
+        buf.putLong(tid);
+        switch (type) {
+        case LogFile.UPDATE_RECORD:
+            buf.put(pageType.getTag());
+            buf.putInt(pid.getTableId());
+            buf.putInt(pid.getPageNumber());
+            buf.putInt(rangeStarts.length);
+            for (int k = 0; k < rangeStarts.length; k++) {
+                buf.putInt(rangeStarts[k]);
+                buf.putInt(afterBytes[k].length);
+                buf.put(beforeBytes[k]);
+                buf.put(afterBytes[k]);
+            }
+            break;
+        case LogFile.CLR_RECORD:
+            buf.put(pageType.getTag());
+            buf.putInt(pid.getTableId());
+            buf.putInt(pid.getPageNumber());
+            buf.putLong(undoNextLSN);
+            buf.putInt(rangeStarts.length);
+            for (int k = 0; k < rangeStarts.length; k++) {
+                buf.putInt(rangeStarts[k]);
+                buf.putInt(afterBytes[k].length);
+                buf.put(afterBytes[k]);
+            }
+            break;
+        case LogFile.CHECKPOINT_RECORD:
+            buf.putLong(checkpointBegin);
+            buf.putInt(activeTxns.size());
+            for (Map.Entry<Long, Long> e : activeTxns.entrySet()) {
+                buf.putLong(e.getKey());
+                buf.putLong(e.getValue());
+            }
+            buf.putInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                buf.put(LogPageType.of(e.getKey()).getTag());
+                buf.putInt(e.getKey().getTableId());
+                buf.putInt(e.getKey().getPageNumber());
+                buf.putLong(e.getValue());
+            }
+            break;
+        }
+        buf.putLong(offset);
+        buf.putInt(Crc32c.compute(buf.array(), 0, length - 4));
+        return buf.array();
+    }
+
+    /**
+     * Decode a record from its encoded bytes.
+     *
+     * @throws EOFException if the bytes do not hold an intact record, e.g.
+     *         a torn record at the tail of the log
+     */
+    public static LogRecord decode(byte[] bytes) throws IOException {
+        int length = bytes.length;
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        if (length < HEADER_SIZE + TRAILER_SIZE || buf.getInt(0) != length) {
+            throw new EOFException("torn log record");
+        }
+        if (buf.getInt(length - 4) != Crc32c.compute(bytes, 0, length - 4)) {
+            throw new EOFException("bad checksum in log record");
+        }
+
+        buf.position(4);
+        LogRecord r = new LogRecord(buf.get(), buf.getLong());
+        switch (r.type) {
+        case LogFile.UPDATE_RECORD:
+            r.pageType = LogPageType.fromTag(buf.get());
+            int tableId = buf.getInt();
+            r.pid = r.pageType.pageId(tableId, buf.getInt());
+            int numRanges = buf.getInt();
+            r.rangeStarts = new int[numRanges];
+            r.beforeBytes = new byte[numRanges][];
+            r.afterBytes = new byte[numRanges][];
+            for (int k = 0; k < numRanges; k++) {
+                r.rangeStarts[k] = buf.getInt();
+                int len = buf.getInt();
+                r.beforeBytes[k] = new byte[len];
+                r.afterBytes[k] = new byte[len];
+                buf.get(r.beforeBytes[k]);
+                buf.get(r.afterBytes[k]);
+            }
+            break;
+        case LogFile.CLR_RECORD:
+            r.pageType = LogPageType.fromTag(buf.get());
+            int clrTableId = buf.getInt();
+            r.pid = r.pageType.pageId(clrTableId, buf.getInt());
+            r.undoNextLSN = buf.getLong();
+            int clrRanges = buf.getInt();
+            r.rangeStarts = new int[clrRanges];
+            r.afterBytes = new byte[clrRanges][];
+            for (int k = 0; k < clrRanges; k++) {
+                r.rangeStarts[k] = buf.getInt();
+                r.afterBytes[k] = new byte[buf.getInt()];
+                buf.get(r.afterBytes[k]);
+            }
+            break;
+        case LogFile.CHECKPOINT_RECORD:
+            r.checkpointBegin = buf.getLong();
+            int numTxns = buf.getInt();
+            r.activeTxns = new LinkedHashMap<>();
+            for (int k = 0; k < numTxns; k++) {
+                r.activeTxns.put(buf.getLong(), buf.getLong());
+            }
+            int numPages = buf.getInt();
+            r.dirtyPages = new LinkedHashMap<>();
+            for (int k = 0; k < numPages; k++) {
+                LogPageType pageType = LogPageType.fromTag(buf.get());
+                int pageTableId = buf.getInt();
+                r.dirtyPages.put(pageType.pageId(pageTableId, buf.getInt()), buf.getLong());
+            }
+            break;
+        }
+        r.offset = buf.getLong();
+        r.length = length;
+        return r;
+    }
+
+    /** @return the page with this update applied to the image of current */
+    public Page redo(Page current) throws IOException {
+        return patch(current, afterBytes);
+    }
+
+    /** @return the page with this update rolled back in the image of current */
+    public Page undo(Page current) throws IOException {
+        return patch(current, beforeBytes);
+    }
+
+    /** Apply this update or CLR to a page image in place. */
+    void redoInto(byte[] image) {
+        patchInto(image, afterBytes);
+    }
+
+    private Page patch(Page current, byte[][] bytes) throws IOException {
+        byte[] image = current.getPageData();
+        patchInto(image, bytes);
+        return pageType.newPage(pid, image);
+    }
+
+    private void patchInto(byte[] image, byte[][] bytes) {
+        for (int k = 0; k < rangeStarts.length; k++) {
+            System.arraycopy(bytes[k], 0, image, rangeStarts[k], bytes[k].length);
+        }
+    }
+
+    /**
+     * Read the on-disk image of the page this UPDATE or CLR record applies to, or
+     * an empty image if the page was never written.
+     */
+    Page readDiskPage() throws IOException {
+        Page p = null;
+        try {
+            p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        } catch (IllegalArgumentException e) {
+            // past the end of the file
+        }
+        return p != null ? p : pageType.newPage(pid, pageType.emptyPageData());
+    }
+
+    /** @return the number of page bytes this UPDATE or CLR record changes */
+    public int changedBytes() {
+        int n = 0;
+        for (byte[] range : afterBytes) {
+            n += range.length;
+        }
+        return n;
+    }
+
+    static String typeToString(int type) {
+        switch (type) {
+        case LogFile.ABORT_RECORD:
+            return "ABORT";
+        case LogFile.COMMIT_RECORD:
+            return "COMMIT";
+        case LogFile.UPDATE_RECORD:
+            return "UPDATE";
+        case LogFile.BEGIN_RECORD:
+            return "BEGIN";
+        case LogFile.CHECKPOINT_RECORD:
+            return "CHECKPOINT";
+        case LogFile.CLR_RECORD:
+            return "CLR";
+        default:
+            return "UNKNOWN(" + type + ")";
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.Debug;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LogRecovery restarts the database from the log after a crash, in the
+ * three passes of ARIES:
+ *
+ * <ol>
+ * <li> Analysis scans forward from the redo point of the last checkpoint,
+ * seeded with the transactions the checkpoint lists as active.
+ * Transactions without a COMMIT or ABORT record by the end of the log are
+ * losers. It collects the UPDATE and CLR records to redo and those of
+ * every loser. Checkpoints are fuzzy, so an update logged before the
+ * checkpoint began is redone only if its page is in the checkpoint's dirty
+ * page table and the update is not older than the page's recLSN.
+ *
+ * <li> Undo is logged before it is applied: for every loser update that is
+ * not compensated yet, newest first, it appends a CLR (see
+ * {@link LogRecord#compensation}), and then an ABORT record for each
+ * loser. Redoing the CLRs rolls the losers back. A crash during recovery
+ * or rollback leaves a log that recovers the same way, and the next
+ * recovery follows the undoNextLSN of the last CLR of each loser, so it
+ * only compensates the updates that were not compensated before.
+ *
+ * <li> Redo repeats history from the redo point, CLRs included. Records are partitioned by PageId and every page is rebuilt
+ * by one task on a thread pool: read the page from disk, apply its records
+ * in log order, write it back. Pages are independent, so restart time
+ * scales with the number of cores.
+ * </ol>
+ *
+ * Records are physical byte ranges, so applying them again to a page that
+ * already holds them is harmless. Write-ahead logging in BufferPool
+ * guarantees that every change on disk has a record in the log.
+ * <p>
+ * The caller holds the buffer pool and log locks.
+ */
+class LogRecovery {
+
+    private final LogFile log;
+    private final int threads;
+
+    /** Where redo starts; every change before it is on disk. */
+    private long redoStart;
+    /** Where the last checkpoint began; changes before it are on disk unless listed in dirtyPages. */
+    private long checkpointBegin;
+    private Map<PageId, Long> dirtyPages = Collections.emptyMap();
+    /** Transactions that have not committed or aborted, and their first record. */
+    private final Map<Long, Long> active = new HashMap<>();
+    /** UPDATE and CLR records of the active transactions, in log order. */
+    private final Map<Long, List<LogRecord>> activeUpdates = new HashMap<>();
+    /** UPDATE and CLR records at or after the redo point, by page, in log order. */
+    private final Map<PageId, List<LogRecord>> redoByPage = new LinkedHashMap<>();
+
+    private int losers;
+    private int compensations;
+
+    LogRecovery(LogFile log, int threads) {
+        this.log = log;
+        this.threads = Math.max(1, threads);
+    }
+
+    void run() throws IOException {
+        analyze();
+        undo();
+        redo();
+        Debug.log("RECOVERY: " + losers + " LOSERS, " + compensations + " COMPENSATIONS, "
+                + redoByPage.size() + " PAGES REDONE");
+    }
+
+    private void analyze() throws IOException {
+        long scan = log.readFirstRecordPointer();
+        redoStart = scan;
+        checkpointBegin = scan;
+        long cpLoc = log.readCheckpointPointer();
+        if (cpLoc != LogFile.NO_CHECKPOINT_ID) {
+            LogRecord cp = log.readRecord(cpLoc);
+            if (cp.type != LogFile.CHECKPOINT_RECORD) {
+                throw new IOException("Checkpoint pointer does not point to checkpoint record");
+            }
+            redoStart = cp.redoPoint();
+            checkpointBegin = cp.checkpointBegin;
+            dirtyPages = cp.dirtyPages;
+            scan = redoStart;
+            for (Map.Entry<Long, Long> e : cp.activeTxns.entrySet()) {
+                active.put(e.getKey(), e.getValue());
+                activeUpdates.put(e.getKey(), new ArrayList<>());
+                scan = Math.min(scan, e.getValue());
+            }
+        }
+
+        long end = log.getEndOffset();
+        for (long offset = scan; offset < end; ) {
+            LogRecord r = log.readRecord(offset);
+            offset += r.getLength();
+            if (r.offset < redoStart) {
+                // before the checkpoint only the updates of its active transactions matter
+                if ((r.type == LogFile.UPDATE_RECORD || r.type == LogFile.CLR_RECORD)
+                        && activeUpdates.containsKey(r.tid)) {
+                    activeUpdates.get(r.tid).add(r);
+                }
+                continue;
+            }
+            switch (r.type) {
+            case LogFile.BEGIN_RECORD:
+                active.putIfAbsent(r.tid, r.offset);
+                activeUpdates.putIfAbsent(r.tid, new ArrayList<>());
+                break;
+            case LogFile.COMMIT_RECORD:
+            case LogFile.ABORT_RECORD:
+                active.remove(r.tid);
+                activeUpdates.remove(r.tid);
+                break;
+            case LogFile.UPDATE_RECORD:
+            case LogFile.CLR_RECORD:
+                if (needsRedo(r)) {
+                    redoByPage.computeIfAbsent(r.pid, k -> new ArrayList<>()).add(r);
+                }
+                List<LogRecord> updates = activeUpdates.get(r.tid);
+                if (updates != null) {
+                    updates.add(r);
+                }
+                break;
+            }
+        }
+        losers = active.size();
+    }
+
+    private boolean needsRedo(LogRecord r) {
+        if (r.offset >= checkpointBegin) {
+            return true;
+        }
+        Long recLSN = dirtyPages.get(r.pid);
+        return recLSN != null && r.offset >= recLSN;
+    }
+
+    /**
+     * The updates of one transaction that still have to be undone, newest
+     * first: its UPDATE records, minus those that its CLRs already
+     * compensated. Each CLR sends the walk back to its undoNextLSN.
+     *
+     * @param records the UPDATE and CLR records of the transaction in log order
+     */
+    static List<LogRecord> pendingUndo(List<LogRecord> records) {
+        List<LogRecord> pending = new ArrayList<>();
+        long next = Long.MAX_VALUE;
+        for (int i = records.size() - 1; i >= 0; i--) {
+            LogRecord r = records.get(i);
+            if (r.offset > next) {
+                continue;
+            }
+            if (r.type == LogFile.CLR_RECORD) {
+                next = r.undoNextLSN;
+            } else {
+                pending.add(r);
+            }
+        }
+        return pending;
+    }
+
+    private void undo() throws IOException {
+        List<LogRecord> loserUpdates = new ArrayList<>();
+        Map<LogRecord, Long> undoNext = new IdentityHashMap<>();
+        for (List<LogRecord> records : activeUpdates.values()) {
+            List<LogRecord> pending = pendingUndo(records);
+            for (int i = 0; i < pending.size(); i++) {
+                undoNext.put(pending.get(i), i + 1 < pending.size() ? pending.get(i + 1).offset : LogRecord.NO_UNDO_NEXT);
+            }
+            loserUpdates.addAll(pending);
+        }
+        loserUpdates.sort((a, b) -> Long.compare(b.offset, a.offset));
+
+        for (LogRecord r : loserUpdates) {
+            LogRecord clr = r.compensation(undoNext.get(r));
+            log.preAppend();
+            log.append(clr);
+            redoByPage.computeIfAbsent(clr.pid, k -> new ArrayList<>()).add(clr);
+            compensations++;
+        }
+        for (long tid : active.keySet()) {
+            log.preAppend();
+            log.append(new LogRecord(LogFile.ABORT_RECORD, tid));
+        }
+        log.force();
+    }
+
+    private void redo() throws IOException {
+        if (redoByPage.isEmpty()) {
+            return;
+        }
+        AtomicInteger n = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, redoByPage.size()), r -> {
+            Thread t = new Thread(r, "simpledb-redo-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> pages = new ArrayList<>();
+            for (List<LogRecord> records : redoByPage.values()) {
+                pages.add(pool.submit(() -> {
+                    redoPage(records);
+                    return null;
+                }));
+            }
+            for (Future<?> f : pages) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("recovery interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("redo failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        BufferPool bp = Database.getBufferPool();
+        for (PageId pid : redoByPage.keySet()) {
+            bp.discardPage(pid);
+        }
+    }
+
+    /** Rebuild one page from its on-disk image and its records. */
+    private static void redoPage(List<LogRecord> records) throws IOException {
+        LogRecord first = records.get(0);
+        byte[] image = first.readDiskPage().getPageData();
+        for (LogRecord r : records) {
+            r.redoInto(image);
+        }
+        Page p = first.pageType.newPage(first.pid, image);
+        Database.getCatalog().getDatabaseFile(first.pid.getTableId()).writePage(p);
+    }
+}
@@ -0,0 +1,282 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * LogSegments stores the write-ahead log as a sequence of fixed-size
+ * segment files. Log positions are logical byte offsets that never change:
+ * offset x lives in segment x / segmentSize at position x % segmentSize,
+ * in a file named after the log with the segment number appended
+ * (log.000000, log.000001, ...). A record may span two segments.
+ * <p>
+ * Appends are copied into an in-memory buffer, which is written to the
+ * segment files with positional FileChannel writes when it fills up, when
+ * the log is forced, or before the log is read. Truncating the log deletes
+ * whole segments that lie before the oldest offset still needed.
+ * <p>
+ * Not thread-safe; LogFile serializes access, except for
+ * {@link #forceChannels}, which may run without the log lock.
+ */
+class LogSegments {
+
+    static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File dir;
+    private final String prefix;
+    private final int segmentSize;
+
+    /** Open segments by segment number. */
+    private final TreeMap<Long, FileChannel> segments = new TreeMap<>();
+    /** Segments written since the last force. */
+    private final Set<FileChannel> unforced = new LinkedHashSet<>();
+    /** Segments being forced by {@link #forceChannels} outside the log lock. */
+    private final List<FileChannel> inFlight = new ArrayList<>();
+
+    /** First offset still present in the log. */
+    private long start = 0;
+    /** Offset up to which the buffer has been written to the segment files. */
+    private long written = 0;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Open the segments of the log named by logFile.
+     */
+    LogSegments(File logFile, int segmentSize) throws IOException {
+        this.dir = logFile.getAbsoluteFile().getParentFile();
+        this.prefix = logFile.getName() + ".";
+        this.segmentSize = segmentSize;
+
+        File[] files = dir.listFiles((d, name) -> isSegmentName(name));
+        if (files != null) {
+            for (File f : files) {
+                segments.put(Long.parseLong(f.getName().substring(prefix.length())), open(f));
+            }
+        }
+        if (!segments.isEmpty()) {
+            start = segments.firstKey() * segmentSize;
+            written = segments.lastKey() * segmentSize + segments.lastEntry().getValue().size();
+        }
+    }
+
+    private boolean isSegmentName(String name) {
+        if (!name.startsWith(prefix) || name.length() == prefix.length()) {
+            return false;
+        }
+        for (int i = prefix.length(); i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private File segmentFile(long segment) {
+        return new File(dir, prefix + String.format("%06d", segment));
+    }
+
+    private static FileChannel open(File f) throws IOException {
+        return FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    private FileChannel segment(long segment) throws IOException {
+        FileChannel ch = segments.get(segment);
+        if (ch == null) {
+            ch = open(segmentFile(segment));
+            segments.put(segment, ch);
+        }
+        return ch;
+    }
+
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the first offset still present in the log */
+    long getStart() {
+        return start;
+    }
+
+    /** @return the offset at which the next append starts */
+    long getEnd() {
+        return written + buffer.position();
+    }
+
+    /** @return the number of segment files */
+    int getNumSegments() {
+        return segments.size();
+    }
+
+    /**
+     * Append bytes at the end of the log.
+     *
+     * @return the offset at which they start
+     */
+    long append(byte[] bytes) throws IOException {
+        long offset = getEnd();
+        int pos = 0;
+        while (pos < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int n = Math.min(buffer.remaining(), bytes.length - pos);
+            buffer.put(bytes, pos, n);
+            pos += n;
+        }
+        return offset;
+    }
+
+    /** Write the append buffer to the segment files. */
+    void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            long segment = written / segmentSize;
+            int posInSegment = (int) (written % segmentSize);
+            int n = Math.min(buffer.remaining(), segmentSize - posInSegment);
+            ByteBuffer chunk = buffer.slice();
+            chunk.limit(n);
+            FileChannel ch = segment(segment);
+            while (chunk.hasRemaining()) {
+                ch.write(chunk, posInSegment + chunk.position());
+            }
+            unforced.add(ch);
+            buffer.position(buffer.position() + n);
+            written += n;
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Write out the append buffer and hand back the segments that need a
+     * force. The caller forces them with {@link #forceChannels}, possibly
+     * after releasing the log lock, and then calls {@link #endForce}.
+     */
+    List<FileChannel> beginForce() throws IOException {
+        flush();
+        List<FileChannel> channels = new ArrayList<>(unforced);
+        unforced.clear();
+        inFlight.addAll(channels);
+        return channels;
+    }
+
+    void endForce(List<FileChannel> channels) {
+        for (FileChannel ch : channels) {
+            inFlight.remove(ch);
+        }
+    }
+
+    /**
+     * Force everything appended so far. Segments that another thread is
+     * still forcing are forced again, so the log is durable on return.
+     */
+    void force() throws IOException {
+        flush();
+        List<FileChannel> channels = new ArrayList<>(unforced);
+        channels.addAll(inFlight);
+        unforced.clear();
+        forceChannels(channels);
+    }
+
+    static void forceChannels(List<FileChannel> channels) throws IOException {
+        for (FileChannel ch : channels) {
+            try {
+                ch.force(false);
+            } catch (ClosedChannelException e) {
+                // segment was dropped by truncation, its data is no longer needed
+            }
+        }
+    }
+
+    /**
+     * Read dst.length bytes starting at offset.
+     *
+     * @throws EOFException if the log ends before dst is filled
+     */
+    void read(long offset, byte[] dst) throws IOException {
+        if (offset < start || offset + dst.length > getEnd()) {
+            throw new EOFException();
+        }
+        if (offset + dst.length > written) {
+            flush();
+        }
+        ByteBuffer out = ByteBuffer.wrap(dst);
+        while (out.hasRemaining()) {
+            long pos = offset + out.position();
+            FileChannel ch = segments.get(pos / segmentSize);
+            if (ch == null) {
+                throw new EOFException("missing log segment " + pos / segmentSize);
+            }
+            int n = Math.min(out.remaining(), segmentSize - (int) (pos % segmentSize));
+            ByteBuffer chunk = out.slice();
+            chunk.limit(n);
+            while (chunk.hasRemaining()) {
+                if (ch.read(chunk, pos % segmentSize + chunk.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            out.position(out.position() + n);
+        }
+    }
+
+    /** Drop everything from offset on, e.g. a torn record at the tail. */
+    void truncateAfter(long offset) throws IOException {
+        flush();
+        Iterator<Map.Entry<Long, FileChannel>> it = segments.tailMap(offset / segmentSize, true).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, FileChannel> e = it.next();
+            long base = e.getKey() * segmentSize;
+            if (base >= offset) {
+                e.getValue().close();
+                unforced.remove(e.getValue());
+                segmentFile(e.getKey()).delete();
+                it.remove();
+            } else {
+                e.getValue().truncate(offset - base);
+            }
+        }
+        written = Math.max(offset, start);
+    }
+
+    /** Delete every segment that lies entirely before offset. */
+    void truncateBefore(long offset) throws IOException {
+        flush();
+        long keep = Math.min(offset, getEnd()) / segmentSize;
+        Iterator<Map.Entry<Long, FileChannel>> it = segments.headMap(keep, false).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, FileChannel> e = it.next();
+            e.getValue().close();
+            unforced.remove(e.getValue());
+            segmentFile(e.getKey()).delete();
+            it.remove();
+        }
+        start = Math.max(start, keep * segmentSize);
+    }
+
+    /** Delete all segments and start an empty log at offset 0. */
+    void reset() throws IOException {
+        buffer.clear();
+        for (Map.Entry<Long, FileChannel> e : segments.entrySet()) {
+            e.getValue().close();
+            segmentFile(e.getKey()).delete();
+        }
+        segments.clear();
+        unforced.clear();
+        start = 0;
+        written = 0;
+    }
+
+    void close() throws IOException {
+        flush();
+        for (FileChannel ch : segments.values()) {
+            ch.close();
+        }
+        segments.clear();
+        unforced.clear();
+    }
+}
@@ -0,0 +1,154 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * OptimisticValidator keeps the state of optimistic (OCC) transactions and
+ * validates them at commit.
+ * <p>
+ * An optimistic transaction reads private copies of committed pages
+ * without locks and keeps its changes in those copies. At commit it is
+ * validated backwards: if a transaction that committed after it started
+ * wrote a page it read, it fails and must be retried. To make this
+ * complete, the write sets of locking transactions that commit while
+ * optimistic ones run are recorded as well.
+ * <p>
+ * Locking writers register every page they pin READ_WRITE until they
+ * finish, and their commit is recorded before they unregister. An
+ * optimistic read of a registered page conflicts right away, so optimistic
+ * transactions never read uncommitted data.
+ */
+class OptimisticValidator {
+
+    /** Per-transaction state of an optimistic transaction. */
+    static final class State {
+        /** Commit sequence number when the transaction started. */
+        final long startSeq;
+        /** Pages read, including the ones later written. */
+        final Set<PageId> reads = new HashSet<>();
+        /** Private copies of the pages read or written, in first-use order. */
+        final Map<PageId, Page> pages = new LinkedHashMap<>();
+
+        State(long startSeq) {
+            this.startSeq = startSeq;
+        }
+
+        /** @return the private pages tid changed */
+        List<Page> writes(TransactionId tid) {
+            List<Page> writes = new ArrayList<>();
+            for (Page p : pages.values()) {
+                if (tid.equals(p.isDirty())) {
+                    writes.add(p);
+                }
+            }
+            return writes;
+        }
+    }
+
+    private static final class Committed {
+        final long seq;
+        final Set<PageId> writes;
+
+        Committed(long seq, Set<PageId> writes) {
+            this.seq = seq;
+            this.writes = writes;
+        }
+    }
+
+    /** Sequence number of the last recorded commit; guarded by this. */
+    private long lastCommit = 0;
+
+    /** Write sets committed since the oldest running optimistic transaction began; guarded by this. */
+    private final ArrayDeque<Committed> history = new ArrayDeque<>();
+
+    private final ConcurrentHashMap<TransactionId, State> running = new ConcurrentHashMap<>();
+
+    /** Pages being written, and their writer. */
+    private final ConcurrentHashMap<PageId, TransactionId> writing = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> writingByTid = new ConcurrentHashMap<>();
+
+    synchronized void begin(TransactionId tid) {
+        running.put(tid, new State(lastCommit));
+    }
+
+    /** @return the state of an optimistic transaction, or null for any other */
+    State state(TransactionId tid) {
+        return running.get(tid);
+    }
+
+    /** Register pid as being written by tid until tid finishes. */
+    void noteWriting(TransactionId tid, PageId pid) {
+        Set<PageId> pages = writingByTid.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet());
+        if (pages.add(pid)) {
+            writing.put(pid, tid);
+        }
+    }
+
+    /** @return true if a transaction other than tid is writing pid */
+    boolean isWrittenByOther(TransactionId tid, PageId pid) {
+        TransactionId writer = writing.get(pid);
+        return writer != null && !writer.equals(tid);
+    }
+
+    /**
+     * Validate an optimistic transaction against the write sets committed
+     * since it started, and record its own write set if it passes.
+     *
+     * @return false if the transaction read a page that has changed since
+     */
+    synchronized boolean validate(TransactionId tid, Set<PageId> writes) {
+        State state = running.get(tid);
+        for (Committed c : history) {
+            if (c.seq > state.startSeq && !Collections.disjoint(c.writes, state.reads)) {
+                return false;
+            }
+        }
+        record(writes);
+        return true;
+    }
+
+    /**
+     * Record the write set of a committing locking transaction, before its
+     * pages become readable by optimistic transactions.
+     */
+    synchronized void committed(TransactionId tid) {
+        Set<PageId> pages = writingByTid.get(tid);
+        if (pages != null && !running.isEmpty()) {
+            record(new HashSet<>(pages));
+        }
+    }
+
+    private void record(Set<PageId> writes) {
+        if (!writes.isEmpty()) {
+            history.addLast(new Committed(++lastCommit, writes));
+        }
+    }
+
+    /** Forget tid once it has committed or aborted and released its pages. */
+    void finished(TransactionId tid) {
+        Set<PageId> pages = writingByTid.remove(tid);
+        if (pages != null) {
+            for (PageId pid : pages) {
+                writing.remove(pid, tid);
+            }
+        }
+        if (running.remove(tid) != null) {
+            prune();
+        }
+    }
+
+    /** Drop the write sets no running optimistic transaction validates against. */
+    private synchronized void prune() {
+        long oldest = Long.MAX_VALUE;
+        for (State s : running.values()) {
+            oldest = Math.min(oldest, s.startSeq);
+        }
+        while (!history.isEmpty() && history.peekFirst().seq <= oldest) {
+            history.pollFirst();
+        }
+    }
+}
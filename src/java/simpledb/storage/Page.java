@@ -58,4 +58,19 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * Return the page LSN: the log offset just past the last update record
+     * logged for this page, or 0 if none was logged since the page was
+     * read.  The log must be durable up to this offset before the page is
+     * written to disk.  The LSN lives in the page object only; page images
+     * on disk keep their layout, since redo of the physical update records
+     * is idempotent without it.
+     */
+    long getLSN();
+
+    /**
+     * Set the page LSN; called by LogFile when it logs an update of this page.
+     */
+    void setLSN(long lsn);
 }
@@ -0,0 +1,97 @@
+package simpledb.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * PageArena is a fixed set of page-sized slots carved out of direct
+ * (off-heap) ByteBuffers. An off-heap BufferPool gives every resident
+ * {@link RelocatablePage} one slot, so the bytes of cached pages live
+ * outside the Java heap and are never scanned or copied by the GC.
+ * <p>
+ * A single direct buffer is limited to 2 GB, so the arena is split into
+ * chunks of at most {@link #MAX_CHUNK_BYTES}; slots never straddle chunks.
+ *
+ * @Threadsafe
+ */
+public class PageArena {
+
+    /** Largest direct buffer allocated for one chunk of slots. */
+    static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    private final ByteBuffer[] chunks;
+    private final int slotSize;
+    private final int slotsPerChunk;
+    private final int numSlots;
+
+    /** Stack of free slot numbers; freeTop is the number of entries in use. */
+    private final int[] freeSlots;
+    private int freeTop;
+
+    /**
+     * Allocate an arena with numSlots slots of slotSize bytes each.
+     *
+     * @param numSlots number of pages the arena can hold
+     * @param slotSize size of each slot, normally BufferPool.getPageSize()
+     */
+    public PageArena(int numSlots, int slotSize) {
+        if (numSlots <= 0 || slotSize <= 0 || slotSize > MAX_CHUNK_BYTES) {
+            throw new IllegalArgumentException("invalid arena geometry");
+        }
+        this.numSlots = numSlots;
+        this.slotSize = slotSize;
+        this.slotsPerChunk = MAX_CHUNK_BYTES / slotSize;
+        int numChunks = (numSlots + slotsPerChunk - 1) / slotsPerChunk;
+        this.chunks = new ByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            int slots = Math.min(slotsPerChunk, numSlots - i * slotsPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(slots * slotSize);
+        }
+        this.freeSlots = new int[numSlots];
+        for (int i = 0; i < numSlots; i++) {
+            freeSlots[i] = numSlots - 1 - i;
+        }
+        this.freeTop = numSlots;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    /**
+     * Reserve a free slot.
+     *
+     * @return the slot number, or -1 if every slot is in use
+     */
+    public synchronized int allocate() {
+        if (freeTop == 0) {
+            return -1;
+        }
+        return freeSlots[--freeTop];
+    }
+
+    /**
+     * Return a slot to the arena. The caller must no longer use any buffer
+     * obtained from {@link #slot} for it.
+     */
+    public synchronized void release(int slot) {
+        if (slot < 0 || slot >= numSlots || freeTop == numSlots) {
+            throw new IllegalArgumentException("bad arena slot " + slot);
+        }
+        freeSlots[freeTop++] = slot;
+    }
+
+    /**
+     * @return a buffer of getSlotSize() bytes viewing the given slot
+     */
+    public ByteBuffer slot(int slot) {
+        ByteBuffer chunk = chunks[slot / slotsPerChunk].duplicate();
+        int start = (slot % slotsPerChunk) * slotSize;
+        chunk.position(start);
+        chunk.limit(start + slotSize);
+        return chunk.slice();
+    }
+}
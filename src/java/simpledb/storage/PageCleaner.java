@@ -0,0 +1,61 @@
+package simpledb.storage;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * PageCleaner is the background writer of a BufferPool running with a page
+ * cleaner. Commits leave their pages in the pool marked as needing a write,
+ * and the cleaner writes them back every intervalMillis, or sooner when the
+ * pool wakes it because too many such pages have piled up.
+ * <p>
+ * The cleaner only keeps a weak reference to its pool and exits once the
+ * pool is gone, e.g. after {@link simpledb.common.Database#resetBufferPool}.
+ *
+ * @see BufferPool#writeCommittedPages
+ */
+class PageCleaner extends Thread {
+
+    private final WeakReference<BufferPool> pool;
+    private final long intervalMillis;
+    private boolean wakeRequested = false;
+
+    PageCleaner(BufferPool pool, long intervalMillis) {
+        super("simpledb-page-cleaner");
+        this.pool = new WeakReference<>(pool);
+        this.intervalMillis = intervalMillis;
+        setDaemon(true);
+    }
+
+    /** Ask the cleaner to run a pass now instead of at the next interval. */
+    synchronized void wake() {
+        wakeRequested = true;
+        notify();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    if (!wakeRequested) {
+                        wait(intervalMillis);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                wakeRequested = false;
+            }
+            BufferPool bp = pool.get();
+            if (bp == null) {
+                return;
+            }
+            try {
+                bp.writeCommittedPages();
+            } catch (Exception e) {
+                // pages stay marked and are retried on the next pass
+                e.printStackTrace();
+            }
+            bp = null;
+        }
+    }
+}
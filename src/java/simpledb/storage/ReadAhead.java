@@ -0,0 +1,75 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+/**
+ * ReadAhead drives asynchronous prefetching for one sequential scan over
+ * the pages of a file. Before the scan reads page n it calls
+ * {@link #advance}, which asks the BufferPool to load pages n+1 .. n+K in
+ * the background.
+ * <p>
+ * The window K adapts to the speed of the scan:
+ * <ul>
+ * <li> if the scan reaches a page whose read is still in flight, the scan
+ * is outrunning the disk and K doubles (up to a quarter of the pool);
+ * <li> if a prefetched page was evicted before the scan reached it, the
+ * window is too large for the pool and K halves.
+ * </ul>
+ * Pools smaller than 4 * MIN_WINDOW pages are too small to hold a window
+ * next to the pages of other operators, and scans over them do not read
+ * ahead.
+ *
+ * @see BufferPool#prefetchPage
+ */
+public class ReadAhead {
+
+    static final int MIN_WINDOW = 2;
+
+    private final int tableId;
+    private final int maxWindow;
+    private int window = MIN_WINDOW;
+    /** Highest page number handed to the prefetcher so far, -1 if none. */
+    private int prefetchedUpTo = -1;
+
+    /**
+     * @param tableId the id of the heap file being scanned
+     */
+    public ReadAhead(int tableId) {
+        this.tableId = tableId;
+        this.maxWindow = Database.getBufferPool().getNumPages() / 4;
+    }
+
+    /**
+     * Note that the scan is about to read page pgNo of a file with numPages
+     * pages, adjust the window and schedule the next pages.
+     */
+    public void advance(int pgNo, int numPages) {
+        if (maxWindow < MIN_WINDOW) {
+            return;
+        }
+        BufferPool bp = Database.getBufferPool();
+        if (pgNo <= prefetchedUpTo) {
+            HeapPageId pid = new HeapPageId(tableId, pgNo);
+            if (!bp.isResident(pid)) {
+                window = Math.max(MIN_WINDOW, window / 2);
+            } else if (!bp.isLoaded(pid)) {
+                window = Math.min(maxWindow, window * 2);
+            }
+        }
+        int last = Math.min(numPages - 1, pgNo + window);
+        for (int pg = Math.max(pgNo + 1, prefetchedUpTo + 1); pg <= last; pg++) {
+            bp.prefetchPage(new HeapPageId(tableId, pg));
+            prefetchedUpTo = pg;
+        }
+    }
+
+    /** @return the current prefetch window, in pages */
+    public int getWindow() {
+        return window;
+    }
+
+    /** Forget the scan position, e.g. when the scan is rewound. */
+    public void reset() {
+        prefetchedUpTo = -1;
+    }
+}
@@ -0,0 +1,27 @@
+package simpledb.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A Page that keeps its on-disk image in a ByteBuffer and reads fields from
+ * it on demand. The BufferPool can move that image into a {@link PageArena}
+ * slot while the page is resident and back onto the heap when the page
+ * leaves the pool.
+ * <p>
+ * Only {@link HeapPage} implements this. B+ tree pages decode their slots
+ * into Java objects when they are read, so they have no image to move and
+ * stay on the heap in an off-heap pool, as do the root pointer and header
+ * pages. Implementations must not let a write race with relocate, or it may
+ * be lost with the old image.
+ */
+public interface RelocatablePage extends Page {
+
+    /**
+     * Copy the current page image into target and use target as the
+     * backing store from now on. target must hold at least
+     * BufferPool.getPageSize() bytes.
+     *
+     * @param target the new backing store of this page
+     */
+    void relocate(ByteBuffer target);
+}
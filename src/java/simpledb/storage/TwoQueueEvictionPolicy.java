@@ -0,0 +1,118 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * Scan resistant "2Q" eviction policy (Johnson and Shasha, VLDB '94).
+ * <p>
+ * Pages are kept in three queues:
+ * <ul>
+ * <li> A1in, a FIFO of resident pages that have been loaded exactly once
+ * since they last entered the pool.
+ * <li> A1out, a FIFO of page ids (no data) that were recently evicted from
+ * A1in.
+ * <li> Am, an LRU list of resident pages that were loaded again while their
+ * id was still remembered in A1out, i.e. pages with a proven reuse distance.
+ * </ul>
+ * A sequential scan only ever cycles pages through A1in, so it cannot push
+ * hot pages (B+ tree internal pages, small lookup tables) out of Am.
+ * <p>
+ * All queues are linked hash sets, so recording an access and picking a
+ * victim are O(1), apart from skipping candidates the BufferPool refuses
+ * to evict.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<>();
+
+    /** Target number of resident pages in A1in */
+    private final int kin;
+    /** Maximum number of ghost ids remembered in A1out */
+    private final int kout;
+
+    /**
+     * Create a policy for a pool holding up to numPages pages, using the
+     * queue sizes suggested in the 2Q paper (25% A1in, 50% A1out).
+     *
+     * @param numPages the capacity of the BufferPool
+     */
+    public TwoQueueEvictionPolicy(int numPages) {
+        this(numPages, Math.max(1, numPages / 4), Math.max(1, numPages / 2));
+    }
+
+    /**
+     * @param numPages the capacity of the BufferPool
+     * @param kin target number of resident pages in A1in
+     * @param kout number of evicted page ids remembered in A1out
+     */
+    public TwoQueueEvictionPolicy(int numPages, int kin, int kout) {
+        if (kin < 1 || kout < 0 || kin > numPages) {
+            throw new IllegalArgumentException("invalid 2Q queue sizes");
+        }
+        this.kin = kin;
+        this.kout = kout;
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        if (am.contains(pid) || a1in.contains(pid)) {
+            pageAccessed(pid);
+        } else if (a1out.remove(pid)) {
+            // re-referenced after leaving A1in: this page is hot
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        if (am.remove(pid)) {
+            am.add(pid);
+        } else if (!a1in.contains(pid)) {
+            pageLoaded(pid);
+        }
+        // hits on A1in are correlated references and are ignored
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public synchronized void pageDiscarded(PageId pid) {
+        // not an eviction, so the page is not remembered in A1out
+        if (!a1in.remove(pid) && !am.remove(pid)) {
+            a1out.remove(pid);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        LinkedHashSet<PageId> first = a1in.size() > kin || am.isEmpty() ? a1in : am;
+        LinkedHashSet<PageId> second = first == a1in ? am : a1in;
+        PageId victim = firstEvictable(first, evictable);
+        if (victim == null) {
+            victim = firstEvictable(second, evictable);
+        }
+        return victim;
+    }
+
+    private static PageId firstEvictable(LinkedHashSet<PageId> queue, Predicate<PageId> evictable) {
+        for (PageId pid : queue) {
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
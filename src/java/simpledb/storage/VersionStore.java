@@ -0,0 +1,238 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the committed images of pages that snapshot readers
+ * may still need, so that read-only transactions can read a consistent
+ * snapshot without taking locks.
+ * <p>
+ * Every commit that changes pages gets a commit timestamp, and a snapshot
+ * reads as of the last commit before it began. Each page touched since the
+ * oldest running snapshot has a chain of versions, newest first:
+ *
+ * <ul>
+ * <li> When a writer first pins a page READ_WRITE, the page image, which
+ * is committed because the writer holds the only exclusive lock, is kept as
+ * the chain's base for as long as the writer runs.
+ * <li> At commit the new images are added under the commit timestamp; on
+ * abort the base is dropped.
+ * <li> Versions no running snapshot can see are pruned, and a chain whose
+ * newest version is visible to every snapshot and that has no running
+ * writer is removed: the page in the pool is that version.
+ * </ul>
+ *
+ * A snapshot reads the newest version not newer than its timestamp, else
+ * the base of the running writer, else the current page. Commits and
+ * snapshot starts are serialized on the store, so a snapshot sees either
+ * all pages of a commit or none.
+ */
+class VersionStore {
+
+    /** Reads the current, committed image of a page. */
+    interface PageReader {
+        Page read(PageId pid) throws IOException;
+    }
+
+    private static final class Version {
+        final long commitTs;
+        final byte[] data;
+
+        Version(long commitTs, byte[] data) {
+            this.commitTs = commitTs;
+            this.data = data;
+        }
+    }
+
+    /** Versions of one page; guarded by its own monitor. */
+    private static final class Chain {
+        /** Newest first. */
+        final List<Version> versions = new ArrayList<>(2);
+        /** The running transaction that may be changing the page, or null. */
+        TransactionId writer;
+        /** The committed image the writer started from. */
+        byte[] base;
+        /** Set once the chain has left the store; look the page up again. */
+        boolean removed;
+    }
+
+    /** Timestamp of the last commit; guarded by this. */
+    private long lastCommit = 0;
+
+    /** Running snapshots and the commit timestamp they read at. */
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<PageId, Chain> chains = new ConcurrentHashMap<>();
+
+    /** Pages each running writer has a base image for. */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> writes = new ConcurrentHashMap<>();
+
+    /** Start a snapshot for tid as of the last commit. */
+    synchronized void beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, lastCommit);
+    }
+
+    boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    void endSnapshot(TransactionId tid) {
+        if (snapshots.remove(tid) != null) {
+            long oldest = oldestSnapshot();
+            for (PageId pid : chains.keySet()) {
+                Chain chain = chains.get(pid);
+                if (chain != null) {
+                    synchronized (chain) {
+                        prune(pid, chain, oldest);
+                    }
+                }
+            }
+        }
+    }
+
+    /** @return the number of pages that have a version chain */
+    int size() {
+        return chains.size();
+    }
+
+    /**
+     * Keep the committed image of a page that tid is about to change,
+     * unless it already has.
+     */
+    void beforeWrite(TransactionId tid, Page page) {
+        PageId pid = page.getId();
+        while (true) {
+            Chain chain = chains.computeIfAbsent(pid, k -> new Chain());
+            synchronized (chain) {
+                if (chain.removed) {
+                    continue;
+                }
+                if (chain.writer == null) {
+                    chain.writer = tid;
+                    chain.base = page.getPageData();
+                    writes.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Add the committed images of the pages tid changed under a new commit
+     * timestamp.
+     *
+     * @param current reads the page as committed by tid
+     */
+    synchronized void commit(TransactionId tid, PageReader current) throws IOException {
+        Set<PageId> pids = writes.remove(tid);
+        if (pids == null) {
+            return;
+        }
+        long commitTs = ++lastCommit;
+        long oldest = oldestSnapshot();
+        for (PageId pid : pids) {
+            Chain chain = chains.get(pid);
+            synchronized (chain) {
+                // with no snapshot running, nobody can read the new version
+                if (oldest != Long.MAX_VALUE) {
+                    if (chain.versions.isEmpty()) {
+                        chain.versions.add(new Version(0, chain.base));
+                    }
+                    chain.versions.add(0, new Version(commitTs, current.read(pid).getPageData()));
+                }
+                chain.writer = null;
+                chain.base = null;
+                prune(pid, chain, oldest);
+            }
+        }
+    }
+
+    /** Drop the base images of an aborted writer. */
+    void abort(TransactionId tid) {
+        Set<PageId> pids = writes.remove(tid);
+        if (pids == null) {
+            return;
+        }
+        long oldest = oldestSnapshot();
+        for (PageId pid : pids) {
+            Chain chain = chains.get(pid);
+            synchronized (chain) {
+                chain.writer = null;
+                chain.base = null;
+                prune(pid, chain, oldest);
+            }
+        }
+    }
+
+    /**
+     * Read a page as of tid's snapshot.
+     *
+     * @param current reads the page from the pool; only called while no
+     *                writer can change it
+     * @return a private copy of the page
+     */
+    Page read(TransactionId tid, PageId pid, PageReader current) throws IOException {
+        Long snapshotTs = snapshots.get(tid);
+        if (snapshotTs == null) {
+            throw new IllegalStateException(tid + " is not a snapshot");
+        }
+        while (true) {
+            Chain chain = chains.computeIfAbsent(pid, k -> new Chain());
+            byte[] data = null;
+            synchronized (chain) {
+                if (chain.removed) {
+                    continue;
+                }
+                for (Version v : chain.versions) {
+                    if (v.commitTs <= snapshotTs) {
+                        data = v.data;
+                        break;
+                    }
+                }
+                if (data == null && chain.writer != null) {
+                    data = chain.base;
+                }
+                if (data == null) {
+                    // no writer can pin the page READ_WRITE while we hold the chain
+                    data = current.read(pid).getPageData();
+                }
+                prune(pid, chain, oldestSnapshot());
+            }
+            return LogPageType.of(pid).newPage(pid, data);
+        }
+    }
+
+    private long oldestSnapshot() {
+        long oldest = Long.MAX_VALUE;
+        for (long ts : snapshots.values()) {
+            oldest = Math.min(oldest, ts);
+        }
+        return oldest;
+    }
+
+    /**
+     * Drop the versions no snapshot as old as oldest can see, and remove the
+     * chain if the page in the pool serves every snapshot. The caller holds
+     * the chain's monitor.
+     */
+    private void prune(PageId pid, Chain chain, long oldest) {
+        List<Version> versions = chain.versions;
+        for (int i = 0; i < versions.size(); i++) {
+            if (versions.get(i).commitTs <= oldest) {
+                versions.subList(i + 1, versions.size()).clear();
+                break;
+            }
+        }
+        if (chain.writer == null && (versions.isEmpty()
+                || (versions.size() == 1 && versions.get(0).commitTs <= oldest))) {
+            chain.removed = true;
+            chains.remove(pid, chain);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb.transaction;
 
 import simpledb.common.Database;
+import simpledb.common.DbException;
 
 import java.io.*;
 
@@ -12,6 +13,15 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    /** Set while the transaction reads a snapshot without locks. */
+    private volatile boolean snapshot = false;
+    /** Set while the transaction runs optimistically. */
+    private volatile boolean optimistic = false;
+
+    /** The body of a transaction run by {@link #runOptimistic}. */
+    public interface Work {
+        void run(TransactionId tid) throws DbException, IOException, TransactionAbortedException;
+    }
 
     public Transaction() {
         tid = new TransactionId();
@@ -27,31 +37,146 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction as a read-only snapshot: it reads the database
+     * as committed at this point and never waits for writers. Falls back to
+     * a regular start if the buffer pool does not support snapshots.
+     *
+     * @see simpledb.storage.BufferPool#beginSnapshot
+     */
+    public void startSnapshot() {
+        if (Database.getBufferPool().beginSnapshot(tid)) {
+            snapshot = true;
+            started = true;
+        } else {
+            start();
+        }
+    }
+
+    /**
+     * Start the transaction optimistically: it takes no locks while it
+     * runs, and {@link #tryCommit} validates it against the transactions
+     * that committed in the meantime. Suited to short transactions that
+     * rarely conflict.
+     *
+     * @see simpledb.storage.BufferPool#beginOptimistic
+     */
+    public void startOptimistic() {
+        Database.getBufferPool().beginOptimistic(tid);
+        optimistic = true;
+        start();
+    }
+
+    /**
+     * Run work in optimistic transactions until one commits, at most
+     * attempts times. If every attempt conflicts, run it once more in a
+     * locking transaction, which cannot fail validation.
+     */
+    public static void runOptimistic(int attempts, Work work)
+            throws DbException, IOException, TransactionAbortedException {
+        for (int i = 0; i < attempts; i++) {
+            Transaction t = new Transaction();
+            t.startOptimistic();
+            try {
+                work.run(t.getId());
+            } catch (TransactionAbortedException e) {
+                t.abort();
+                continue;
+            } catch (DbException | IOException | RuntimeException e) {
+                t.abort();
+                throw e;
+            }
+            if (t.tryCommit()) {
+                return;
+            }
+        }
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            work.run(t.getId());
+        } catch (DbException | IOException | TransactionAbortedException | RuntimeException e) {
+            t.abort();
+            throw e;
+        }
+        t.commit();
+    }
+
+    /**
+     * Abort instead of waiting longer than timeoutMillis for any one lock.
+     *
+     * @param timeoutMillis the longest lock wait, or 0 for no limit
+     */
+    public void setLockTimeout(long timeoutMillis) {
+        Database.getBufferPool().setLockTimeout(tid, timeoutMillis);
+    }
+
     public TransactionId getId() {
         return tid;
     }
 
-    /** Finish the transaction */
+    /**
+     * Finish the transaction. Optimistic transactions may fail validation
+     * and must use {@link #tryCommit} instead.
+     */
     public void commit() throws IOException {
+        if (optimistic) {
+            throw new IllegalStateException("optimistic transaction " + tid + " must use tryCommit");
+        }
         transactionComplete(false);
     }
 
+    /**
+     * Finish the transaction. An optimistic transaction that fails
+     * validation, or deadlocks while locking its write set, is aborted.
+     *
+     * @return true if the transaction committed
+     */
+    public boolean tryCommit() throws IOException {
+        if (optimistic) {
+            boolean valid;
+            try {
+                valid = Database.getBufferPool().commitOptimistic(tid);
+            } catch (TransactionAbortedException e) {
+                valid = false;
+            }
+            optimistic = false;
+            if (!valid) {
+                transactionComplete(true);
+                return false;
+            }
+        }
+        transactionComplete(false);
+        return true;
+    }
+
     /** Finish the transaction */
     public void abort() throws IOException {
+        optimistic = false;
         transactionComplete(true);
     }
 
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && snapshot) {
+            // read-only and never logged
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            snapshot = false;
+            started = false;
+        } else if (started) {
             //write abort log record and rollback transaction
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } 
 
             // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+            try {
+                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+            } catch (UncheckedIOException e) {
+                // the pages were rolled back, so the commit must not be logged
+                started = false;
+                throw e.getCause();
+            }
 
             // write commit log record
             if (!abort) {
@@ -0,0 +1,114 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() {
+		// small pages, so that a few thousand tuples make a three level tree
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	@Test
+	public void testBulkLoad() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+		File bFile = File.createTempFile("bulk", ".dat");
+		bFile.deleteOnExit();
+		BTreeFile bf = BTreeFileEncoder.bulkLoad(hf, bFile, 0, 0.75);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		// the root is two levels above the leaves
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+				rootPtr.getRootId(), Permissions.READ_ONLY);
+		BTreePageId child = root.iterator().next().getLeftChild();
+		assertEquals(BTreePageId.INTERNAL, child.pgcateg());
+
+		// full leaves hold three quarters of what they could
+		BTreeLeafPage first = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				new BTreePageId(bf.getId(), 1, BTreePageId.LEAF), Permissions.READ_ONLY);
+		assertNull(first.getLeftSiblingId());
+		int capacity = first.getNumTuples() + first.getNumEmptySlots();
+		assertEquals((int) (capacity * 0.75), first.getNumTuples());
+
+		// every tuple comes back in key order
+		List<Integer> keys = new ArrayList<>();
+		for (List<Integer> t : tuples)
+			keys.add(t.get(0));
+		Collections.sort(keys);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		for (int key : keys) {
+			assertTrue(it.hasNext());
+			assertEquals(new IntField(key), it.next().getField(0));
+		}
+		assertFalse(it.hasNext());
+		it.close();
+
+		// and can be found through the internal pages
+		IntField key = new IntField(tuples.get(1234).get(0));
+		it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+		it.open();
+		assertTrue(it.hasNext());
+		assertEquals(key, it.next().getField(0));
+		it.close();
+	}
+
+	@Test
+	public void testBulkLoadEmpty() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+		File bFile = File.createTempFile("bulk", ".dat");
+		bFile.deleteOnExit();
+		BTreeFile bf = BTreeFileEncoder.bulkLoad(hf, bFile, 0, 1.0);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		assertEquals(1, bf.numPages());
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+	}
+}
@@ -8,6 +8,7 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate.Op;
 import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -174,6 +175,72 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() on a page with empty slots
+	 * between its entries: each entry must pair its key with its own children.
+	 */
+	@Test public void testReverseIteratorWithEmptySlots() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		List<BTreeEntry> entries = new ArrayList<>();
+		page.iterator().forEachRemaining(entries::add);
+
+		// leave a hole in the middle of the slots
+		page.deleteKeyAndRightChild(entries.remove(entries.size() / 2));
+		page.deleteKeyAndRightChild(entries.remove(entries.size() / 2));
+		List<BTreeEntry> expected = new ArrayList<>();
+		page.iterator().forEachRemaining(expected::add);
+		Collections.reverse(expected);
+
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for (BTreeEntry e : expected) {
+			assertTrue(it.hasNext());
+			BTreeEntry r = it.next();
+			assertEquals(e.getKey(), r.getKey());
+			assertEquals(e.getLeftChild(), r.getLeftChild());
+			assertEquals(e.getRightChild(), r.getRightChild());
+			assertEquals(e.getRecordId(), r.getRecordId());
+		}
+		assertFalse(it.hasNext());
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChild(), with and without empty slots
+	 * between the entries
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		checkFindChild(page);
+
+		List<BTreeEntry> entries = new ArrayList<>();
+		page.iterator().forEachRemaining(entries::add);
+		page.deleteKeyAndRightChild(entries.get(entries.size() / 2));
+		page.deleteKeyAndLeftChild(entries.get(1));
+		checkFindChild(page);
+	}
+
+	/**
+	 * Check findChild against a linear scan over the entries of the page.
+	 */
+	private void checkFindChild(BTreeInternalPage page) {
+		List<BTreeEntry> entries = new ArrayList<>();
+		page.iterator().forEachRemaining(entries::add);
+		assertEquals(entries.get(0).getLeftChild(), page.findChild(null));
+
+		for (int k = 0; k < 70000; k += 97) {
+			IntField f = new IntField(k);
+			BTreePageId expected = entries.get(entries.size() - 1).getRightChild();
+			for (BTreeEntry e : entries) {
+				if (e.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+					expected = e.getLeftChild();
+					break;
+				}
+			}
+			assertEquals(expected, page.findChild(f));
+		}
+		for (BTreeEntry e : entries)
+			assertEquals(e.getLeftChild(), page.findChild(e.getKey()));
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
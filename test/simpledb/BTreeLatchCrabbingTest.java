@@ -0,0 +1,233 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.index.*;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.index.BTreeUtility.BTreeWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class BTreeLatchCrabbingTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	private static final int POLL_INTERVAL = 100;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() {
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default, for the tests that change it
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/**
+	 * Wait until the writer has finished, successfully or not, or give up after
+	 * about five seconds.
+	 */
+	private void waitFor(BTreeWriter bw) throws InterruptedException {
+		int waited = 0;
+		while(!bw.succeeded() && bw.getError() == null && waited < 50) {
+			Thread.sleep(POLL_INTERVAL);
+			waited++;
+		}
+	}
+
+	/**
+	 * An insert into a leaf with room should leave only the leaf locked, not the
+	 * root pointer page or the internal pages above it.
+	 */
+	@Test
+	public void insertLocksOnlyLeaf() throws Exception {
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 31000,
+				null, null, 0);
+		BTreePageId rootPtrPid = BTreeRootPtrPage.getId(bigFile.getId());
+
+		// the first insert may split the full leaf, after which it has room
+		Tuple t = BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE / 2, 2);
+		Database.getBufferPool().insertTuple(tid, bigFile.getId(), t);
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		t = BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE / 2, 2);
+		Database.getBufferPool().insertTuple(tid, bigFile.getId(), t);
+
+		BTreePageId leafId = (BTreePageId) t.getRecordId().getPageId();
+		assertTrue(Database.getBufferPool().holdsLock(tid, leafId));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootPtrPid));
+
+		// check the root with a different transaction, so as not to lock it for tid
+		TransactionId tid1 = new TransactionId();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid1, rootPtrPid, Permissions.READ_ONLY);
+		BTreePageId rootId = rootPtr.getRootId();
+		Database.getBufferPool().transactionComplete(tid1);
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootId));
+	}
+
+	/**
+	 * Two transactions inserting into different leaves with room should not block
+	 * each other at the upper levels of the tree.
+	 */
+	@Test
+	public void concurrentInsertsDoNotBlock() throws Exception {
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 31000,
+				null, null, 0);
+
+		// split the full leaves at both ends of the key range first
+		Database.getBufferPool().insertTuple(tid, bigFile.getId(), BTreeUtility.getBTreeTuple(1, 2));
+		Database.getBufferPool().insertTuple(tid, bigFile.getId(),
+				BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE - 2, 2));
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		// insert near the low end of the key range and keep the transaction open
+		Tuple t = BTreeUtility.getBTreeTuple(1, 2);
+		Database.getBufferPool().insertTuple(tid, bigFile.getId(), t);
+
+		// in a different thread, insert near the high end of the key range
+		TransactionId tid1 = new TransactionId();
+		BTreeWriter bw1 = new BTreeWriter(tid1, bigFile, BTreeUtility.MAX_RAND_VALUE - 2, 1);
+		bw1.start();
+
+		int waited = 0;
+		while(!bw1.succeeded() && bw1.getError() == null && waited < 50) {
+			Thread.sleep(POLL_INTERVAL);
+			waited++;
+		}
+		assertNull(bw1.getError());
+		assertTrue(bw1.succeeded());
+		Database.getBufferPool().transactionComplete(tid1);
+	}
+
+	/**
+	 * Two inserts that both split a full root should run one after the other, not
+	 * deadlock on the root pointer page each of them needs for the new root.
+	 */
+	@Test
+	public void concurrentRootSplitsDoNotDeadlock() throws Exception {
+		// small pages, so that a packed two level tree with a full root stays small
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 15500,
+				null, null, 0);
+		// an internal page split dirties the half of the children that move
+		Database.resetBufferPool(500);
+		BTreePageId rootPtrPid = BTreeRootPtrPage.getId(bigFile.getId());
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, rootPtrPid, Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
+				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+		assertEquals(0, root.getNumEmptySlots());
+
+		// tid keeps the root locked, so that both writers have reached it before
+		// either of them can split it
+		TransactionId tid1 = new TransactionId();
+		TransactionId tid2 = new TransactionId();
+		BTreeWriter bw1 = new BTreeWriter(tid1, bigFile, 1, 1);
+		BTreeWriter bw2 = new BTreeWriter(tid2, bigFile, BTreeUtility.MAX_RAND_VALUE - 2, 1);
+		bw1.start();
+		bw2.start();
+		Thread.sleep(POLL_INTERVAL);
+		assertFalse(bw1.succeeded() || bw2.succeeded());
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		// one of the writers splits the root, and the other one follows once it commits
+		BTreeWriter first = bw1;
+		int waited = 0;
+		while(!bw1.succeeded() && !bw2.succeeded() && bw1.getError() == null
+				&& bw2.getError() == null && waited < 50) {
+			Thread.sleep(POLL_INTERVAL);
+			waited++;
+		}
+		assertNull(bw1.getError());
+		assertNull(bw2.getError());
+		BTreeWriter second = bw2;
+		if(bw2.succeeded()) {
+			first = bw2;
+			second = bw1;
+		}
+		assertTrue(first.succeeded());
+		Database.getBufferPool().transactionComplete(first == bw1 ? tid1 : tid2);
+		waitFor(second);
+		assertNull(second.getError());
+		assertTrue(second.succeeded());
+		Database.getBufferPool().transactionComplete(second == bw1 ? tid1 : tid2);
+	}
+
+	/**
+	 * A transaction that fills a leaf it holds should split it without locking the
+	 * root again, so a reader holding the root does not hold up the split.
+	 */
+	@Test
+	public void heldLeafSplitsWithoutRoot() throws Exception {
+		// small pages, so that a few tens of thousands of tuples make a three level tree
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 31000,
+				null, null, 0);
+		// an internal page split dirties the half of the children that move
+		Database.resetBufferPool(500);
+		int key = BTreeUtility.MAX_RAND_VALUE / 2;
+
+		// split the full leaf and its full parent first, which leaves room in both
+		Database.getBufferPool().insertTuple(tid, bigFile.getId(), BTreeUtility.getBTreeTuple(key, 2));
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		// fill the leaf again within one transaction, which keeps it locked
+		Tuple t = BTreeUtility.getBTreeTuple(key, 2);
+		Database.getBufferPool().insertTuple(tid, bigFile.getId(), t);
+		BTreePageId leafId = (BTreePageId) t.getRecordId().getPageId();
+		BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(
+				tid, leafId, Permissions.READ_ONLY);
+		while(leaf.getNumEmptySlots() > 0) {
+			t = BTreeUtility.getBTreeTuple(key, 2);
+			Database.getBufferPool().insertTuple(tid, bigFile.getId(), t);
+			assertEquals(leafId, t.getRecordId().getPageId());
+		}
+
+		// a different transaction reads the root, which is not the leaf's parent
+		TransactionId tid1 = new TransactionId();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid1, BTreeRootPtrPage.getId(bigFile.getId()), Permissions.READ_ONLY);
+		BTreePageId rootId = rootPtr.getRootId();
+		Database.getBufferPool().getPage(tid1, rootId, Permissions.READ_ONLY);
+		assertNotEquals(rootId, leaf.getParentId());
+
+		BTreeWriter bw1 = new BTreeWriter(tid, bigFile, key, 1);
+		bw1.start();
+		waitFor(bw1);
+		assertNull(bw1.getError());
+		assertTrue(bw1.succeeded());
+		assertTrue(Database.getBufferPool().holdsLock(tid, leaf.getParentId()));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootId));
+		Database.getBufferPool().transactionComplete(tid1);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchCrabbingTest.class);
+	}
+}
@@ -196,6 +196,36 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field)
+	 */
+	@Test public void testIteratorFromKey() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		List<Integer> keys = new ArrayList<>();
+		for (int[] tuple : EXAMPLE_VALUES)
+			keys.add(tuple[0]);
+		Collections.sort(keys);
+
+		// leave a hole in the middle of the slots
+		Iterator<Tuple> all = page.iterator();
+		for (int i = 0; i < 10; ++i)
+			all.next();
+		Tuple t = all.next();
+		page.deleteTuple(t);
+		keys.remove(Integer.valueOf(((IntField) t.getField(0)).getValue()));
+
+		for (int from : new int[] { 0, 1468, 1469, 22064, 22100, 62778, 62779 }) {
+			Iterator<Tuple> it = page.iterator(new IntField(from));
+			for (int key : keys) {
+				if (key < from)
+					continue;
+				assertTrue(it.hasNext());
+				assertEquals(new IntField(key), it.next().getField(0));
+			}
+			assertFalse(it.hasNext());
+		}
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.getNumEmptySlots()
 	 */
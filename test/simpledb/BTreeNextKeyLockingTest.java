@@ -7,11 +7,14 @@ import simpledb.index.*;
 import simpledb.storage.DbFileIterator;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.index.BTreeUtility.BTreeWriter;
 import simpledb.execution.Predicate.Op;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.After;
 import org.junit.Before;
@@ -244,6 +247,202 @@ public class BTreeNextKeyLockingTest extends SimpleDbTestBase {
 		bw1 = null;
 	}
 
+	/**
+	 * @return the page of each tuple with the given key, in key order
+	 */
+	private static List<PageId> searchLeaves(BTreeFile bf, TransactionId tid, Field key) throws Exception {
+		List<PageId> leaves = new ArrayList<>();
+		DbFileIterator fit = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+		fit.open();
+		while(fit.hasNext()) {
+			leaves.add(fit.next().getRecordId().getPageId());
+		}
+		fit.close();
+		return leaves;
+	}
+
+	/**
+	 * A search releases the leaf locks it took, but never a lock its
+	 * transaction held before the search.
+	 */
+	@Test
+	public void searchKeepsLeafLocksHeldBefore() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null, tuples, 0);
+		Field key = new IntField(tuples.get(0).get(0));
+
+		List<PageId> leaves = searchLeaves(bf, tid, key);
+		assertFalse(leaves.isEmpty());
+		for(PageId pid : leaves) {
+			assertFalse(Database.getBufferPool().holdsLock(tid, pid));
+		}
+
+		// a full scan locks every leaf until the transaction completes
+		DbFileIterator scan = bf.iterator(tid);
+		scan.open();
+		while(scan.hasNext()) {
+			scan.next();
+		}
+		scan.close();
+		assertEquals(leaves, searchLeaves(bf, tid, key));
+		for(PageId pid : leaves) {
+			assertTrue(Database.getBufferPool().holdsLock(tid, pid));
+		}
+	}
+
+	/**
+	 * A search that reaches a key being deleted from the leaf it is on waits for
+	 * the delete without holding the leaf, which the delete needs, and then reads
+	 * on past the deleted tuple.
+	 */
+	@Test
+	public void searchWaitsForDeleteOffTheLeaf() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null, tuples, 0);
+		SortedSet<Integer> keys = new TreeSet<>();
+		for(List<Integer> t : tuples) {
+			keys.add(t.get(0));
+		}
+		Iterator<Integer> kit = keys.iterator();
+		for(int i = 0; i < 10; i++) {
+			kit.next();
+		}
+		Field first = new IntField(kit.next());
+		Field key = new IntField(kit.next());
+
+		// find a tuple to delete, next to the first key on the same leaf
+		TransactionId tid1 = new TransactionId();
+		DbFileIterator fit = bf.indexIterator(tid1, new IndexPredicate(Op.EQUALS, key));
+		fit.open();
+		Tuple victim = fit.next();
+		int keyCount = 1;
+		while(fit.hasNext()) {
+			fit.next();
+			keyCount++;
+		}
+		fit.close();
+		assertEquals(searchLeaves(bf, tid1, first).get(0), victim.getRecordId().getPageId());
+
+		// the search reads the first key and stays on the leaf
+		fit = bf.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, first));
+		fit.open();
+		assertEquals(first, fit.next().getField(0));
+
+		// the delete locks the key, then waits for the leaf
+		AtomicReference<Exception> error = new AtomicReference<>();
+		Thread deleter = new Thread(() -> {
+			try {
+				Database.getBufferPool().deleteTuple(tid1, victim);
+				Database.getBufferPool().transactionComplete(tid1);
+			} catch(Exception e) {
+				error.set(e);
+				Database.getBufferPool().transactionComplete(tid1, false);
+			}
+		});
+		deleter.start();
+		Thread.sleep(POLL_INTERVAL);
+		assertTrue(deleter.isAlive());
+
+		// the search reaches the key, and sees it only once the delete commits
+		int seen = 0;
+		while(fit.hasNext()) {
+			Field f = fit.next().getField(0);
+			if(f.equals(key)) {
+				seen++;
+			}
+			else if(!f.equals(first)) {
+				break;
+			}
+		}
+		fit.close();
+		deleter.join(10 * POLL_INTERVAL);
+		assertNull(error.get());
+		assertFalse(deleter.isAlive());
+		assertEquals(keyCount - 1, seen);
+	}
+
+	/**
+	 * Once a search has released its leaf, its key-range locks still keep
+	 * inserts out of the range it read, but not out of other ranges.
+	 */
+	@Test
+	public void keyRangesOutliveLeafLocks() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null, tuples, 0);
+		int min = Integer.MAX_VALUE;
+		for(List<Integer> t : tuples) {
+			min = Math.min(min, t.get(0));
+		}
+
+		List<PageId> leaves = searchLeaves(bf, tid, new IntField(min));
+		for(PageId pid : leaves) {
+			assertFalse(Database.getBufferPool().holdsLock(tid, pid));
+		}
+
+		TransactionId tid1 = new TransactionId();
+		BTreeWriter phantom = new BTreeWriter(tid1, bf, min, 1);
+		TransactionId tid2 = new TransactionId();
+		BTreeWriter other = new BTreeWriter(tid2, bf, BTreeUtility.MAX_RAND_VALUE, 1);
+		phantom.start();
+		other.start();
+
+		// the insert at the far end of the index goes ahead
+		other.join(10 * POLL_INTERVAL);
+		assertTrue(other.succeeded());
+		Database.getBufferPool().transactionComplete(tid2);
+
+		// the insert into the range we read waits for us
+		assertFalse(phantom.succeeded());
+		assertEquals(leaves.size(), searchLeaves(bf, tid, new IntField(min)).size());
+		Database.getBufferPool().transactionComplete(tid);
+
+		phantom.join(10 * POLL_INTERVAL);
+		assertTrue(phantom.succeeded());
+		Database.getBufferPool().transactionComplete(tid1);
+		tid = new TransactionId();
+	}
+
+	/**
+	 * An insert that finds a reader on the gap it goes into waits for the reader
+	 * without holding the pages it locked for the insert.
+	 */
+	@Test
+	public void insertWaitsForReaderOffTheLeaf() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null, tuples, 0);
+		SortedSet<Integer> keys = new TreeSet<>();
+		for(List<Integer> t : tuples) {
+			keys.add(t.get(0));
+		}
+		// a key followed by a gap with room for another key
+		Iterator<Integer> kit = keys.iterator();
+		int key = kit.next();
+		int next = kit.next();
+		while(next - key < 2) {
+			key = next;
+			next = kit.next();
+		}
+
+		// reading the key locks the range of the next key, the gap above the key
+		List<PageId> leaves = searchLeaves(bf, tid, new IntField(key));
+		assertFalse(Database.getBufferPool().holdsLock(tid, leaves.get(0)));
+
+		TransactionId tid1 = new TransactionId();
+		BTreeWriter bw1 = new BTreeWriter(tid1, bf, key + 1, 1);
+		bw1.start();
+		Thread.sleep(POLL_INTERVAL);
+		assertFalse(bw1.succeeded());
+		assertFalse(Database.getBufferPool().holdsLock(tid1, leaves.get(0)));
+		assertFalse(Database.getBufferPool().holdsLock(tid1, BTreeRootPtrPage.getId(bf.getId())));
+
+		Database.getBufferPool().transactionComplete(tid);
+		bw1.join(10 * POLL_INTERVAL);
+		assertNull(bw1.getError());
+		assertTrue(bw1.succeeded());
+		Database.getBufferPool().transactionComplete(tid1);
+		tid = new TransactionId();
+	}
+
 	/**
 	 * JUnit suite target
 	 */
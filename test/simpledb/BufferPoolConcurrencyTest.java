@@ -0,0 +1,102 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+public class BufferPoolConcurrencyTest extends TestUtil.CreateHeapFile {
+
+    private static final int THREADS = 8;
+
+    // heap file that counts and slows down physical page reads
+    static class CountingHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger(0);
+
+        public CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private CountingHeapFile counting;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 10; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        counting = new CountingHeapFile(empty.getFile(), empty.getTupleDesc());
+        Database.getCatalog().addTable(counting, "counting");
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Unit test: concurrent misses on one page cause a single readPage and
+     * all callers see the same cached page.
+     */
+    @Test public void singleFlightLoad() throws Exception {
+        HeapPageId pid = new HeapPageId(counting.getId(), 0);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Page> seen = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                    Page p = Database.getBufferPool().getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+                    synchronized (seen) {
+                        seen.add(p);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(1, counting.reads.get());
+        assertEquals(THREADS, seen.size());
+        for (Page p : seen) {
+            assertSame(seen.get(0), p);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
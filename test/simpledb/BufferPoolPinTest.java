@@ -0,0 +1,106 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class BufferPoolPinTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 3;
+
+    private HeapFile hf;
+    private TransactionId tid;
+
+    @Before public void createFile() throws Exception {
+        // 2 int columns fit 504 tuples per page: 6 pages
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 6, null, null);
+        Database.resetBufferPool(POOL_PAGES);
+        tid = new TransactionId();
+    }
+
+    /**
+     * Unit test: a pinned frame survives eviction pressure and keeps
+     * returning the cached page.
+     */
+    @Test public void pinnedPageIsNotEvicted() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        BufferFrame frame = bp.pinPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        Page pinned = frame.getPage();
+        assertEquals(1, frame.getPinCount());
+
+        for (int pg = 1; pg < hf.numPages(); pg++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), pg), Permissions.READ_ONLY);
+        }
+
+        assertSame(pinned, frame.getPage());
+        assertSame(pinned, bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY));
+        bp.unpinPage(frame);
+        assertEquals(0, frame.getPinCount());
+    }
+
+    /**
+     * Unit test: eviction fails instead of dropping a pinned page when
+     * every frame is pinned.
+     */
+    @Test public void allFramesPinned() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        List<BufferFrame> frames = new ArrayList<>();
+        for (int pg = 0; pg < POOL_PAGES; pg++) {
+            frames.add(bp.pinPage(tid, new HeapPageId(hf.getId(), pg), Permissions.READ_ONLY));
+        }
+        try {
+            bp.getPage(tid, new HeapPageId(hf.getId(), POOL_PAGES), Permissions.READ_ONLY);
+            fail("expected eviction to fail with every frame pinned");
+        } catch (DbException expected) {
+        }
+
+        bp.unpinPage(frames.get(0));
+        assertNotNull(bp.getPage(tid, new HeapPageId(hf.getId(), POOL_PAGES), Permissions.READ_ONLY));
+        for (int i = 1; i < frames.size(); i++) {
+            bp.unpinPage(frames.get(i));
+        }
+    }
+
+    /**
+     * Unit test: a heap file scan only holds a pin on the page it is reading.
+     */
+    @Test public void scanReleasesPins() throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(504 * 6, count);
+
+        // every frame is unpinned again, so a full pool can still evict
+        for (int pg = 0; pg < hf.numPages(); pg++) {
+            BufferFrame frame = Database.getBufferPool().pinPage(tid, new HeapPageId(hf.getId(), pg), Permissions.READ_ONLY);
+            assertEquals(1, frame.getPinCount());
+            Database.getBufferPool().unpinPage(frame);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPinTest.class);
+    }
+}
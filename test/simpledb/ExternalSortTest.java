@@ -0,0 +1,83 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Utility;
+import simpledb.index.BTreeFileEncoder.TupleComparator;
+import simpledb.storage.ExternalSort;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ExternalSortTest extends SimpleDbTestBase {
+
+    private final TupleDesc td = Utility.getTupleDesc(2);
+
+    /**
+     * Sort n random tuples on their first field with runs of runSize tuples
+     * and check that all of them come back in order.
+     */
+    private ExternalSort sortAndCheck(int n, int runSize) throws Exception {
+        Random rand = new Random(n);
+        List<Integer> keys = new ArrayList<>();
+        ExternalSort sort = new ExternalSort(td, new TupleComparator(0), runSize);
+        for (int i = 0; i < n; i++) {
+            int key = rand.nextInt(n);
+            keys.add(key);
+            sort.add(Utility.getHeapTuple(new int[] { key, i }));
+        }
+        Collections.sort(keys);
+        assertEquals(n, sort.size());
+
+        Iterator<Tuple> it = sort.iterator();
+        for (int key : keys) {
+            assertTrue(it.hasNext());
+            assertEquals(new IntField(key), it.next().getField(0));
+        }
+        assertFalse(it.hasNext());
+        return sort;
+    }
+
+    @Test public void inMemory() throws Exception {
+        try (ExternalSort sort = sortAndCheck(500, 1000)) {
+            assertEquals(0, sort.numRuns());
+        }
+    }
+
+    @Test public void spillsRuns() throws Exception {
+        try (ExternalSort sort = sortAndCheck(5000, 700)) {
+            assertEquals(8, sort.numRuns());
+        }
+    }
+
+    /** More runs than can be merged at once take an extra merge pass. */
+    @Test public void multiPassMerge() throws Exception {
+        try (ExternalSort sort = sortAndCheck(10000, 50)) {
+            assertTrue(sort.numRuns() <= 64);
+        }
+    }
+
+    @Test public void empty() throws Exception {
+        try (ExternalSort sort = new ExternalSort(td, new TupleComparator(0), 10)) {
+            assertFalse(sort.iterator().hasNext());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExternalSortTest.class);
+    }
+}
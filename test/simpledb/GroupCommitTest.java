@@ -0,0 +1,140 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.GroupCommit;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    @After public void resetWindow() {
+        Database.getLogFile().getGroupCommit().setWindow(0, 64);
+    }
+
+    // commit perThread empty transactions on each of threads threads
+    private static void commitConcurrently(int threads, int perThread) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        List<Exception> errors = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < perThread; j++) {
+                        Transaction tx = new Transaction();
+                        tx.start();
+                        tx.commit();
+                    }
+                } catch (Exception e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            workers.add(t);
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : workers) {
+            t.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    /**
+     * Unit test: concurrent commits share log forces.
+     */
+    @Test public void commitsShareForces() throws Exception {
+        GroupCommit gc = Database.getLogFile().getGroupCommit();
+        gc.setWindow(2000, 8);
+        long commits = gc.getCommits();
+        long forces = gc.getForces();
+
+        commitConcurrently(8, 25);
+
+        assertEquals(200, gc.getCommits() - commits);
+        assertTrue(gc.getForces() - forces < 200);
+        assertTrue(gc.getMaxBatchSize() > 1);
+    }
+
+    /**
+     * Unit test: a full batch is forced without waiting for the rest of a
+     * long batch window.
+     */
+    @Test public void fullBatchEndsWindow() throws Exception {
+        Database.getLogFile().getGroupCommit().setWindow(60L * 1000 * 1000, 4);
+        long begin = System.currentTimeMillis();
+        commitConcurrently(4, 1);
+        assertTrue(System.currentTimeMillis() - begin < 30 * 1000);
+    }
+
+    /** A log that counts the forces requested before page writes. */
+    private static class CountingLogFile extends LogFile {
+        int forces = 0;
+
+        CountingLogFile(File f) throws IOException {
+            super(f);
+        }
+
+        @Override public void forceUpTo(long lsn) throws IOException {
+            forces++;
+            super.forceUpTo(lsn);
+        }
+    }
+
+    /**
+     * Unit test: a NO-STEAL commit logs all of its pages and forces the log
+     * once before it writes them.
+     */
+    @Test public void commitForcesPagesOnce() throws Exception {
+        File data = File.createTempFile("pages", ".dat");
+        data.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(data.getAbsolutePath(), 2);
+        File f = File.createTempFile("counting", ".log");
+        f.deleteOnExit();
+        CountingLogFile log = new CountingLogFile(f);
+        LogFile old = TestUtil.swapLogFile(log);
+        try {
+            Transaction t = new Transaction();
+            t.start();
+            // 2 int columns fit 504 tuples per page: dirty three pages
+            for (int i = 0; i < 504 * 3; i++) {
+                Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+            }
+            t.commit();
+            assertEquals(1, log.forces);
+            assertEquals(3, hf.numPages());
+            for (int pg = 0; pg < 3; pg++) {
+                HeapPage onDisk = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), pg));
+                assertEquals(0, onDisk.getNumEmptySlots());
+            }
+        } finally {
+            TestUtil.swapLogFile(old);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
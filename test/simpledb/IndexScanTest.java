@@ -0,0 +1,205 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class IndexScanTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Statistics with a fixed selectivity for every predicate, so the
+	 * planner's choice does not depend on histograms.
+	 */
+	private static class FixedStats extends TableStats {
+		final int pages;
+		final int tuples;
+		final double selectivity;
+
+		FixedStats(int tableid, int pages, int tuples, double selectivity) {
+			super(tableid, 1000);
+			this.pages = pages;
+			this.tuples = tuples;
+			this.selectivity = selectivity;
+		}
+
+		public double estimateScanCost() {
+			return pages * 1000.0;
+		}
+
+		public int estimateTableCardinality(double selectivityFactor) {
+			return (int) (tuples * selectivityFactor);
+		}
+
+		public double estimateSelectivity(int field, Op op, Field constant) {
+			return selectivity;
+		}
+
+		public int totalTuples() {
+			return tuples;
+		}
+	}
+
+	@Before
+	public void setUp() {
+		Database.reset();
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private static List<List<Integer>> drain(OpIterator it) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		it.open();
+		while (it.hasNext()) {
+			result.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		return result;
+	}
+
+	private static int count(List<List<Integer>> tuples, int field, Op op, int value) {
+		int n = 0;
+		for (List<Integer> t : tuples) {
+			if (new IntField(t.get(field)).compare(op, new IntField(value)))
+				n++;
+		}
+		return n;
+	}
+
+	@Test
+	public void testBTreeScanWithNewPredicates() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 5000, 200, null, tuples, 0);
+		IndexPredicate lt = new IndexPredicate(Op.LESS_THAN, new IntField(50));
+		IndexScan scan = new IndexScan(tid, bf.getId(), "t", lt);
+		assertEquals(count(tuples, 0, Op.LESS_THAN, 50), drain(scan).size());
+
+		// probe again with another key, without a new operator
+		scan.open(new IndexPredicate(Op.EQUALS, new IntField(120)));
+		int n = 0;
+		while (scan.hasNext()) {
+			assertEquals(new IntField(120), scan.next().getField(0));
+			n++;
+		}
+		assertEquals(count(tuples, 0, Op.EQUALS, 120), n);
+
+		scan.rewind(new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(190)));
+		n = 0;
+		while (scan.hasNext()) {
+			scan.next();
+			n++;
+		}
+		scan.close();
+		assertEquals(count(tuples, 0, Op.GREATER_THAN_OR_EQ, 190), n);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testHeapFileNeedsAnIndex() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+		new IndexScan(tid, hf.getId(), "t", new IndexPredicate(Op.EQUALS, new IntField(1)));
+	}
+
+	private HeapFile indexedTable(List<List<Integer>> tuples) throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 10000, 1000, null, tuples, "c");
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		SecondaryIndex index = new SecondaryIndex(f, "t_c1", hf, 1);
+		Database.getCatalog().addIndex(index);
+		index.build(1.0);
+		return hf;
+	}
+
+	private OpIterator plan(HeapFile hf, double selectivity) throws Exception {
+		return plan(hf, new FixedStats(hf.getId(), hf.numPages(), 10000, selectivity));
+	}
+
+	private OpIterator plan(HeapFile hf, TableStats tableStats) throws Exception {
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c1", Op.EQUALS, "42");
+		lp.addFilter("t.c2", Op.GREATER_THAN, "100");
+		lp.addProjectField("t.c0", null);
+		lp.addProjectField("t.c1", null);
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put(Database.getCatalog().getTableName(hf.getId()), tableStats);
+		return lp.physicalPlan(tid, stats, false);
+	}
+
+	@Test
+	public void testPlanUsesSelectiveIndex() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = indexedTable(tuples);
+		OpIterator p = plan(hf, 0.001);
+
+		// project <- filter on c2 <- index scan on c1
+		OpIterator filter = ((Operator) p).getChildren()[0];
+		assertTrue(filter instanceof Filter);
+		assertEquals(2, ((Filter) filter).getPredicate().getField());
+		OpIterator scan = ((Operator) filter).getChildren()[0];
+		assertTrue(scan instanceof IndexScan);
+		assertEquals(Op.EQUALS, ((IndexScan) scan).getIndexPredicate().getOp());
+
+		int expected = 0;
+		for (List<Integer> t : tuples) {
+			if (t.get(1) == 42 && t.get(2) > 100)
+				expected++;
+		}
+		List<List<Integer>> rows = drain(p);
+		assertEquals(expected, rows.size());
+		for (List<Integer> r : rows)
+			assertEquals(42, (int) r.get(1));
+	}
+
+	@Test
+	public void testPlanUsesIndexWithComputedStats() throws Exception {
+		HeapFile hf = indexedTable(new ArrayList<>());
+		TableStats stats = new TableStats(hf.getId(), 1000);
+		assertEquals(10000, stats.totalTuples());
+		assertEquals(hf.numPages() * 1000.0, stats.estimateScanCost(), 0.0);
+		OpIterator p = plan(hf, stats);
+
+		OpIterator node = ((Operator) p).getChildren()[0];
+		while (node instanceof Filter)
+			node = ((Operator) node).getChildren()[0];
+		assertTrue(node instanceof IndexScan);
+	}
+
+	@Test
+	public void testPlanScansWhenIndexIsNotSelective() throws Exception {
+		HeapFile hf = indexedTable(new ArrayList<>());
+		OpIterator p = plan(hf, 0.5);
+
+		OpIterator node = ((Operator) p).getChildren()[0];
+		while (node instanceof Filter)
+			node = ((Operator) node).getChildren()[0];
+		assertTrue(node instanceof SeqScan);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(IndexScanTest.class);
+	}
+}
@@ -0,0 +1,379 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.DependencyGraph;
+import simpledb.common.LockManager;
+import simpledb.common.LockMode;
+import simpledb.common.LockStats;
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private static final int WAIT_MILLIS = 200;
+
+    private LockManager lm;
+    private PageId p0;
+    private PageId p1;
+    private final List<TransactionId> grants = Collections.synchronizedList(new ArrayList<>());
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+        grants.clear();
+    }
+
+    /** Start a thread that acquires a lock and records the grant. */
+    private Thread acquireLater(TransactionId tid, PageId pid, Permissions perm) throws InterruptedException {
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquire(tid, pid, perm);
+                grants.add(tid);
+            } catch (InterruptedException | TransactionAbortedException e) {
+                // not granted
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        Thread.sleep(WAIT_MILLIS);
+        return t;
+    }
+
+    /**
+     * Unit test: waiters are granted in arrival order, and a shared request
+     * does not overtake a queued exclusive one.
+     */
+    @Test public void fifoGrant() throws Exception {
+        TransactionId holder = new TransactionId();
+        TransactionId writer = new TransactionId();
+        TransactionId reader = new TransactionId();
+        lm.acquire(holder, p0, Permissions.READ_ONLY);
+
+        Thread w = acquireLater(writer, p0, Permissions.READ_WRITE);
+        Thread r = acquireLater(reader, p0, Permissions.READ_ONLY);
+        assertTrue(grants.isEmpty());
+
+        lm.releaseAll(holder);
+        w.join(WAIT_MILLIS);
+        assertEquals(Collections.singletonList(writer), grants);
+        assertFalse(lm.holdsLock(reader, p0));
+
+        lm.releaseAll(writer);
+        r.join(WAIT_MILLIS);
+        assertEquals(2, grants.size());
+        assertTrue(lm.holdsLock(reader, p0));
+    }
+
+    /**
+     * Unit test: an upgrade goes ahead of requests that are already queued.
+     */
+    @Test public void upgradeFirst() throws Exception {
+        TransactionId upgrader = new TransactionId();
+        TransactionId other = new TransactionId();
+        TransactionId writer = new TransactionId();
+        lm.acquire(upgrader, p0, Permissions.READ_ONLY);
+        lm.acquire(other, p0, Permissions.READ_ONLY);
+
+        Thread w = acquireLater(writer, p0, Permissions.READ_WRITE);
+        Thread u = acquireLater(upgrader, p0, Permissions.READ_WRITE);
+        assertTrue(grants.isEmpty());
+
+        lm.releaseAll(other);
+        u.join(WAIT_MILLIS);
+        assertEquals(Collections.singletonList(upgrader), grants);
+
+        lm.releaseAll(upgrader);
+        w.join(WAIT_MILLIS);
+        assertEquals(2, grants.size());
+        assertTrue(lm.holdsLock(writer, p0));
+    }
+
+    /**
+     * Unit test: the detector aborts the youngest transaction on a waits-for
+     * cycle, which leaves the queue.
+     */
+    @Test public void deadlockAborts() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquire(t1, p0, Permissions.READ_WRITE);
+        lm.acquire(t2, p1, Permissions.READ_WRITE);
+
+        Thread w = acquireLater(t1, p1, Permissions.READ_WRITE);
+        try {
+            lm.acquire(t2, p0, Permissions.READ_WRITE);
+            fail("expected deadlock abort");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.releaseAll(t2);
+        w.join(WAIT_MILLIS);
+        assertEquals(Collections.singletonList(t1), grants);
+        assertFalse(lm.holdsLock(t2, p0));
+    }
+
+    /**
+     * Unit test: converging wait chains are not a deadlock, and only the
+     * transactions on a cycle are reported.
+     */
+    @Test public void graphFindsOnlyCycles() {
+        TransactionId a = new TransactionId();
+        TransactionId b = new TransactionId();
+        TransactionId c = new TransactionId();
+        TransactionId d = new TransactionId();
+        DependencyGraph graph = new DependencyGraph();
+        graph.setEdges(a, new HashSet<>(Arrays.asList(b, c)));
+        graph.setEdges(b, Collections.singleton(d));
+        graph.setEdges(c, Collections.singleton(d));
+        assertTrue(graph.deadlocks().isEmpty());
+
+        graph.setEdges(d, Collections.singleton(b));
+        List<List<TransactionId>> deadlocks = graph.deadlocks();
+        assertEquals(1, deadlocks.size());
+        assertEquals(new HashSet<>(Arrays.asList(b, d)), new HashSet<>(deadlocks.get(0)));
+    }
+
+    /**
+     * Unit test: past the threshold page locks in a table are escalated to
+     * one table lock, which still admits other readers but not writers.
+     */
+    @Test public void escalateToTableLock() throws Exception {
+        lm = new LockManager(50, 4);
+        TransactionId scanner = new TransactionId();
+        TransactionId reader = new TransactionId();
+        TransactionId writer = new TransactionId();
+        for (int pgNo = 0; pgNo < 5; pgNo++) {
+            lm.acquire(scanner, new HeapPageId(1, pgNo), Permissions.READ_ONLY);
+        }
+        assertEquals(LockMode.S, lm.tableLockMode(scanner, 1));
+        assertTrue(lm.holdsLock(scanner, new HeapPageId(1, 9)));
+
+        lm.acquire(reader, new HeapPageId(1, 7), Permissions.READ_ONLY);
+        assertEquals(LockMode.IS, lm.tableLockMode(reader, 1));
+        Thread w = acquireLater(writer, new HeapPageId(1, 8), Permissions.READ_WRITE);
+        assertTrue(grants.isEmpty());
+
+        lm.releaseAll(scanner);
+        w.join(WAIT_MILLIS);
+        assertEquals(Collections.singletonList(writer), grants);
+        assertEquals(LockMode.IX, lm.tableLockMode(writer, 1));
+    }
+
+    /**
+     * Unit test: escalation does not wait for a conflicting writer, and
+     * succeeds on a later page once the writer is gone.
+     */
+    @Test public void escalationNeverWaits() throws Exception {
+        lm = new LockManager(50, 4);
+        TransactionId scanner = new TransactionId();
+        TransactionId writer = new TransactionId();
+        lm.acquire(writer, new HeapPageId(1, 9), Permissions.READ_WRITE);
+        for (int pgNo = 0; pgNo < 5; pgNo++) {
+            lm.acquire(scanner, new HeapPageId(1, pgNo), Permissions.READ_ONLY);
+        }
+        assertEquals(LockMode.IS, lm.tableLockMode(scanner, 1));
+
+        lm.releaseAll(writer);
+        lm.acquire(scanner, new HeapPageId(1, 5), Permissions.READ_ONLY);
+        assertEquals(LockMode.S, lm.tableLockMode(scanner, 1));
+    }
+
+    /**
+     * Unit test: an insert waits for a reader of the key range it inserts
+     * into, but not for other inserts into the same range, and keeps no
+     * lock on the range once it may go ahead.
+     */
+    @Test public void keyRangeLocks() throws Exception {
+        TransactionId reader = new TransactionId();
+        TransactionId inserter = new TransactionId();
+        TransactionId other = new TransactionId();
+        lm.acquireKeyRange(reader, 1, new IntField(5), LockMode.S);
+        lm.acquireKeyRange(reader, 1, new IntField(9), LockMode.S);
+
+        lm.awaitKeyRange(inserter, 1, null, LockMode.IX);
+        lm.awaitKeyRange(other, 1, null, LockMode.IX);
+        assertNull(lm.tableLockMode(inserter, 1));
+
+        Thread t = new Thread(() -> {
+            try {
+                lm.awaitKeyRange(inserter, 1, new IntField(9), LockMode.IX);
+                grants.add(inserter);
+            } catch (InterruptedException | TransactionAbortedException e) {
+                // not granted
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        Thread.sleep(WAIT_MILLIS);
+        assertTrue(grants.isEmpty());
+
+        lm.releaseAll(reader);
+        t.join(WAIT_MILLIS);
+        assertEquals(Collections.singletonList(inserter), grants);
+        assertNull(lm.tableLockMode(inserter, 1));
+    }
+
+    /**
+     * Unit test: a conditional key-range lock is granted only when nothing
+     * conflicts, and leaves no intention lock behind when it is refused. A
+     * conditional instant-duration check keeps no lock either way.
+     */
+    @Test public void tryKeyRangeLock() throws Exception {
+        TransactionId deleter = new TransactionId();
+        TransactionId reader = new TransactionId();
+        lm.acquireKeyRange(deleter, 1, new IntField(5), LockMode.X);
+
+        assertFalse(lm.tryAcquireKeyRange(reader, 1, new IntField(5), LockMode.S));
+        assertNull(lm.tableLockMode(reader, 1));
+        assertTrue(lm.tryAcquireKeyRange(reader, 1, new IntField(9), LockMode.S));
+        assertEquals(LockMode.IS, lm.tableLockMode(reader, 1));
+
+        assertFalse(lm.tryAwaitKeyRange(deleter, 1, new IntField(9), LockMode.IX));
+        assertEquals(LockMode.IX, lm.tableLockMode(deleter, 1));
+
+        lm.releaseAll(deleter);
+        assertTrue(lm.tryAcquireKeyRange(reader, 1, new IntField(5), LockMode.S));
+        assertTrue(lm.tryAwaitKeyRange(deleter, 1, new IntField(7), LockMode.IX));
+        assertNull(lm.tableLockMode(deleter, 1));
+    }
+
+    /**
+     * Unit test: key-range locks are counted against their own escalation
+     * threshold, not the page threshold.
+     */
+    @Test public void keyRangesEscalateSeparately() throws Exception {
+        lm = new LockManager(50, 4, 8, 0);
+        TransactionId scanner = new TransactionId();
+        for (int key = 0; key < 8; key++) {
+            lm.acquireKeyRange(scanner, 1, new IntField(key), LockMode.S);
+        }
+        for (int pgNo = 0; pgNo < 4; pgNo++) {
+            lm.acquire(scanner, new HeapPageId(1, pgNo), Permissions.READ_ONLY);
+        }
+        assertEquals(LockMode.IS, lm.tableLockMode(scanner, 1));
+
+        lm.acquireKeyRange(scanner, 1, new IntField(8), LockMode.S);
+        assertEquals(LockMode.S, lm.tableLockMode(scanner, 1));
+    }
+
+    /**
+     * Unit test: the lock mode compatibility and supremum tables.
+     */
+    @Test public void lockModes() {
+        assertTrue(LockMode.IS.compatible(LockMode.SIX));
+        assertTrue(LockMode.IX.compatible(LockMode.IX));
+        assertFalse(LockMode.IX.compatible(LockMode.S));
+        assertFalse(LockMode.SIX.compatible(LockMode.IX));
+        assertEquals(LockMode.SIX, LockMode.S.supremum(LockMode.IX));
+        assertTrue(LockMode.SIX.covers(LockMode.S));
+        assertFalse(LockMode.S.covers(LockMode.IX));
+    }
+
+    /**
+     * Unit test: a transaction with a lock timeout aborts when a wait takes
+     * longer, and the wait is reported against the contended page.
+     */
+    @Test public void lockWaitTimesOut() throws Exception {
+        TransactionId holder = new TransactionId();
+        TransactionId waiter = new TransactionId();
+        lm.acquire(holder, p0, Permissions.READ_WRITE);
+        lm.setLockTimeout(waiter, 100);
+
+        long start = System.currentTimeMillis();
+        try {
+            lm.acquire(waiter, p0, Permissions.READ_ONLY);
+            fail("expected lock wait timeout");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(1, lm.getStats().getTimeouts());
+        assertEquals(0, lm.getStats().getDeadlocks());
+        assertEquals(p0, lm.getStats().topContended(1).get(0).getKey());
+        assertFalse(lm.holdsLock(waiter, p0));
+    }
+
+    /**
+     * Unit test: granted waits and upgrades are counted and timed.
+     */
+    @Test public void waitsAreRecorded() throws Exception {
+        TransactionId holder = new TransactionId();
+        TransactionId waiter = new TransactionId();
+        lm.acquire(holder, p0, Permissions.READ_ONLY);
+        lm.acquire(holder, p0, Permissions.READ_WRITE);
+        Thread w = acquireLater(waiter, p0, Permissions.READ_ONLY);
+        lm.releaseAll(holder);
+        w.join(WAIT_MILLIS);
+
+        LockStats stats = lm.getStats();
+        assertEquals(1, stats.getWaits());
+        assertEquals(1, stats.wait.getCount());
+        assertTrue(stats.wait.getPercentileMicros(0.5) >= 1000 * WAIT_MILLIS / 2);
+        // IS to IX on the table and S to X on the page
+        assertEquals(2, stats.upgrade.getCount());
+        assertEquals(3, stats.acquire.getCount());
+        assertTrue(stats.report(5).contains("most contended"));
+    }
+
+    /**
+     * Unit test: waits are kept for a bounded number of locks, and the
+     * most contended lock is not the one that makes room.
+     */
+    @Test public void contendedLocksAreBounded() throws Exception {
+        System.setProperty(LockStats.MAX_CONTENDED_PROPERTY, "4");
+        try {
+            lm = new LockManager();
+        } finally {
+            System.clearProperty(LockStats.MAX_CONTENDED_PROPERTY);
+        }
+        TransactionId holder = new TransactionId();
+        TransactionId waiter = new TransactionId();
+        lm.setLockTimeout(waiter, 20);
+        List<PageId> pages = new ArrayList<>();
+        for (int pgNo = 0; pgNo < 8; pgNo++) {
+            pages.add(new HeapPageId(1, pgNo));
+            lm.acquire(holder, pages.get(pgNo), Permissions.READ_WRITE);
+        }
+        for (int i = 0; i < 3; i++) {
+            pages.add(0, p0);
+        }
+        for (PageId pid : pages) {
+            try {
+                lm.acquire(waiter, pid, Permissions.READ_ONLY);
+                fail("expected lock wait timeout");
+            } catch (TransactionAbortedException e) {
+                lm.releaseAll(waiter);
+                lm.setLockTimeout(waiter, 20);
+            }
+        }
+
+        List<LockStats.Contention> top = lm.getStats().topContended(100);
+        assertEquals(4, top.size());
+        assertEquals(p0, top.get(0).getKey());
+        assertEquals(4, top.get(0).getWaits());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.EOFException;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class LogRecordTest extends SimpleDbTestBase {
+
+    private HeapPage before;
+    private HeapPage after;
+
+    @Before public void createPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        before = (HeapPage) hf.readPage(pid);
+        after = new HeapPage(pid, before.getPageData());
+        after.insertTuple(Utility.getHeapTuple(new int[]{7, 8}));
+    }
+
+    /**
+     * Unit test: Crc32c matches the standard CRC-32C check value.
+     */
+    @Test public void crc32cCheckValue() {
+        byte[] data = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0xE3069283, Crc32c.compute(data, 0, data.length));
+    }
+
+    /**
+     * Unit test: a one-tuple update is logged as a small diff that redoes
+     * and undoes the change exactly.
+     */
+    @Test public void updateRoundTrip() throws Exception {
+        LogRecord r = LogRecord.update(42, before, after);
+        byte[] encoded = r.encode(0);
+        assertTrue("record of " + encoded.length + " bytes", encoded.length < 128);
+
+        LogRecord read = LogRecord.decode(encoded);
+        assertEquals(42, read.getTid());
+        assertEquals(before.getId(), read.getPageId());
+        assertArrayEquals(after.getPageData(), read.redo(before).getPageData());
+        assertArrayEquals(before.getPageData(), read.undo(after).getPageData());
+    }
+
+    /**
+     * Unit test: redoing a CLR restores the before image, and the CLR keeps
+     * its undoNextLSN.
+     */
+    @Test public void compensationRoundTrip() throws Exception {
+        LogRecord update = LogRecord.update(42, before, after);
+        byte[] encoded = update.compensation(1234).encode(100);
+
+        LogRecord clr = LogRecord.decode(encoded);
+        assertEquals(42, clr.getTid());
+        assertEquals(1234, clr.getUndoNextLSN());
+        assertEquals(before.getId(), clr.getPageId());
+        assertArrayEquals(before.getPageData(), clr.redo(after).getPageData());
+    }
+
+    /**
+     * Unit test: a record with a flipped byte reads as the end of the log.
+     */
+    @Test public void corruptRecordEndsLog() throws Exception {
+        byte[] encoded = LogRecord.update(42, before, after).encode(0);
+        encoded[20] ^= 1;
+        try {
+            LogRecord.decode(encoded);
+            fail("expected a corrupt record to be rejected");
+        } catch (EOFException expected) {
+        }
+    }
+
+    /**
+     * Unit test: LogFile.logWrite appends far less than a page per update.
+     */
+    @Test public void logWriteIsCompact() throws Exception {
+        LogFile log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long start = log.getEndOffset();
+        log.logWrite(tid, before, after);
+        assertTrue(log.getEndOffset() - start < BufferPool.getPageSize() / 10);
+    }
+
+    /**
+     * Unit test: logWrite stamps the page LSN, and forceUpTo makes the log
+     * durable up to it.
+     */
+    @Test public void forceUpToPageLSN() throws Exception {
+        LogFile log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, before, after);
+        assertEquals(log.getEndOffset(), after.getLSN());
+        assertTrue(log.getFlushedLSN() < after.getLSN());
+
+        log.forceUpTo(after.getLSN());
+        assertTrue(log.getFlushedLSN() >= after.getLSN());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogRecordTest.class);
+    }
+}
@@ -0,0 +1,196 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+public class LogRecoveryTest extends SimpleDbTestBase {
+
+    private static final int PAGES = 6;
+
+    @After public void clearProperty() {
+        System.clearProperty(LogFile.REDO_THREADS_PROPERTY);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    // the image of page with its first tuple deleted
+    private static HeapPage deleteFirst(HeapPage page) throws Exception {
+        HeapPage after = new HeapPage(page.getId(), page.getPageData());
+        after.deleteTuple(after.iterator().next());
+        return after;
+    }
+
+    private static HeapFile crash(HeapFile hf) {
+        Database.reset();
+        return Utility.openHeapFile(2, hf.getFile());
+    }
+
+    /**
+     * Unit test: recovery redoes committed updates that never reached disk
+     * on several threads, and undoes a loser's update that did.
+     */
+    @Test public void redoCommittedUndoLoser() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, PAGES * 500, null, null);
+        assertEquals(PAGES, hf.numPages());
+        LogFile log = Database.getLogFile();
+
+        // the winner updates every page; none of them is written
+        TransactionId winner = new TransactionId();
+        log.logXactionBegin(winner);
+        List<byte[]> committed = new ArrayList<>();
+        for (int pgNo = 0; pgNo < PAGES; pgNo++) {
+            HeapPage before = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), pgNo));
+            HeapPage after = deleteFirst(before);
+            log.logWrite(winner, before, after);
+            committed.add(after.getPageData());
+        }
+        log.logCommit(winner);
+
+        // the loser's update of page 1 is written to disk before the crash
+        TransactionId loser = new TransactionId();
+        log.logXactionBegin(loser);
+        HeapPage before = new HeapPage(new HeapPageId(hf.getId(), 1), committed.get(1));
+        HeapPage after = deleteFirst(before);
+        log.logWrite(loser, before, after);
+        log.force();
+        hf.writePage(after);
+
+        System.setProperty(LogFile.REDO_THREADS_PROPERTY, "4");
+        hf = crash(hf);
+        Database.getLogFile().recover();
+        for (int pgNo = 0; pgNo < PAGES; pgNo++) {
+            assertArrayEquals(committed.get(pgNo), hf.readPage(new HeapPageId(hf.getId(), pgNo)).getPageData());
+        }
+
+        // recovering the recovered log changes nothing
+        hf = crash(hf);
+        Database.getLogFile().recover();
+        for (int pgNo = 0; pgNo < PAGES; pgNo++) {
+            assertArrayEquals(committed.get(pgNo), hf.readPage(new HeapPageId(hf.getId(), pgNo)).getPageData());
+        }
+    }
+
+    /**
+     * Unit test: an aborted transaction is rolled back through the log and
+     * stays rolled back after a crash, even when a later transaction
+     * commits to the same page.
+     */
+    @Test public void rollbackSurvivesCrash() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 500, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage original = (HeapPage) hf.readPage(pid);
+        LogFile log = Database.getLogFile();
+
+        TransactionId aborted = new TransactionId();
+        log.logXactionBegin(aborted);
+        HeapPage changed = deleteFirst(original);
+        log.logWrite(aborted, original, changed);
+        log.force();
+        hf.writePage(changed);
+        log.logAbort(aborted);
+        assertArrayEquals(original.getPageData(), hf.readPage(pid).getPageData());
+
+        TransactionId winner = new TransactionId();
+        log.logXactionBegin(winner);
+        HeapPage committed = deleteFirst(original);
+        committed.deleteTuple(committed.iterator().next());
+        log.logWrite(winner, original, committed);
+        log.logCommit(winner);
+
+        hf = crash(hf);
+        Database.getLogFile().recover();
+        assertArrayEquals(committed.getPageData(), hf.readPage(pid).getPageData());
+    }
+
+    /**
+     * Unit test: recovery does not compensate the updates of a transaction
+     * again when a crash interrupted it after its rollback was logged.
+     */
+    @Test public void compensatedUpdatesAreNotUndoneAgain() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 500, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage original = (HeapPage) hf.readPage(pid);
+        LogFile log = Database.getLogFile();
+
+        TransactionId loser = new TransactionId();
+        log.logXactionBegin(loser);
+        HeapPage page = original;
+        for (int i = 0; i < 3; i++) {
+            HeapPage next = deleteFirst(page);
+            log.logWrite(loser, page, next);
+            page = next;
+        }
+        log.force();
+        hf.writePage(page);
+        // crash after the rollback, before its ABORT record
+        log.rollback(loser);
+
+        hf = crash(hf);
+        Database.getLogFile().recover();
+        assertArrayEquals(original.getPageData(), hf.readPage(pid).getPageData());
+        // only the ABORT record was appended
+        assertEquals(1, Database.getLogFile().getTotalRecords());
+    }
+
+    /**
+     * Unit test: a checkpoint does not write committed pages that the page
+     * cleaner still holds, and recovery redoes them from their recLSN.
+     */
+    @Test public void fuzzyCheckpointKeepsDirtyPages() throws Exception {
+        File file = File.createTempFile("fuzzy", ".dat");
+        file.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        System.setProperty(BufferPool.PAGE_CLEANER_PROPERTY, "60000");
+        try {
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        } finally {
+            System.clearProperty(BufferPool.PAGE_CLEANER_PROPERTY);
+        }
+
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(1, 2));
+        t.commit();
+        assertEquals(1, Database.getBufferPool().getDirtyPageTable().size());
+
+        Database.getLogFile().logCheckpoint();
+        Database.getLogFile().logCheckpoint();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        assertEquals(0, countTuples((HeapPage) hf.readPage(pid)));
+
+        hf = crash(hf);
+        Database.getLogFile().recover();
+        assertEquals(1, countTuples((HeapPage) hf.readPage(pid)));
+    }
+
+    private static int countTuples(HeapPage page) {
+        int count = 0;
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogRecoveryTest.class);
+    }
+}
@@ -0,0 +1,112 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+public class LogSegmentsTest extends SimpleDbTestBase {
+
+    private static final int SEGMENT_SIZE = 256;
+
+    private File dir;
+    private File logFile;
+
+    @Before public void createDir() throws Exception {
+        dir = Files.createTempDirectory("logsegments").toFile();
+        logFile = new File(dir, "log");
+    }
+
+    @After public void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    // each transaction logs a BEGIN and a COMMIT record of 25 bytes each
+    private static void runTransactions(LogFile log, int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+    }
+
+    /**
+     * Unit test: records spread over several segments, and a reopened log
+     * finds every record again, including ones spanning two segments.
+     */
+    @Test public void reopenAcrossSegments() throws Exception {
+        LogFile log = new LogFile(logFile, SEGMENT_SIZE);
+        runTransactions(log, 40);
+        long end = log.getEndOffset();
+        assertEquals(40 * 2 * 25, end);
+        assertTrue(log.getNumSegments() > 1);
+
+        LogFile reopened = new LogFile(logFile, SEGMENT_SIZE);
+        reopened.recover();
+        assertEquals(end, reopened.getEndOffset());
+    }
+
+    /**
+     * Unit test: a checkpoint with no active transactions drops every old
+     * segment without changing record offsets.
+     */
+    @Test public void checkpointDropsSegments() throws Exception {
+        LogFile log = new LogFile(logFile, SEGMENT_SIZE);
+        runTransactions(log, 40);
+        int before = log.getNumSegments();
+        long end = log.getEndOffset();
+
+        log.logCheckpoint();
+        assertTrue(log.getNumSegments() < before);
+        assertTrue(log.getEndOffset() > end);
+
+        LogFile reopened = new LogFile(logFile, SEGMENT_SIZE);
+        reopened.recover();
+        assertEquals(log.getEndOffset(), reopened.getEndOffset());
+    }
+
+    /**
+     * Unit test: recovery cuts off a torn record at the end of the log.
+     */
+    @Test public void tornTailIsDropped() throws Exception {
+        LogFile log = new LogFile(logFile, SEGMENT_SIZE);
+        runTransactions(log, 3);
+        long end = log.getEndOffset();
+
+        File last = new File(dir, "log.000000");
+        try (RandomAccessFile raf = new RandomAccessFile(last, "rw")) {
+            raf.seek(end);
+            raf.writeInt(25);
+            raf.writeByte(2);
+        }
+
+        LogFile reopened = new LogFile(logFile, SEGMENT_SIZE);
+        reopened.recover();
+        assertEquals(end, reopened.getEndOffset());
+        assertEquals(end, last.length());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
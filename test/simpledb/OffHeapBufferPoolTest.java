@@ -0,0 +1,150 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class OffHeapBufferPoolTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 4;
+
+    private HeapFile hf;
+    private List<List<Integer>> tuples;
+
+    @Before public void createPool() throws Exception {
+        tuples = new ArrayList<>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, tuples);
+        System.setProperty(BufferPool.OFF_HEAP_PROPERTY, "true");
+        try {
+            Database.resetBufferPool(POOL_PAGES);
+        } finally {
+            System.clearProperty(BufferPool.OFF_HEAP_PROPERTY);
+        }
+    }
+
+    /**
+     * Unit test: PageArena hands out each slot once and slots do not overlap.
+     */
+    @Test public void arenaSlots() {
+        PageArena arena = new PageArena(3, 16);
+        int a = arena.allocate();
+        int b = arena.allocate();
+        int c = arena.allocate();
+        assertEquals(-1, arena.allocate());
+        arena.slot(a).put(0, (byte) 1);
+        arena.slot(b).put(0, (byte) 2);
+        arena.slot(c).put(15, (byte) 3);
+        assertEquals(1, arena.slot(a).get(0));
+        assertEquals(2, arena.slot(b).get(0));
+        assertEquals(3, arena.slot(c).get(15));
+        assertTrue(arena.slot(a).isDirect());
+
+        arena.release(b);
+        assertEquals(b, arena.allocate());
+    }
+
+    /**
+     * Unit test: a scan through an off-heap pool much smaller than the file
+     * returns every tuple.
+     */
+    @Test public void scanThroughArena() throws Exception {
+        SystemTestUtil.matchTuples(hf, tuples);
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Unit test: a page keeps its contents after it has been evicted from
+     * the arena and its slot reused by other pages.
+     */
+    @Test public void evictedPageStaysValid() throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        byte[] before = page.getPageData();
+
+        for (int pg = 1; pg < hf.numPages(); pg++) {
+            Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), pg), Permissions.READ_ONLY);
+        }
+
+        assertArrayEquals(before, page.getPageData());
+        Iterator<Tuple> it = page.iterator();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(tuples.get(count), SystemTestUtil.tupleToList(it.next()));
+            count++;
+        }
+        assertEquals(504, count);
+    }
+
+    /**
+     * Unit test: inserts and aborts work on pages stored in the arena.
+     */
+    @Test public void abortRestoresArenaPage() throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        page.deleteTuple(page.iterator().next());
+        page.markDirty(true, tid);
+        assertEquals(1, page.getNumEmptySlots());
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        HeapPage restored = (HeapPage) Database.getBufferPool().getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+        assertEquals(0, restored.getNumEmptySlots());
+        assertEquals(tuples.get(0), SystemTestUtil.tupleToList(restored.iterator().next()));
+    }
+
+    /**
+     * Unit test: writes that race with relocation are not lost with the old
+     * image.
+     */
+    @Test public void relocateKeepsConcurrentWrites() throws Exception {
+        HeapPage page = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData());
+        int slots = page.getNumEmptySlots();
+        AtomicBoolean done = new AtomicBoolean(false);
+        Thread mover = new Thread(() -> {
+            while (!done.get()) {
+                page.relocate(ByteBuffer.allocateDirect(BufferPool.getPageSize()));
+            }
+        });
+        mover.start();
+        try {
+            for (int i = 0; i < slots; i++) {
+                page.insertTuple(Utility.getHeapTuple(new int[] { i, -i }));
+            }
+        } finally {
+            done.set(true);
+            mover.join();
+        }
+
+        Iterator<Tuple> it = page.iterator();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(count, ((IntField) it.next().getField(0)).getValue());
+            count++;
+        }
+        assertEquals(slots, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OffHeapBufferPoolTest.class);
+    }
+}
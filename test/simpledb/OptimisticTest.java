@@ -0,0 +1,148 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class OptimisticTest extends SimpleDbTestBase {
+
+    private static final int TUPLES = 10;
+
+    private HeapFile hf;
+    private HeapPageId p0;
+
+    @Before public void createFile() throws Exception {
+        File file = File.createTempFile("optimistic", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        p0 = new HeapPageId(hf.getId(), 0);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < TUPLES; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+        t.commit();
+    }
+
+    @After public void resetPool() {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private int countTuples() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        t.commit();
+        return count;
+    }
+
+    /** Commit a locking transaction that deletes one tuple of page 0. */
+    private void deleteOneCommitted() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(), p0, Permissions.READ_WRITE);
+        Database.getBufferPool().deleteTuple(t.getId(), page.iterator().next());
+        t.commit();
+    }
+
+    /**
+     * Unit test: an optimistic transaction takes no locks while it runs,
+     * and its writes become visible when it commits.
+     */
+    @Test public void commitWithoutLocks() throws Exception {
+        Transaction t = new Transaction();
+        t.startOptimistic();
+        Database.getBufferPool().getPage(t.getId(), p0, Permissions.READ_ONLY);
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(99, 2));
+        assertFalse(Database.getBufferPool().holdsLock(t.getId(), p0));
+        assertEquals(TUPLES, countTuples());
+
+        assertTrue(t.tryCommit());
+        assertEquals(TUPLES + 1, countTuples());
+    }
+
+    /**
+     * Unit test: a transaction that committed a write to a page after an
+     * optimistic transaction read it makes the optimistic one fail
+     * validation, and none of its writes are installed.
+     */
+    @Test public void conflictFailsValidation() throws Exception {
+        Transaction t = new Transaction();
+        t.startOptimistic();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(99, 2));
+
+        deleteOneCommitted();
+        assertFalse(t.tryCommit());
+        assertEquals(TUPLES - 1, countTuples());
+    }
+
+    /**
+     * Unit test: an optimistic read of a page that a locking transaction is
+     * writing conflicts immediately instead of reading uncommitted data.
+     */
+    @Test(expected = TransactionAbortedException.class)
+    public void readOfUncommittedPageConflicts() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        Database.getBufferPool().getPage(writer.getId(), p0, Permissions.READ_WRITE);
+
+        Transaction t = new Transaction();
+        t.startOptimistic();
+        try {
+            Database.getBufferPool().getPage(t.getId(), p0, Permissions.READ_ONLY);
+        } finally {
+            t.abort();
+            writer.abort();
+        }
+    }
+
+    /**
+     * Unit test: runOptimistic retries work that failed validation.
+     */
+    @Test public void runOptimisticRetries() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        Transaction.runOptimistic(3, (TransactionId tid) -> {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(99, 2));
+            if (attempts.incrementAndGet() == 1) {
+                try {
+                    deleteOneCommitted();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        assertEquals(2, attempts.get());
+        assertEquals(TUPLES, countTuples());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OptimisticTest.class);
+    }
+}
@@ -0,0 +1,168 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+public class PageCleanerTest extends TestUtil.CreateHeapFile {
+
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = resetPool(BufferPool.DEFAULT_PAGES, 10);
+    }
+
+    @After public void tearDown() {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private static BufferPool resetPool(int pages, long cleanerIntervalMillis) {
+        System.setProperty(BufferPool.PAGE_CLEANER_PROPERTY, Long.toString(cleanerIntervalMillis));
+        try {
+            return Database.resetBufferPool(pages);
+        } finally {
+            System.clearProperty(BufferPool.PAGE_CLEANER_PROPERTY);
+        }
+    }
+
+    private int tuplesOnDisk(int pgNo) {
+        return countTuples((HeapPage) empty.readPage(new HeapPageId(empty.getId(), pgNo)));
+    }
+
+    private static int countTuples(HeapPage page) {
+        int count = 0;
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Unit test: a commit leaves its page clean in the pool, and the page
+     * cleaner writes it back to disk shortly afterwards.
+     */
+    @Test public void cleanerWritesCommittedPage() throws Exception {
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(1, 2));
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(2, 2));
+        bp.transactionComplete(tid, true);
+
+        Page cached = bp.getPage(new TransactionId(), new HeapPageId(empty.getId(), 0), Permissions.READ_ONLY);
+        assertNull(cached.isDirty());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (tuplesOnDisk(0) != 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, tuplesOnDisk(0));
+    }
+
+    /**
+     * Unit test: an abort after a commit rolls back to the committed image,
+     * not to the image before the earlier transaction.
+     */
+    @Test public void abortKeepsEarlierCommit() throws Exception {
+        TransactionId t1 = new TransactionId();
+        bp.insertTuple(t1, empty.getId(), Utility.getHeapTuple(1, 2));
+        bp.transactionComplete(t1, true);
+
+        TransactionId t2 = new TransactionId();
+        bp.insertTuple(t2, empty.getId(), Utility.getHeapTuple(2, 2));
+        bp.transactionComplete(t2, false);
+
+        HeapPage page = (HeapPage) bp.getPage(new TransactionId(), new HeapPageId(empty.getId(), 0),
+                Permissions.READ_ONLY);
+        assertEquals(1, countTuples(page));
+    }
+
+    /**
+     * Unit test: when every unpinned page still waits for the cleaner,
+     * eviction writes them back itself instead of failing.
+     */
+    @Test public void evictionWritesBackCommittedPages() throws Exception {
+        BufferPool small = resetPool(2, 60 * 60 * 1000);
+        TransactionId tid = new TransactionId();
+        // 2 int columns fit 504 tuples per page: fill three pages
+        for (int i = 0; i < 504 * 3; i++) {
+            small.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+            if (i % 504 == 503) {
+                small.transactionComplete(tid, true);
+                tid = new TransactionId();
+            }
+        }
+        small.transactionComplete(tid, true);
+        assertEquals(504, tuplesOnDisk(0));
+        assertEquals(3, empty.numPages());
+    }
+
+    /** A log whose update records cannot be written. */
+    private static class FailingLogFile extends LogFile {
+        boolean committed = false;
+
+        FailingLogFile(File f) throws IOException {
+            super(f);
+        }
+
+        @Override public synchronized void logWrite(TransactionId tid, Page before, Page after) throws IOException {
+            throw new IOException("log device failed");
+        }
+
+        @Override public void logCommit(TransactionId tid) throws IOException {
+            committed = true;
+            super.logCommit(tid);
+        }
+    }
+
+    /**
+     * Unit test: a commit whose updates cannot be logged is rolled back and
+     * fails, and no COMMIT record is written for it.
+     */
+    @Test public void commitFailsWhenUpdatesCannotBeLogged() throws Exception {
+        File f = File.createTempFile("failing", ".log");
+        f.deleteOnExit();
+        FailingLogFile log = new FailingLogFile(f);
+        LogFile old = TestUtil.swapLogFile(log);
+        try {
+            Transaction t = new Transaction();
+            t.start();
+            bp.insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(1, 2));
+            try {
+                t.commit();
+                fail("expected the commit to fail");
+            } catch (IOException e) {
+                assertEquals("log device failed", e.getMessage());
+            }
+            assertFalse(log.committed);
+
+            HeapPage page = (HeapPage) bp.getPage(new TransactionId(), new HeapPageId(empty.getId(), 0),
+                    Permissions.READ_ONLY);
+            assertNull(page.isDirty());
+            assertEquals(0, countTuples(page));
+        } finally {
+            TestUtil.swapLogFile(old);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
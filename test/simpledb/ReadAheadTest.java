@@ -0,0 +1,103 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    private static final int NUM_PAGES = 20;
+
+    // heap file that slows down page reads and records which thread did them
+    static class SlowHeapFile extends HeapFile {
+        final Map<Integer, AtomicInteger> reads = new ConcurrentHashMap<>();
+        final AtomicInteger prefetched = new AtomicInteger(0);
+
+        public SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.computeIfAbsent(pid.getPageNumber(), k -> new AtomicInteger()).incrementAndGet();
+            if (Thread.currentThread().getName().startsWith("simpledb-prefetch")) {
+                prefetched.incrementAndGet();
+            }
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException ignored) {
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private SlowHeapFile slow;
+    private List<List<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * NUM_PAGES, null, tuples);
+        slow = new SlowHeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(slow, "slow");
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Unit test: a scan reads ahead on the prefetch threads, returns every
+     * tuple, and each page is read from disk only once.
+     */
+    @Test public void scanReadsAhead() throws Exception {
+        SystemTestUtil.matchTuples(slow, tuples);
+
+        assertTrue(slow.prefetched.get() > 0);
+        assertEquals(NUM_PAGES, slow.reads.size());
+        for (AtomicInteger count : slow.reads.values()) {
+            assertEquals(1, count.get());
+        }
+    }
+
+    /**
+     * Unit test: the window grows while the scan catches up with reads that
+     * are still in flight, and never exceeds a quarter of the pool.
+     */
+    @Test public void windowGrowsWhenScanOutrunsDisk() {
+        ReadAhead ra = new ReadAhead(slow.getId());
+        assertEquals(2, ra.getWindow());
+        for (int pg = 0; pg < NUM_PAGES; pg++) {
+            ra.advance(pg, NUM_PAGES);
+        }
+        assertTrue(ra.getWindow() > 2);
+        assertTrue(ra.getWindow() <= BufferPool.DEFAULT_PAGES / 4);
+    }
+
+    /**
+     * Unit test: scans over very small pools do not read ahead.
+     */
+    @Test public void noReadAheadInSmallPool() throws Exception {
+        Database.resetBufferPool(4);
+        SystemTestUtil.matchTuples(slow, tuples);
+        assertEquals(0, slow.prefetched.get());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
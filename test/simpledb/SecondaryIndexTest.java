@@ -0,0 +1,162 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private List<List<Integer>> tuples;
+	private HeapFile hf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		Database.reset();
+		tid = new TransactionId();
+		tuples = new ArrayList<>();
+		hf = SystemTestUtil.createRandomHeapFile(3, 3000, 50, null, tuples);
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private SecondaryIndex createIndex(int keyField, int... included) throws Exception {
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		SecondaryIndex index = new SecondaryIndex(f, "index_" + keyField, hf, keyField, included);
+		Database.getCatalog().addIndex(index);
+		index.build(1.0);
+		return index;
+	}
+
+	private static List<List<Integer>> drain(DbFileIterator it) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		it.open();
+		while (it.hasNext()) {
+			result.add(SystemTestUtil.tupleToList(it.next()));
+		}
+		it.close();
+		return result;
+	}
+
+	private List<List<Integer>> rowsWith(int field, int value) {
+		List<List<Integer>> result = new ArrayList<>();
+		for (List<Integer> t : tuples) {
+			if (t.get(field) == value)
+				result.add(t);
+		}
+		return result;
+	}
+
+	private static void assertSameRows(List<List<Integer>> expected, List<List<Integer>> actual) {
+		Comparator<List<Integer>> order = Comparator.comparing(Object::toString);
+		expected = new ArrayList<>(expected);
+		actual = new ArrayList<>(actual);
+		expected.sort(order);
+		actual.sort(order);
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testLookup() throws Exception {
+		SecondaryIndex index = createIndex(1);
+		BTreeChecker.checkRep(index.getFile(), tid, new HashMap<>(), true);
+
+		for (int v : new int[] { 0, 17, 49 }) {
+			List<List<Integer>> rows = drain(index.iterator(tid, new IndexPredicate(Op.EQUALS, new IntField(v))));
+			assertSameRows(rowsWith(1, v), rows);
+		}
+
+		// range lookups come back in key order
+		List<List<Integer>> rows = drain(index.iterator(tid, new IndexPredicate(Op.GREATER_THAN, new IntField(40))));
+		for (int i = 1; i < rows.size(); i++) {
+			assertTrue(rows.get(i - 1).get(1) <= rows.get(i).get(1));
+		}
+		int expected = 0;
+		for (List<Integer> t : tuples) {
+			if (t.get(1) > 40)
+				expected++;
+		}
+		assertEquals(expected, rows.size());
+	}
+
+	@Test
+	public void testCoveringIterator() throws Exception {
+		SecondaryIndex index = createIndex(2, 0);
+		assertTrue(index.covers(0, 2));
+		assertFalse(index.covers(1));
+		assertEquals(2, index.getCoveringTupleDesc().numFields());
+
+		List<List<Integer>> expected = new ArrayList<>();
+		for (List<Integer> t : rowsWith(2, 25)) {
+			expected.add(Arrays.asList(t.get(2), t.get(0)));
+		}
+		assertSameRows(expected, drain(index.coveringIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(25)))));
+	}
+
+	@Test
+	public void testMaintainedByBufferPool() throws Exception {
+		SecondaryIndex index = createIndex(1);
+		IndexPredicate seven = new IndexPredicate(Op.EQUALS, new IntField(7));
+		int before = rowsWith(1, 7).size();
+
+		// inserts into the base table add entries
+		for (int i = 0; i < 5; i++) {
+			Tuple t = Utility.getHeapTuple(new int[] { 1000 + i, 7, i });
+			Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+		}
+		assertEquals(before + 5, drain(index.iterator(tid, seven)).size());
+
+		// deletes from the base table remove them again
+		DbFileIterator it = index.iterator(tid, seven);
+		it.open();
+		List<Tuple> victims = new ArrayList<>();
+		while (it.hasNext()) {
+			victims.add(it.next());
+		}
+		it.close();
+		for (Tuple t : victims) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		assertTrue(drain(index.iterator(tid, seven)).isEmpty());
+		assertEquals(0, drain(index.getFile().indexIterator(tid, seven)).size());
+	}
+
+	@Test(expected = NoSuchElementException.class)
+	public void testAddIndexOnUnknownTable() throws Exception {
+		File f = File.createTempFile("index", ".dat");
+		f.deleteOnExit();
+		File o = File.createTempFile("other", ".dat");
+		o.deleteOnExit();
+		HeapFile other = new HeapFile(o, hf.getTupleDesc());
+		Database.getCatalog().addIndex(new SecondaryIndex(f, "other_index", other, 0));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SecondaryIndexTest.class);
+	}
+}
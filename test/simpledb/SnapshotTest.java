@@ -0,0 +1,132 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+public class SnapshotTest extends SimpleDbTestBase {
+
+    /** 2 int columns fit 504 tuples per page, so this fills 2 pages and starts a third */
+    private static final int TUPLES = 1010;
+
+    private HeapFile hf;
+
+    @Before public void createFile() throws Exception {
+        File file = File.createTempFile("snapshot", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        System.setProperty(BufferPool.SNAPSHOTS_PROPERTY, "true");
+        try {
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        } finally {
+            System.clearProperty(BufferPool.SNAPSHOTS_PROPERTY);
+        }
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < TUPLES; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+        t.commit();
+    }
+
+    @After public void resetPool() {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private int countTuples(Transaction t) throws Exception {
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    /** Delete the first tuple of every page. */
+    private void deleteFirstOfEachPage(Transaction t) throws Exception {
+        for (int pgNo = 0; pgNo < hf.numPages(); pgNo++) {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                    new HeapPageId(hf.getId(), pgNo), Permissions.READ_WRITE);
+            Database.getBufferPool().deleteTuple(t.getId(), page.iterator().next());
+        }
+    }
+
+    /**
+     * Unit test: a snapshot does not see a commit that happened after it
+     * started, on any page, and a new snapshot does.
+     */
+    @Test public void snapshotIgnoresLaterCommits() throws Exception {
+        Transaction reader = new Transaction();
+        reader.startSnapshot();
+
+        Transaction writer = new Transaction();
+        writer.start();
+        deleteFirstOfEachPage(writer);
+        writer.commit();
+
+        assertEquals(TUPLES, countTuples(reader));
+        reader.commit();
+
+        Transaction later = new Transaction();
+        later.startSnapshot();
+        assertEquals(TUPLES - 3, countTuples(later));
+        later.commit();
+    }
+
+    /**
+     * Unit test: a snapshot reads pages that a running writer holds
+     * exclusively, without waiting and without seeing its changes.
+     */
+    @Test public void snapshotDoesNotWaitForWriters() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        deleteFirstOfEachPage(writer);
+
+        // a locking reader would block here until the writer finishes
+        Transaction reader = new Transaction();
+        reader.startSnapshot();
+        assertEquals(TUPLES, countTuples(reader));
+
+        writer.abort();
+        assertEquals(TUPLES, countTuples(reader));
+        reader.commit();
+    }
+
+    /**
+     * Unit test: snapshot transactions are read-only.
+     */
+    @Test(expected = DbException.class)
+    public void snapshotCannotWrite() throws Exception {
+        Transaction reader = new Transaction();
+        reader.startSnapshot();
+        try {
+            Database.getBufferPool().getPage(reader.getId(), new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+        } finally {
+            reader.commit();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
@@ -0,0 +1,142 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+
+public class StealTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 3;
+    /** 2 int columns fit 504 tuples per page, so this needs 6 pages */
+    private static final int TUPLES = 504 * 6;
+
+    private File file;
+    private HeapFile hf;
+
+    @Before public void createFile() throws Exception {
+        file = File.createTempFile("steal", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        resetPool(true);
+    }
+
+    @After public void resetPool() {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private static void resetPool(boolean steal) {
+        System.setProperty(BufferPool.STEAL_PROPERTY, Boolean.toString(steal));
+        try {
+            Database.resetBufferPool(POOL_PAGES);
+        } finally {
+            System.clearProperty(BufferPool.STEAL_PROPERTY);
+        }
+    }
+
+    private void insertAll(Transaction t) throws Exception {
+        for (int i = 0; i < TUPLES; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+    }
+
+    private int countTuples() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        t.commit();
+        return count;
+    }
+
+    /**
+     * Unit test: without STEAL a write set larger than the pool fails.
+     */
+    @Test(expected = DbException.class)
+    public void noStealRunsOutOfPages() throws Exception {
+        resetPool(false);
+        Transaction t = new Transaction();
+        t.start();
+        insertAll(t);
+    }
+
+    /**
+     * Unit test: with STEAL a transaction can write more pages than the pool
+     * holds, and its changes commit.
+     */
+    @Test public void commitLargeWriteSet() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insertAll(t);
+        t.commit();
+        assertEquals(TUPLES, countTuples());
+    }
+
+    /**
+     * Unit test: aborting undoes the pages that eviction already wrote.
+     */
+    @Test public void abortUndoesStolenPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insertAll(t);
+        t.abort();
+        assertEquals(0, countTuples());
+    }
+
+    /**
+     * Unit test: recovery undoes the stolen pages of a transaction that was
+     * running at the crash.
+     */
+    @Test public void crashUndoesStolenPages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insertAll(t);
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(0, countTuples());
+    }
+
+    /**
+     * Unit test: once a transaction is rolled back from the log, its dirty
+     * pages are no longer written, so no update of it follows its abort.
+     */
+    @Test public void rolledBackPagesAreNotFlushed() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(1, 2));
+        Database.getLogFile().logAbort(t.getId());
+
+        Database.getBufferPool().flushAllPages();
+        HeapPage onDisk = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertFalse(onDisk.iterator().hasNext());
+        Database.getBufferPool().transactionComplete(t.getId(), false);
+        assertEquals(0, countTuples());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StealTest.class);
+    }
+}
@@ -369,6 +369,23 @@ public class TestUtil {
         }
     }
 
+    /**
+     * Install log as the log file of the Database instance, e.g. to inject
+     * failures.
+     *
+     * @return the log file it replaced, to be swapped back afterwards
+     */
+    public static LogFile swapLogFile(LogFile log) throws Exception {
+        java.lang.reflect.Field f = Database.class.getDeclaredField("_logfile");
+        f.setAccessible(true);
+        java.lang.reflect.Field instance = Database.class.getDeclaredField("_instance");
+        instance.setAccessible(true);
+        Object db = ((java.util.concurrent.atomic.AtomicReference<?>) instance.get(null)).get();
+        LogFile old = (LogFile) f.get(db);
+        f.set(db, log);
+        return old;
+    }
+
     /** JUnit fixture that creates a heap file and cleans it up afterward. */
     public static abstract class CreateHeapFile {
         protected CreateHeapFile() {
@@ -0,0 +1,129 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.storage.EvictionPolicy;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.TwoQueueEvictionPolicy;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TwoQueueEvictionPolicyTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 8;
+    private static final int HOT_TABLE = 1;
+    private static final int SCAN_TABLE = 2;
+
+    private EvictionPolicy policy;
+    private Set<PageId> resident;
+
+    @Before public void createPolicy() {
+        policy = new TwoQueueEvictionPolicy(POOL_PAGES);
+        resident = new HashSet<>();
+    }
+
+    /** Simulate a BufferPool lookup of pid, evicting a page if the pool is full. */
+    private PageId access(PageId pid) {
+        if (resident.contains(pid)) {
+            policy.pageAccessed(pid);
+            return null;
+        }
+        PageId victim = null;
+        if (resident.size() >= POOL_PAGES) {
+            victim = policy.chooseVictim(p -> true);
+            assertNotNull(victim);
+            resident.remove(victim);
+            policy.pageRemoved(victim);
+        }
+        resident.add(pid);
+        policy.pageLoaded(pid);
+        return victim;
+    }
+
+    /**
+     * Unit test: pages that were reused after their first eviction survive
+     * a long sequential scan.
+     */
+    @Test public void scanDoesNotFlushHotPages() {
+        PageId hot1 = new HeapPageId(HOT_TABLE, 0);
+        PageId hot2 = new HeapPageId(HOT_TABLE, 1);
+        access(hot1);
+        access(hot2);
+
+        // push the hot pages out of A1in, then reference them again
+        for (int i = 0; i < POOL_PAGES; i++) {
+            access(new HeapPageId(SCAN_TABLE, i));
+        }
+        access(hot1);
+        access(hot2);
+        assertTrue(resident.contains(hot1));
+        assertTrue(resident.contains(hot2));
+
+        for (int i = 0; i < 1000; i++) {
+            PageId victim = access(new HeapPageId(SCAN_TABLE, POOL_PAGES + i));
+            assertNotEquals(hot1, victim);
+            assertNotEquals(hot2, victim);
+            if (i % 10 == 0) {
+                access(hot1);
+            }
+        }
+        assertTrue(resident.contains(hot1));
+        assertTrue(resident.contains(hot2));
+    }
+
+    /**
+     * Unit test: chooseVictim skips candidates the pool refuses to evict.
+     */
+    @Test public void chooseVictimSkipsUnevictable() {
+        PageId pinned = new HeapPageId(SCAN_TABLE, 0);
+        PageId free = new HeapPageId(SCAN_TABLE, 1);
+        policy.pageLoaded(pinned);
+        policy.pageLoaded(free);
+
+        assertEquals(free, policy.chooseVictim(p -> !p.equals(pinned)));
+        assertNull(policy.chooseVictim(p -> false));
+
+        policy.pageRemoved(free);
+        assertEquals(pinned, policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * Unit test: a discarded page is forgotten, so loading it again is not
+     * taken for a reuse and it does not displace hot pages.
+     */
+    @Test public void discardIsNotEviction() {
+        PageId hot = new HeapPageId(HOT_TABLE, 0);
+        access(hot);
+        for (int i = 0; i < POOL_PAGES; i++) {
+            access(new HeapPageId(SCAN_TABLE, i));
+        }
+        access(hot);
+
+        PageId discarded = new HeapPageId(SCAN_TABLE, POOL_PAGES);
+        access(discarded);
+        resident.remove(discarded);
+        policy.pageDiscarded(discarded);
+        access(discarded);
+
+        // a page loaded once is evicted ahead of the page in Am
+        for (int i = 0; i < POOL_PAGES; i++) {
+            assertNotEquals(hot, access(new HeapPageId(SCAN_TABLE, POOL_PAGES + 1 + i)));
+        }
+        assertFalse(resident.contains(discarded));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TwoQueueEvictionPolicyTest.class);
+    }
+}